@@ -1,25 +1,52 @@
 package main.java;
 
 import dnl.utils.text.table.TextTable;
+import edu.unh.cs.treccar_v2.Data;
+import edu.unh.cs.treccar_v2.read_data.DeserializeData;
 import main.java.Util.FileUtil;
 import main.java.Util.TrecEvalUtil;
+import main.java.argument_parsers.CascadeArgs;
+import main.java.argument_parsers.EntityRankArgs;
+import main.java.argument_parsers.ExpansionArgs;
+import main.java.argument_parsers.FusionArgs;
 import main.java.argument_parsers.Neo4jArgs;
 import main.java.argument_parsers.RankLibArgs;
 import main.java.argument_parsers.SQLiteArgs;
+import main.java.argument_parsers.SdmArgs;
+import main.java.argument_parsers.ServerArgs;
 import main.java.argument_parsers.TrecCarArgs;
+import main.java.argument_parsers.WindowArgs;
 import main.java.database.CorpusDB;
 import main.java.database.CorpusGraph;
 import main.java.indexer.ParaEntityIndexr.ParaEntityIndexer;
+import main.java.indexer.ParaEntityIndexr.configs.TrecCarRepr;
+import main.java.query_generation.BasicBooleanQueryGenerator;
+import main.java.query_generation.BasicEnglishQueryGenerator;
+import main.java.query_generation.BigramQueryGenerator;
+import main.java.query_generation.HierarchicalQueryBuilder;
+import main.java.query_generation.QueryExpander;
+import main.java.query_generation.QueryGenerator;
+import main.java.query_generation.SdmQueryGenerator;
+import main.java.query_generation.WindowQueryGenerator;
+import main.java.ranking.LatencyStats;
+import main.java.ranking.QueryRanker;
+import main.java.ranking.RankResult;
+import main.java.ranking.RunFileSink;
+import main.java.server.QueryServer;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.PropertyConfigurator;
+import org.apache.lucene.index.IndexReader;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -38,6 +65,7 @@ public class PrototypeMain {
         public final SQLiteArgs sqlite_args;
         public final TrecCarArgs trec_car_args;
         public final RankLibArgs rank_lib_args;
+        public final ServerArgs server_args;
 
         private final Logger logger = LoggerFactory.getLogger(PrototypeArgs.class);
 
@@ -69,6 +97,7 @@ public class PrototypeMain {
             rank_lib_args = new RankLibArgs(jsonConf);
 
             method_specific_args = jsonConf.getJSONObject("methods");
+            server_args = new ServerArgs(jsonConf);
         }
 
         /* Copy constructor so we don't have to parse things twice. */
@@ -78,6 +107,7 @@ public class PrototypeMain {
             trec_car_args = toCopy.trec_car_args;
             method_specific_args = toCopy.method_specific_args;
             rank_lib_args = toCopy.rank_lib_args;
+            server_args = toCopy.server_args;
         }
 
         /**
@@ -98,15 +128,22 @@ public class PrototypeMain {
                     "\n\t}" +
                     "\n\t\"methods\": { (If you don't want to run a certain method, don't include it here)" +
                     "\n\t\t\"baseline\": {}," +
-                    "\n\t\t\"bm25PlusPlus\": {}" +
-                    "\n\t\t\"sdm\": {}" +
-                    "\n\t}" +
+                    "\n\t\t\"bm25PlusPlus\": {}," +
+                    SdmArgs.usage + "," +
+                    WindowArgs.usage + "," +
+                    CascadeArgs.usage + "," +
+                    EntityRankArgs.usage + "," +
+                    FusionArgs.usage + "," +
+                    ExpansionArgs.usage +
+                    "\n\t}," +
+                    ServerArgs.usage +
                     "\n}\n";
         }
     }
 
     /**
      * Runs each of the methods specified in the configuration, and evaluates the results with trec_eval.
+     * Usage: PrototypeMain <config> [serve | rank_outlines <outline file> <run file> [number of results] [generator]]
      * @return A mapping of method names to their evaluation results.
      */
 
@@ -141,12 +178,38 @@ public class PrototypeMain {
         try {
             if(protoArgs.trec_car_args.index_args.build_indexes) {
                 new ParaEntityIndexer(protoArgs.trec_car_args.index_args.paragraph_index,
-                        protoArgs.trec_car_args.paragraph_corpus);
+                        protoArgs.trec_car_args.paragraph_corpus,
+                        protoArgs.trec_car_args.index_args.paragraph_shards);
             }
         } catch(IOException io) {
             logger.error("Failed to build index: " + io.getMessage());
         }
 
+        //**************************** Rank outlines ****************************/
+        if(args.length > 3 && args[1].equals("rank_outlines")) {
+            try {
+                rankOutlines(protoArgs, args[2], args[3], (args.length > 4) ? Integer.parseInt(args[4]) : 100,
+                        (args.length > 5) ? args[5] : "basic");
+            } catch(IOException | IllegalStateException | IllegalArgumentException e) {
+                logger.error("Unable to rank outlines: " + e.getMessage());
+            }
+            LatencyStats.dump();
+            return;
+        }
+
+        //**************************** Serve ****************************/
+        //The server only searches the indexes, so it doesn't wait on the corpus database or graph.
+        if(args.length > 1 && args[1].equals("serve")) {
+            try {
+                QueryServer server = new QueryServer(protoArgs);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5)));
+            } catch(IOException | IllegalStateException | IllegalArgumentException e) {
+                logger.error("Unable to start query server: " + e.getMessage());
+            }
+            //The server's listener thread keeps the process running until it is stopped.
+            return;
+        }
+
         //**************************** Build Corpus DB ****************************/
         SQLiteArgs sqLiteArgs = protoArgs.sqlite_args;
         CorpusDB corpusDB = CorpusDB.getInstance();
@@ -186,6 +249,78 @@ public class PrototypeMain {
             return;
         }
 
+        LatencyStats.dump();
     }
-}
 
+    /**
+     * Names of the query generators that can be selected for ranking.
+     */
+    public static final List<String> GENERATORS = Arrays.asList("basic", "english", "bigram", "window", "sdm");
+
+    /**
+     * @param name One of GENERATORS
+     * @param methodsConf Method specific configuration the generator's parameters are read from
+     * @param indexReader Reader of the index the queries will be run against
+     * @return The named query generator.
+     */
+    public static QueryGenerator createGenerator(String name, JSONObject methodsConf, IndexReader indexReader) {
+        switch(name) {
+            case "basic":
+                return new BasicBooleanQueryGenerator();
+            case "english":
+                return new BasicEnglishQueryGenerator();
+            case "bigram":
+                return new BigramQueryGenerator();
+            case "window":
+                return new WindowQueryGenerator(indexReader, new WindowArgs(methodsConf));
+            case "sdm":
+                return new SdmQueryGenerator(new SdmArgs(methodsConf));
+            default:
+                throw new IllegalArgumentException("Unknown generator " + name + ", expected one of " + GENERATORS);
+        }
+    }
+
+    /**
+     * Ranks paragraphs for every section of every page of an outline file with hierarchical queries, and writes the
+     * rankings to a run file. Each page's section queries are built with shared heading prefixes and ranked together.
+     * @param outlineLoc Outline file (cbor)
+     * @param runLoc Run file to write, gzipped if it ends in .gz
+     * @param nResults Number of results per section
+     * @param generatorName Generator of the section queries, one of GENERATORS
+     */
+    private static void rankOutlines(PrototypeArgs protoArgs, String outlineLoc, String runLoc, int nResults,
+                                     String generatorName) throws IOException {
+        TrecCarArgs.IndexArgs indexArgs = protoArgs.trec_car_args.index_args;
+        String dataField = TrecCarRepr.TrecCarSearchField.Text.name();
+        QueryRanker ranker = new QueryRanker(indexArgs.paragraph_index, indexArgs.section_index,
+                indexArgs.entity_index, TrecCarRepr.TrecCarSearchField.Id.name(), dataField,
+                QueryRanker.ContentType.PASSAGE, indexArgs.warmup_args, indexArgs.segment_search_threads);
+        if(!indexArgs.candidate_cache_dir.isEmpty())
+            ranker.enableCandidateCache(Paths.get(indexArgs.candidate_cache_dir), indexArgs.candidate_cache_mb << 20);
+        ranker.warm();
+        HierarchicalQueryBuilder builder = new HierarchicalQueryBuilder(createGenerator(generatorName,
+                protoArgs.getMethodSpecificArgs(), ranker.getIndexSearcher().getIndexReader()), dataField);
+
+        ExpansionArgs expansionArgs = new ExpansionArgs(protoArgs.getMethodSpecificArgs());
+        CorpusDB corpusDB = null;
+        if(expansionArgs.method.equals("entity") && expansionArgs.anchor_terms > 0) {
+            corpusDB = CorpusDB.getInstance();
+            corpusDB.connect(protoArgs.sqlite_args.db_loc);
+        }
+        QueryExpander expander = expansionArgs.createExpander(expansionArgs.method, corpusDB);
+
+        try(FileInputStream outlines = new FileInputStream(outlineLoc);
+            RunFileSink sink = new RunFileSink(Paths.get(runLoc), "hierarchical", runLoc.endsWith(".gz"), 64)) {
+            long sequence = 0;
+            for(Data.Page page : DeserializeData.iterableAnnotations(outlines))
+                for(List<RankResult> ranking : ranker.rankQueries(nResults, builder.build(page), expander))
+                    sink.submit(sequence++, ranking);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing " + runLoc);
+        } finally {
+            if(corpusDB != null)
+                corpusDB.disconnect();
+        }
+    }
+}
@@ -1,46 +1,77 @@
 package main.java.Tokenizers;
 
 import main.java.query_generation.QueryGenerator;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.LowerCaseFilter;
 import org.apache.lucene.analysis.StopFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.en.EnglishPossessiveFilter;
 import org.apache.lucene.analysis.en.PorterStemFilter;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.LinkedList;
 import java.util.List;
 
 public class EnglishTokenizer {
 
-    public static List<String> tokenize(String text, String dataFieldName)  {
-        StandardAnalyzer analyzer = new StandardAnalyzer();
+    //QueryGenerator.STOP_WORDS as a set that can be checked against a term buffer without creating a String.
+    private static final CharArraySet STOP_WORD_SET = new CharArraySet(QueryGenerator.STOP_WORDS, false);
+
+    /**
+     * Receives each token of a text. The buffer is reused for the next token, so copy what you need to keep.
+     */
+    public interface TokenConsumer {
+        void accept(char[] buffer, int length);
+    }
 
-        //Parse out the query
-        TokenStream tokenStream = analyzer.tokenStream(dataFieldName, new StringReader(text));
-        tokenStream =  new StopFilter(tokenStream, StandardAnalyzer.STOP_WORDS_SET);
-        tokenStream = new EnglishPossessiveFilter(tokenStream);
-        tokenStream = new PorterStemFilter(tokenStream);
+    /**
+     * Standard tokenization, stop word removal, possessive removal and Porter stemming, followed by removal of stemmed
+     * tokens that are in QueryGenerator.STOP_WORDS. The analyzer keeps one set of components per thread, so the
+     * pipeline is built once per thread and reused for every call.
+     */
+    private static final Analyzer ANALYZER = new Analyzer() {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            StandardTokenizer source = new StandardTokenizer();
+            TokenStream tokenStream = new StandardFilter(source);
+            tokenStream = new LowerCaseFilter(tokenStream);
+            tokenStream = new StopFilter(tokenStream, StandardAnalyzer.STOP_WORDS_SET);
+            tokenStream = new EnglishPossessiveFilter(tokenStream);
+            tokenStream = new PorterStemFilter(tokenStream);
+            tokenStream = new StopFilter(tokenStream, STOP_WORD_SET);
+            return new TokenStreamComponents(source, tokenStream);
+        }
+    };
+
+    public static List<String> tokenize(String text, String dataFieldName)  {
         LinkedList<String> tokens = new LinkedList<>();
+        forEachToken(text, dataFieldName, (buffer, length) -> tokens.add(new String(buffer, 0, length)));
+        return tokens;
+    }
 
-        try {
+    /**
+     * Tokenizes the text like {@link #tokenize(String, String)}, but hands each token to the consumer instead of
+     * building a list of Strings.
+     * @param text Text to tokenize
+     * @param dataFieldName Field the text belongs to
+     * @param consumer Called with each token in order
+     */
+    public static void forEachToken(String text, String dataFieldName, TokenConsumer consumer) {
+        try (TokenStream tokenStream = ANALYZER.tokenStream(dataFieldName, text)) {
+            CharTermAttribute termAtt = tokenStream.addAttribute(CharTermAttribute.class);
             tokenStream.reset();
 
-            while(tokenStream.incrementToken()) {
-                String token = tokenStream.getAttribute(CharTermAttribute.class).toString();
-                if(!QueryGenerator.STOP_WORDS.contains(token))
-                    tokens.add(token);
-            }
+            while(tokenStream.incrementToken())
+                consumer.accept(termAtt.buffer(), termAtt.length());
 
             tokenStream.end();
-            tokenStream.close();
         } catch(IOException io) {
             throw new IllegalStateException("Failed to tokenize words.");
         }
-
-
-        return tokens;
     }
 }
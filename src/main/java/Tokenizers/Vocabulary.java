@@ -0,0 +1,299 @@
+package main.java.Tokenizers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Interns tokens to dense int ids. Lookups of known tokens don't allocate and don't block: they probe an
+ * open-addressing table under an optimistic read stamp, and only new tokens take the write lock. Pairs of ids (e.g.
+ * bigrams or window pairs) are encoded as a single long instead of a concatenated string.
+ */
+public class Vocabulary {
+    //Vocabulary shared by the tokenizers and query generators of this process.
+    private static volatile Vocabulary shared = new Vocabulary();
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    /**
+     * Table arrays are replaced together when the table grows. slots holds id + 1 of the token in each slot (0 is
+     * empty), terms holds the token of each id.
+     */
+    private static class Table {
+        final int[] slots;
+        final char[][] terms;
+
+        Table(int capacity, int termCapacity) {
+            slots = new int[capacity];
+            terms = new char[termCapacity][];
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table;
+    private volatile int size = 0;
+
+    public Vocabulary() {
+        this(INITIAL_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize Number of tokens the vocabulary should hold without growing
+     */
+    public Vocabulary(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        table = new Table(capacity, capacity / 2);
+    }
+
+    /**
+     * @return The vocabulary shared by the tokenizers and query generators.
+     */
+    public static Vocabulary getShared() {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared vocabulary with one previously saved with {@link #save(Path)}, so ids stay stable across runs.
+     * @param vocabularyFile Saved vocabulary
+     */
+    public static void loadShared(Path vocabularyFile) throws IOException {
+        shared = load(vocabularyFile);
+    }
+
+    /**
+     * @param text Text to tokenize with {@link EnglishTokenizer}
+     * @return The ids of the tokens of the text in the shared vocabulary.
+     */
+    public static int[] tokenizeToIds(String text) {
+        return shared.toIds(text);
+    }
+
+    /**
+     * @param text Text to tokenize with {@link EnglishTokenizer}
+     * @return The ids of the tokens of the text, adding new tokens to this vocabulary.
+     */
+    public int[] toIds(String text) {
+        IdCollector ids = new IdCollector();
+        EnglishTokenizer.forEachToken(text, "", ids);
+        return ids.toArray();
+    }
+
+    /**
+     * Collects the ids of the tokens handed to it into a growing array.
+     */
+    private class IdCollector implements EnglishTokenizer.TokenConsumer {
+        private int[] ids = new int[16];
+        private int count = 0;
+
+        @Override
+        public void accept(char[] buffer, int length) {
+            if(count == ids.length)
+                ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = getOrAdd(buffer, 0, length);
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ids, count);
+        }
+    }
+
+    /**
+     * @param token Token to look up
+     * @return The id of the token, or -1 if it isn't in the vocabulary.
+     */
+    public int getId(String token) {
+        char[] chars = token.toCharArray();
+        return getId(chars, 0, chars.length);
+    }
+
+    /**
+     * @param buffer Buffer holding the token
+     * @param offset Start of the token in the buffer
+     * @param length Length of the token
+     * @return The id of the token, or -1 if it isn't in the vocabulary.
+     */
+    public int getId(char[] buffer, int offset, int length) {
+        int hash = hash(buffer, offset, length);
+        long stamp = lock.tryOptimisticRead();
+        int id = probe(table, buffer, offset, length, hash);
+        if(lock.validate(stamp))
+            return id;
+
+        stamp = lock.readLock();
+        try {
+            return probe(table, buffer, offset, length, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param token Token to intern
+     * @return The id of the token, which is added to the vocabulary if it is new.
+     */
+    public int getOrAdd(String token) {
+        char[] chars = token.toCharArray();
+        return getOrAdd(chars, 0, chars.length);
+    }
+
+    /**
+     * @param buffer Buffer holding the token, e.g. a CharTermAttribute buffer. It is copied if the token is new.
+     * @param offset Start of the token in the buffer
+     * @param length Length of the token
+     * @return The id of the token, which is added to the vocabulary if it is new.
+     */
+    public int getOrAdd(char[] buffer, int offset, int length) {
+        int id = getId(buffer, offset, length);
+        if(id >= 0)
+            return id;
+
+        int hash = hash(buffer, offset, length);
+        long stamp = lock.writeLock();
+        try {
+            Table current = table;
+            int mask = current.slots.length - 1;
+            for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int entry = current.slots[slot];
+                if(entry == 0)
+                    break;
+                if(equals(current.terms[entry - 1], buffer, offset, length))
+                    return entry - 1;
+            }
+
+            id = size;
+            if(id == current.terms.length || (id + 1) * 2 > current.slots.length)
+                current = grow(current);
+            current.terms[id] = Arrays.copyOfRange(buffer, offset, offset + length);
+            insert(current, id, hash);
+            size = id + 1;
+            return id;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param id Token id
+     * @return The token with the given id.
+     */
+    public String getToken(int id) {
+        if(id < 0 || id >= size)
+            throw new IllegalArgumentException("Token id is not in the vocabulary: " + id);
+        return new String(table.terms[id]);
+    }
+
+    /**
+     * @return Number of tokens in the vocabulary.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param first Id of the first token
+     * @param second Id of the second token
+     * @return The ordered pair encoded as a long.
+     */
+    public static long pair(int first, int second) {
+        return ((long) first << 32) | (second & 0xffffffffL);
+    }
+
+    public static int first(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    public static int second(long pair) {
+        return (int) pair;
+    }
+
+    /**
+     * Writes the tokens in id order so that loading the file reproduces the same ids.
+     * @param vocabularyFile File to write to
+     */
+    public void save(Path vocabularyFile) throws IOException {
+        long stamp = lock.readLock();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(vocabularyFile)))) {
+            Table current = table;
+            int count = size;
+            out.writeInt(count);
+            for(int id = 0; id < count; id++)
+                out.writeUTF(new String(current.terms[id]));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @param vocabularyFile File written by {@link #save(Path)}
+     * @return The vocabulary stored in the file.
+     */
+    public static Vocabulary load(Path vocabularyFile) throws IOException {
+        Vocabulary vocabulary = new Vocabulary();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(vocabularyFile)))) {
+            int count = in.readInt();
+            for(int id = 0; id < count; id++)
+                vocabulary.getOrAdd(in.readUTF());
+        }
+        return vocabulary;
+    }
+
+    private static int probe(Table current, char[] buffer, int offset, int length, int hash) {
+        int[] slots = current.slots;
+        char[][] terms = current.terms;
+        int mask = slots.length - 1;
+        for(int slot = hash & mask, probes = 0; probes < slots.length; slot = (slot + 1) & mask, probes++) {
+            int entry = slots[slot];
+            if(entry == 0)
+                return -1;
+            //Guard against a torn read during an optimistic probe, the stamp validation discards the result.
+            if(entry - 1 >= terms.length || terms[entry - 1] == null)
+                return -1;
+            if(equals(terms[entry - 1], buffer, offset, length))
+                return entry - 1;
+        }
+        return -1;
+    }
+
+    private Table grow(Table current) {
+        Table grown = new Table(current.slots.length * 2, current.terms.length * 2);
+        System.arraycopy(current.terms, 0, grown.terms, 0, size);
+        for(int id = 0; id < size; id++)
+            insert(grown, id, hash(grown.terms[id], 0, grown.terms[id].length));
+        table = grown;
+        return grown;
+    }
+
+    private static void insert(Table current, int id, int hash) {
+        int mask = current.slots.length - 1;
+        int slot = hash & mask;
+        while(current.slots[slot] != 0)
+            slot = (slot + 1) & mask;
+        current.slots[slot] = id + 1;
+    }
+
+    private static boolean equals(char[] term, char[] buffer, int offset, int length) {
+        if(term.length != length)
+            return false;
+        for(int i = 0; i < length; i++)
+            if(term[i] != buffer[offset + i])
+                return false;
+        return true;
+    }
+
+    private static int hash(char[] buffer, int offset, int length) {
+        int h = 0;
+        for(int i = offset; i < offset + length; i++)
+            h = 31 * h + buffer[i];
+        //Spread the bits so that linear probing doesn't cluster on similar tokens.
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
@@ -0,0 +1,135 @@
+package main.java.Util;
+
+import java.util.Arrays;
+
+/**
+ * Map from non-negative int keys (e.g. vocabulary ids) to float values, stored in open-addressing arrays so adding to
+ * a value doesn't box or allocate. Not thread safe.
+ */
+public class IntFloatMap {
+    private static final int EMPTY = -1;
+
+    public interface EntryConsumer {
+        void accept(int key, float value);
+    }
+
+    private int[] keys;
+    private float[] values;
+    private int size = 0;
+
+    public IntFloatMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize Number of keys the map should hold without growing
+     */
+    public IntFloatMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new float[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * @return The value of the key, or 0 if it isn't in the map.
+     */
+    public float get(int key) {
+        if(key < 0)
+            return 0f;
+        int slot = find(keys, key);
+        return (keys[slot] == key) ? values[slot] : 0f;
+    }
+
+    public boolean containsKey(int key) {
+        return key >= 0 && keys[find(keys, key)] == key;
+    }
+
+    /**
+     * Adds delta to the value of the key, inserting the key with value delta if it isn't in the map.
+     * @return The new value.
+     */
+    public float add(int key, float delta) {
+        if(key < 0)
+            throw new IllegalArgumentException("Keys must not be negative: " + key);
+        int slot = find(keys, key);
+        if(keys[slot] == key)
+            return values[slot] += delta;
+
+        if((size + 1) * 2 > keys.length) {
+            grow();
+            slot = find(keys, key);
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        size++;
+        return delta;
+    }
+
+    /**
+     * Sets the value of the key to the larger of its current value and the given one.
+     * @return The new value.
+     */
+    public float max(int key, float value) {
+        if(key < 0)
+            throw new IllegalArgumentException("Keys must not be negative: " + key);
+        int slot = find(keys, key);
+        if(keys[slot] == key)
+            return values[slot] = Math.max(values[slot], value);
+        return add(key, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(EntryConsumer consumer) {
+        for(int slot = 0; slot < keys.length; slot++)
+            if(keys[slot] != EMPTY)
+                consumer.accept(keys[slot], values[slot]);
+    }
+
+    /**
+     * @return The keys of the map, in no particular order.
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int i = 0;
+        for(int key : keys)
+            if(key != EMPTY)
+                result[i++] = key;
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        float[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new float[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for(int slot = 0; slot < oldKeys.length; slot++) {
+            if(oldKeys[slot] == EMPTY)
+                continue;
+            int newSlot = find(keys, oldKeys[slot]);
+            keys[newSlot] = oldKeys[slot];
+            values[newSlot] = oldValues[slot];
+        }
+    }
+
+    /**
+     * @return The slot holding the key, or the empty slot where it would be inserted.
+     */
+    private static int find(int[] table, int key) {
+        int mask = table.length - 1;
+        int hash = key * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while(table[slot] != EMPTY && table[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+}
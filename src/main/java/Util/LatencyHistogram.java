@@ -0,0 +1,107 @@
+package main.java.Util;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Buckets are log-linear: every power of two range is split into
+ * SUB_BUCKETS equal buckets, so percentiles are accurate to within 1 / SUB_BUCKETS of the value (about 6%) over the
+ * whole range of a long, in a fixed array of counters. Recording is a few bit operations and one atomic increment.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total_nanos = new LongAdder();
+    private final LongAccumulator max_nanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param nanos Latency to record, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        total_nanos.add(nanos);
+        max_nanos.accumulate(nanos);
+    }
+
+    /**
+     * @return Number of recorded latencies.
+     */
+    public long getCount() {
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    public long getMaxNanos() {
+        return max_nanos.get();
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return The upper bound of the bucket holding the percentile, or 0 if nothing was recorded. Taken from a
+     * snapshot that may miss latencies recorded concurrently.
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if(count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= rank)
+                return Math.min(upperBound(i), getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * @return Count, mean, p50, p95, p99 and max in milliseconds.
+     */
+    public JSONObject toJson() {
+        long count = getCount();
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("mean_ms", (count == 0) ? 0 : total_nanos.sum() / 1e6 / count);
+        json.put("p50_ms", getPercentileNanos(50) / 1e6);
+        json.put("p95_ms", getPercentileNanos(95) / 1e6);
+        json.put("p99_ms", getPercentileNanos(99) / 1e6);
+        json.put("max_ms", getMaxNanos() / 1e6);
+        return json;
+    }
+
+    private static int bucket(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The largest value that falls in the bucket.
+     */
+    private static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lower = (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
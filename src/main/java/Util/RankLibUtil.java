@@ -1,6 +1,11 @@
 package main.java.Util;
 
 import main.java.argument_parsers.RankLibArgs;
+import main.java.learning_to_rank.FeatureStore;
+import main.java.learning_to_rank.LambdaMart;
+import main.java.learning_to_rank.LtrTrainer;
+import main.java.learning_to_rank.TrainingQuery;
+import main.java.ranking.RerankModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +28,9 @@ public class RankLibUtil {
     public static final String TRAINING_DATA_DIR = "ranklib/training_data";
     public static final String MODEL_DIR = "ranklib/models";
 
+    /* Cut off of the @k metrics when training in process, RankLib's default. */
+    private static final int METRIC_K = 10;
+
     /**
      * Type of model to train.
      */
@@ -54,31 +62,169 @@ public class RankLibUtil {
      */
     public static class RankLibQueryInfo {
 
+        /**
+         * Features of the documents of a query in one row major array, a row per document ordinal, with a bit per value
+         * marking the features that are present. Rows and columns grow by doubling, so neither the number of documents
+         * nor of features has to be known up front. A resize moves every row, so every access locks the block and the
+         * documents of a query may be filled from different threads.
+         */
+        public static class FeatureBlock {
+            private double[] values;
+            private long[] present;
+            private int row_capacity, column_capacity;
+            private int n_rows = 0;
+
+            /**
+             * @param rows Expected number of documents
+             * @param columns Expected number of features
+             */
+            public FeatureBlock(int rows, int columns) {
+                row_capacity = Math.max(rows, 1);
+                column_capacity = Math.max(columns, 1);
+                values = new double[row_capacity * column_capacity];
+                present = new long[words(values.length)];
+            }
+
+            /**
+             * @return Ordinal of a new row with no features.
+             */
+            synchronized int addRow() {
+                if(n_rows == row_capacity)
+                    resize(row_capacity * 2, column_capacity);
+                return n_rows++;
+            }
+
+            /**
+             * @param feature Feature number, from 1
+             * @return Whether or not the feature is present, even if its value is NaN.
+             */
+            synchronized boolean has(int row, int feature) {
+                return feature >= 1 && feature <= column_capacity && isPresent(row * column_capacity + feature - 1);
+            }
+
+            /**
+             * @param feature Feature number, from 1
+             * @return The value of the feature, NaN if it is missing.
+             */
+            synchronized double get(int row, int feature) {
+                return has(row, feature) ? values[row * column_capacity + feature - 1] : Double.NaN;
+            }
+
+            /**
+             * Stores the value of a feature, which may be NaN, and marks it present.
+             * @param feature Feature number, from 1
+             */
+            synchronized void set(int row, int feature, double value) {
+                if(feature < 1)
+                    throw new IllegalArgumentException("Feature numbers start at 1: " + feature);
+                if(feature > column_capacity)
+                    resize(row_capacity, Math.max(feature, column_capacity * 2));
+                int index = row * column_capacity + feature - 1;
+                values[index] = value;
+                present[index >>> 6] |= 1L << index;
+            }
+
+            /**
+             * Marks a feature missing.
+             * @param feature Feature number, from 1
+             */
+            synchronized void clear(int row, int feature) {
+                if(feature >= 1 && feature <= column_capacity) {
+                    int index = row * column_capacity + feature - 1;
+                    present[index >>> 6] &= ~(1L << index);
+                }
+            }
+
+            /**
+             * Fills the array with features 1 to its length. Missing features are 0.
+             */
+            synchronized void copyRow(int row, double[] dest) {
+                for(int i = 0; i < dest.length; i++)
+                    dest[i] = has(row, i + 1) ? values[row * column_capacity + i] : 0;
+            }
+
+            /**
+             * @return The highest feature number present in the row, 0 if none is.
+             */
+            synchronized int highestFeature(int row) {
+                for(int feature = column_capacity; feature >= 1; feature--)
+                    if(isPresent(row * column_capacity + feature - 1))
+                        return feature;
+                return 0;
+            }
+
+            /**
+             * @return The number of features present in the row.
+             */
+            synchronized int count(int row) {
+                int count = 0;
+                for(int index = row * column_capacity; index < (row + 1) * column_capacity; index++)
+                    if(isPresent(index))
+                        count++;
+                return count;
+            }
+
+            private boolean isPresent(int index) {
+                return (present[index >>> 6] & (1L << index)) != 0;
+            }
+
+            private static int words(int bits) {
+                return (bits + 63) >>> 6;
+            }
+
+            private void resize(int rows, int columns) {
+                double[] resizedValues = new double[rows * columns];
+                long[] resizedPresent = new long[words(resizedValues.length)];
+                for(int row = 0; row < n_rows; row++) {
+                    System.arraycopy(values, row * column_capacity, resizedValues, row * columns, column_capacity);
+                    for(int column = 0; column < column_capacity; column++) {
+                        int index = row * columns + column;
+                        if(isPresent(row * column_capacity + column))
+                            resizedPresent[index >>> 6] |= 1L << index;
+                    }
+                }
+                values = resizedValues;
+                present = resizedPresent;
+                row_capacity = rows;
+                column_capacity = columns;
+            }
+        }
+
         /**
          * Represents the information for a given document or entity. It contains a mapping of feature numbers to
-         * feature values, and an indicator of whether or not the document or entity is relevant.
+         * feature values, and an indicator of whether or not the document or entity is relevant. The features are a
+         * row of a FeatureBlock, shared by the documents of a query when added with RankLibQueryInfo.addDocument.
          */
         public static class RelevanceFeaturePair {
-            //Mapping of feature number to feature value
-            public final Map<Integer, Double> features = new HashMap<>();
+            //Mapping of feature number to feature value, a view of the row in the feature block
+            public final Map<Integer, Double> features = new FeatureView();
 
             //1 if the document is relevant, else 0
             public final int relevance;
 
             private int num_features = -1;
 
+            private final FeatureBlock block;
+            private final int row;
+
             /**
              * @param rel The relevance of the document to the query.
              */
-            public RelevanceFeaturePair(int rel) { relevance = rel; }
+            public RelevanceFeaturePair(int rel) { this(rel, -1, new FeatureBlock(1, 8)); }
 
             /**
              * @param rel The relevance of the document to the query.
              * @param numFeatures The expected number of features
              */
             public RelevanceFeaturePair(int rel, int numFeatures) {
+                this(rel, numFeatures, new FeatureBlock(1, numFeatures));
+            }
+
+            private RelevanceFeaturePair(int rel, int numFeatures, FeatureBlock featureBlock) {
                 relevance = rel;
                 num_features = numFeatures;
+                block = featureBlock;
+                row = block.addRow();
             }
 
             /**
@@ -86,21 +232,48 @@ public class RankLibUtil {
              * less than the max value are non-existent, a feature value of 0 is placed in that index of the array.
              */
             public double[] getFeatures() {
-                int nFeats = num_features;
-                if(nFeats < 0) {
-                    OptionalInt max = features.keySet().stream().mapToInt(Integer::intValue).max();
-                    if(max.isPresent())
-                        nFeats = max.getAsInt();
-                }
+                int nFeats = (num_features < 0) ? block.highestFeature(row) : num_features;
                 if(nFeats > 0) {
                     double[] res = new double[nFeats];
-                    features.forEach((index, feature)-> res[index-1] = feature);
+                    copyFeatures(res);
                     return res;
                 } else {
                     logger.error("Call to getFeatures was made when no features were present.");
                 }
                 return new double[0];
             }
+
+            /**
+             * Fills the array with features 1 to its length, without allocating. Missing features are 0.
+             */
+            public void copyFeatures(double[] dest) {
+                block.copyRow(row, dest);
+            }
+
+            /**
+             * @param featureIndex Feature number, from 1
+             * @return The feature value, NaN if the feature is missing. Use hasFeature to tell a missing feature from
+             * one added as NaN.
+             */
+            public double getFeature(int featureIndex) {
+                return block.get(row, featureIndex);
+            }
+
+            /**
+             * @param featureIndex Feature number, from 1
+             * @return Whether or not the feature was added.
+             */
+            public boolean hasFeature(int featureIndex) {
+                return block.has(row, featureIndex);
+            }
+
+            /**
+             * @return The highest feature number present, 0 if there are no features.
+             */
+            public int getHighestFeature() {
+                return block.highestFeature(row);
+            }
+
             /**
              * Adds a new feature to the feature map. NOTE: It is assumed that the features here start at index 1
              * because that is how RankLib stores features in the output model. So your first feature should be at index 1.
@@ -108,7 +281,96 @@ public class RankLibUtil {
              * @param value Feature value
              */
             public void addFeature(int featureIndex, double value) {
-                features.put(featureIndex, value);
+                block.set(row, featureIndex, value);
+            }
+
+            /**
+             * Map view of the features present in the row.
+             */
+            private class FeatureView extends AbstractMap<Integer, Double> {
+                @Override
+                public Double get(Object key) {
+                    if(!(key instanceof Integer))
+                        return null;
+                    synchronized(block) {
+                        return block.has(row, (Integer) key) ? block.get(row, (Integer) key) : null;
+                    }
+                }
+
+                @Override
+                public boolean containsKey(Object key) {
+                    return (key instanceof Integer) && block.has(row, (Integer) key);
+                }
+
+                @Override
+                public Double put(Integer key, Double value) {
+                    synchronized(block) {
+                        Double previous = get(key);
+                        block.set(row, key, value);
+                        return previous;
+                    }
+                }
+
+                @Override
+                public Double remove(Object key) {
+                    synchronized(block) {
+                        Double previous = get(key);
+                        if(previous != null)
+                            block.clear(row, (Integer) key);
+                        return previous;
+                    }
+                }
+
+                @Override
+                public int size() {
+                    return block.count(row);
+                }
+
+                @Override
+                public Set<Entry<Integer, Double>> entrySet() {
+                    return new AbstractSet<Entry<Integer, Double>>() {
+                        @Override
+                        public Iterator<Entry<Integer, Double>> iterator() {
+                            return new Iterator<Entry<Integer, Double>>() {
+                                private final int highest = block.highestFeature(row);
+                                private int next = advance(1), last = -1;
+
+                                private int advance(int feature) {
+                                    while(feature <= highest && !block.has(row, feature))
+                                        feature++;
+                                    return feature;
+                                }
+
+                                @Override
+                                public boolean hasNext() {
+                                    return next <= highest;
+                                }
+
+                                @Override
+                                public Entry<Integer, Double> next() {
+                                    if(!hasNext())
+                                        throw new NoSuchElementException();
+                                    last = next;
+                                    next = advance(next + 1);
+                                    return new AbstractMap.SimpleImmutableEntry<>(last, block.get(row, last));
+                                }
+
+                                @Override
+                                public void remove() {
+                                    if(last < 0)
+                                        throw new IllegalStateException();
+                                    block.clear(row, last);
+                                    last = -1;
+                                }
+                            };
+                        }
+
+                        @Override
+                        public int size() {
+                            return FeatureView.this.size();
+                        }
+                    };
+                }
             }
         }
 
@@ -119,15 +381,44 @@ public class RankLibUtil {
         //Numerical id previously parsed from the qrel (because RankLib only likes numbers).
         public final int numerical_id;
 
+        //Features of the documents added with addDocument
+        private final FeatureBlock feature_block;
+
         /**
          * @param queryId Original query id
          * @param numericalId Numerical query id
          * @param queryText Text of the query
          */
         public RankLibQueryInfo(String queryId, int numericalId, String queryText) {
+            this(queryId, numericalId, queryText, 16, 8);
+        }
+
+        /**
+         * @param queryId Original query id
+         * @param numericalId Numerical query id
+         * @param queryText Text of the query
+         * @param expectedDocs Expected number of documents, to size the feature block
+         * @param expectedFeatures Expected number of features, to size the feature block
+         */
+        public RankLibQueryInfo(String queryId, int numericalId, String queryText, int expectedDocs,
+                                int expectedFeatures) {
             query_id = queryId;
             query_text = queryText;
             numerical_id = numericalId;
+            feature_block = new FeatureBlock(expectedDocs, expectedFeatures);
+        }
+
+        /**
+         * Adds a document whose features are stored in the query's feature block.
+         * @param docId Document or entity id
+         * @param relevance The relevance of the document to the query
+         * @param numFeatures The expected number of features, -1 if unknown
+         * @return The document's data, to add features to.
+         */
+        public RelevanceFeaturePair addDocument(String docId, int relevance, int numFeatures) {
+            RelevanceFeaturePair doc = new RelevanceFeaturePair(relevance, numFeatures, feature_block);
+            doc_data.put(docId, doc);
+            return doc;
         }
     }
 
@@ -179,9 +470,12 @@ public class RankLibUtil {
         //Best value of the metric optimized for.
         public final double best_metric;
 
-        //Model produced by the best fold
+        //Linear model produced by the best fold, null if it is a tree ensemble
         public final TrainedModel model;
 
+        //Model produced by the best fold, linear or a tree ensemble
+        public final RerankModel rerank_model;
+
         /**
          * @param bFold Number of the best fold
          * @param bMetric Best value of the metric optimized for.
@@ -190,12 +484,19 @@ public class RankLibUtil {
         public FoldData(int bFold, double bMetric, String modelLoc) {
             best_fold = bFold;
             best_metric = bMetric;
-            model = new TrainedModel(modelLoc);
+            if(LambdaMart.Ensemble.isEnsemble(modelLoc)) {
+                model = null;
+                rerank_model = LambdaMart.Ensemble.load(modelLoc);
+            } else {
+                model = new TrainedModel(modelLoc);
+                rerank_model = model::linearCombination;
+            }
         }
     }
 
     /**
-     * Represents a model produced by RankLib. Currently this class only supports coordinate ascent.
+     * Represents a linear model produced by RankLib. Currently this class only supports coordinate ascent. Tree
+     * ensembles are loaded with LambdaMart.Ensemble.load.
      */
     public static class TrainedModel {
         //Mapping of feature numbers to weights
@@ -206,21 +507,16 @@ public class RankLibUtil {
          */
         public TrainedModel(String modelLoc) {
             try {
-                Pattern featurePat = Pattern.compile("(\\d)+[:]([-]?[\\d]+[.][\\d]+)");
+                Pattern featurePat = Pattern.compile("(\\d+)[:]([-]?[\\d]+(?:[.][\\d]+)?(?:[eE][-+]?[\\d]+)?)");
                 Pattern commentPat = Pattern.compile("^##\\s.*");
                 Files.lines(Paths.get(modelLoc)).forEach(line -> {
                     if (!commentPat.matcher(line).matches()) {
                         if(featurePat.matcher(line).find()) {
-                            String [] featureWeights = line.split("\\s");
-                            HashSet<Integer> fids = new HashSet<>();
+                            String [] featureWeights = line.trim().split("\\s+");
                             for(String featWeight : featureWeights) {
                                 Matcher fwm = featurePat.matcher(featWeight);
-                                if(fwm.find()) {
+                                if(fwm.matches()) {
                                     int fNum = Integer.valueOf(fwm.group(1));
-                                    fids.add(fNum);
-                                    if (fids.contains(0)) {
-                                        fNum = fNum + 10;
-                                    }
                                     double weight = Double.valueOf(fwm.group(2));
                                     weights.put(fNum, weight);
                                 } else {
@@ -259,10 +555,20 @@ public class RankLibUtil {
        public int getNumberOfFeatures() {
            return weights.size();
        }
+
+        /**
+         * @param feature Feature number, from 1
+         * @return The weight of the feature, 0 if the model has none.
+         */
+       public double getWeight(int feature) {
+           return weights.getOrDefault(feature, 0.0);
+       }
     }
 
     /**
-     * Trains a learning model using the given training data.
+     * Trains a learning model using the given training data. Coordinate ascent and LambdaMART are trained in process
+     * with LtrTrainer, the other methods by running the RankLib jar. Either way the model of each fold is saved to
+     * MODEL_DIR as f<fold>.<modelOuputName>.
      * @param trainFileName Name of the file to output the model to. The ranklib directory is added before the file name.
      * @param modelOuputName Name of the output model
      * @param lm Learning model to train
@@ -274,6 +580,8 @@ public class RankLibUtil {
     public static FoldData train(RankLibArgs rnkArgs, String updatedQrelLoc, String trainFileName, String modelOuputName, LearningMethod lm,
                              Metric metric, int kFolds, boolean normalize) {
         FileUtil.makeDirectories(new String[]{"ranklib/models"});
+        if(lm == LearningMethod.COORDINATE_ASCENT || lm == LearningMethod.LAMBDA_MART)
+            return trainInProcess(trainFileName, modelOuputName, lm, metric, kFolds, normalize);
 
         StringBuilder args = new StringBuilder();
 
@@ -335,6 +643,30 @@ public class RankLibUtil {
         return new FoldData(bestFold.get(), bestMetric.get(), modelLoc);
     }
 
+    /**
+     * Cross-validates coordinate ascent or LambdaMART with LtrTrainer on a RankLib training file, and saves the
+     * model of each fold in RankLib's format. Relevance is taken from the training file's labels.
+     */
+    private static FoldData trainInProcess(String trainFileName, String modelOuputName, LearningMethod lm,
+                                           Metric metric, int kFolds, boolean normalize) {
+        List<RankLibQueryInfo> queryInfos = FeatureStore.readRankLibText(Paths.get(TRAINING_DATA_DIR, trainFileName));
+        int nFeatures = 0;
+        for(RankLibQueryInfo queryInfo : queryInfos)
+            for(RankLibQueryInfo.RelevanceFeaturePair doc : queryInfo.doc_data.values())
+                nFeatures = Math.max(nFeatures, doc.getHighestFeature());
+        List<TrainingQuery> queries = new ArrayList<>(queryInfos.size());
+        for(RankLibQueryInfo queryInfo : queryInfos)
+            queries.add(TrainingQuery.fromRankLib(queryInfo, nFeatures));
+
+        LtrTrainer.CrossValidation folds = new LtrTrainer(metric, METRIC_K, normalize).crossValidate(lm, queries,
+                kFolds);
+        for(LtrTrainer.Fold fold : folds.folds)
+            LtrTrainer.saveModel(fold.model, MODEL_DIR + File.separator + "f" + fold.fold + "." + modelOuputName);
+
+        String modelLoc = MODEL_DIR + File.separator + "f" + folds.best_fold.fold + "." + modelOuputName;
+        return new FoldData(folds.best_fold.fold, folds.best_fold.test_metric, modelLoc);
+    }
+
     /**
      * Scores and re-ranks the given set of data using a previously generated model.
      * @param modelName Location of the previously generated model
@@ -0,0 +1,117 @@
+package main.java.Util;
+
+/**
+ * Keeps the k int keys with the highest float scores seen so far in a bounded min-heap, so selecting the top k of n
+ * candidates takes O(n log k) time and O(k) memory instead of sorting all of them. Once the heap is full, a candidate
+ * only replaces the lowest kept key if it scores strictly higher. Not thread safe.
+ */
+public class TopKHeap {
+    private final int[] keys;
+    private final float[] scores;
+    private int size = 0;
+
+    /**
+     * @param k Number of keys to keep
+     */
+    public TopKHeap(int k) {
+        if(k < 0)
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        keys = new int[k];
+        scores = new float[k];
+    }
+
+    /**
+     * @param key Candidate key
+     * @param score Score of the candidate
+     * @return Whether or not the candidate is currently in the top k.
+     */
+    public boolean offer(int key, float score) {
+        if(size < keys.length) {
+            keys[size] = key;
+            scores[size] = score;
+            siftUp(size++);
+            return true;
+        }
+        if(size == 0 || score <= scores[0])
+            return false;
+        keys[0] = key;
+        scores[0] = score;
+        siftDown(0);
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The lowest score in the heap, which a candidate has to beat once the heap is full.
+     */
+    public float minScore() {
+        if(size == 0)
+            throw new IllegalStateException("Heap is empty.");
+        return scores[0];
+    }
+
+    /**
+     * Empties the heap.
+     * @return The kept keys, highest score first.
+     */
+    public int[] drainKeys() {
+        return drain(null);
+    }
+
+    /**
+     * Empties the heap.
+     * @param scoresOut Filled with the scores of the returned keys, must hold at least size() values
+     * @return The kept keys, highest score first.
+     */
+    public int[] drain(float[] scoresOut) {
+        int[] result = new int[size];
+        for(int i = size - 1; i >= 0; i--) {
+            result[i] = keys[0];
+            if(scoresOut != null)
+                scoresOut[i] = scores[0];
+            size--;
+            keys[0] = keys[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return result;
+    }
+
+    private void siftUp(int i) {
+        while(i > 0) {
+            int parent = (i - 1) / 2;
+            if(scores[parent] <= scores[i])
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while(true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if(left < size && scores[left] < scores[smallest])
+                smallest = left;
+            if(right < size && scores[right] < scores[smallest])
+                smallest = right;
+            if(smallest == i)
+                return;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,44 @@
+package main.java.argument_parsers;
+
+import org.json.JSONObject;
+
+/**
+ * Configuration of the two stage ranking cascade, read from the "cascade" entry of the methods configuration.
+ */
+public class CascadeArgs {
+    //Number of first stage results that are reranked
+    public final int first_stage_depth;
+
+    //Time the first stage may take before reranking is skipped for the query, 0 for no limit
+    public final long first_stage_budget_ms;
+
+    //Time feature extraction and reranking may take before the first stage ranking is used, 0 for no limit
+    public final long rerank_budget_ms;
+
+    //Whether or not features are sum normalized per query before scoring, as the model was trained
+    public final boolean normalize;
+
+    //Location of a RankLib coordinate ascent or LambdaMART model, empty if the model is given in code
+    public final String model;
+
+    public CascadeArgs(JSONObject methodsConf) {
+        JSONObject cascadeConf = methodsConf.optJSONObject("cascade");
+        if(cascadeConf == null)
+            cascadeConf = new JSONObject();
+
+        first_stage_depth = cascadeConf.optInt("first_stage_depth", 100);
+        first_stage_budget_ms = cascadeConf.optLong("first_stage_budget_ms", 0);
+        rerank_budget_ms = cascadeConf.optLong("rerank_budget_ms", 0);
+        normalize = cascadeConf.optBoolean("normalize", false);
+        model = cascadeConf.optString("model", "");
+    }
+
+    public static final String usage =
+            "\n\t\t\"cascade\": {" +
+            "\n\t\t\t\"first_stage_depth\": <number of first stage results to rerank, default 100>," +
+            "\n\t\t\t\"first_stage_budget_ms\": <(optional) first stage time after which reranking is skipped>," +
+            "\n\t\t\t\"rerank_budget_ms\": <(optional) reranking time after which the first stage ranking is used>," +
+            "\n\t\t\t\"normalize\": <whether or not to sum normalize features, as with RankLib's -norm sum>," +
+            "\n\t\t\t\"model\": <location of the RankLib coordinate ascent or LambdaMART model to rerank with>" +
+            "\n\t\t}";
+}
@@ -0,0 +1,41 @@
+package main.java.argument_parsers;
+
+import main.java.ranking.EntityAggregation;
+import org.json.JSONObject;
+
+/**
+ * Configuration of entity ranking by paragraph score aggregation, read from the "entity_ranking" entry of the methods
+ * configuration.
+ */
+public class EntityRankArgs {
+    //Whether entities are ranked by aggregating the scores of the paragraphs linking to them
+    public final boolean from_paragraphs;
+
+    //How the scores of the paragraphs linking to an entity are combined
+    public final EntityAggregation aggregation;
+
+    //Number of paragraphs retrieved to aggregate from
+    public final int paragraph_depth;
+
+    //Rank offset of reciprocal rank fusion
+    public final int rrf_k;
+
+    public EntityRankArgs(JSONObject methodsConf) {
+        JSONObject entityConf = methodsConf.optJSONObject("entity_ranking");
+        if(entityConf == null)
+            entityConf = new JSONObject();
+
+        from_paragraphs = entityConf.optBoolean("from_paragraphs", true);
+        aggregation = EntityAggregation.valueOf(entityConf.optString("aggregation", "sum").toUpperCase());
+        paragraph_depth = entityConf.optInt("paragraph_depth", 1000);
+        rrf_k = entityConf.optInt("rrf_k", 60);
+    }
+
+    public static final String usage =
+            "\n\t\t\"entity_ranking\": {" +
+            "\n\t\t\t\"from_paragraphs\": <whether to rank entities by the paragraphs linking to them, default true>," +
+            "\n\t\t\t\"aggregation\": <\"sum\", \"max\" or \"rrf\" combination of the paragraph scores, default sum>," +
+            "\n\t\t\t\"paragraph_depth\": <number of paragraphs to aggregate from, default 1000>," +
+            "\n\t\t\t\"rrf_k\": <(optional) rank offset of rrf, default 60>" +
+            "\n\t\t}";
+}
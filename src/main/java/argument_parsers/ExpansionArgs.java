@@ -0,0 +1,84 @@
+package main.java.argument_parsers;
+
+import main.java.database.CorpusDB;
+import main.java.query_generation.EntityExpander;
+import main.java.query_generation.QueryExpander;
+import main.java.query_generation.Rm3Expander;
+import org.json.JSONObject;
+
+/**
+ * Configuration of pseudo-relevance feedback, read from the optional "expansion" entry of the methods configuration.
+ */
+public class ExpansionArgs {
+    //Expander used when a ranking doesn't name one: "none", "rm3" or "entity"
+    public final String method;
+
+    //RM3: number of feedback documents and expansion terms, and the weight of the original query
+    public final int rm3_feedback_docs, rm3_feedback_terms;
+    public final float rm3_original_weight;
+
+    //Entity expansion: number of feedback paragraphs, entities and anchor text terms, and the weight of each part
+    public final int entity_feedback_docs, entities, anchor_terms;
+    public final float entity_original_weight, entity_weight, anchor_weight;
+
+    public ExpansionArgs(JSONObject methodsConf) {
+        JSONObject expansionConf = methodsConf.optJSONObject("expansion");
+        if(expansionConf == null)
+            expansionConf = new JSONObject();
+        method = expansionConf.optString("method", "none").toLowerCase();
+
+        JSONObject rm3Conf = expansionConf.optJSONObject("rm3");
+        if(rm3Conf == null)
+            rm3Conf = new JSONObject();
+        rm3_feedback_docs = rm3Conf.optInt("feedback_docs", 10);
+        rm3_feedback_terms = rm3Conf.optInt("feedback_terms", 10);
+        rm3_original_weight = (float) rm3Conf.optDouble("original_query_weight", 0.5);
+
+        JSONObject entityConf = expansionConf.optJSONObject("entity");
+        if(entityConf == null)
+            entityConf = new JSONObject();
+        entity_feedback_docs = entityConf.optInt("feedback_docs", 10);
+        entities = entityConf.optInt("entities", 10);
+        anchor_terms = entityConf.optInt("anchor_terms", 0);
+        entity_original_weight = (float) entityConf.optDouble("original_query_weight", 1.0);
+        entity_weight = (float) entityConf.optDouble("entity_weight", 0.3);
+        anchor_weight = (float) entityConf.optDouble("anchor_weight", 0.0);
+    }
+
+    /**
+     * @param name "none", "rm3" or "entity"
+     * @param corpusDB Connected database the entity expander reads anchor text from, or null to use no anchor text
+     * @return The configured expander, or null for "none".
+     */
+    public QueryExpander createExpander(String name, CorpusDB corpusDB) {
+        switch(name.toLowerCase()) {
+            case "none":
+                return null;
+            case "rm3":
+                return new Rm3Expander(rm3_feedback_docs, rm3_feedback_terms, rm3_original_weight);
+            case "entity":
+                return new EntityExpander(entity_feedback_docs, entities, anchor_terms, entity_original_weight,
+                        entity_weight, anchor_weight, corpusDB);
+            default:
+                throw new IllegalArgumentException("Unknown expander " + name + ", expected none, rm3 or entity");
+        }
+    }
+
+    public static final String usage =
+            "\n\t\t\"expansion\": { (optional, queries are ranked in a single pass without it)" +
+            "\n\t\t\t\"method\": <\"none\", \"rm3\" or \"entity\" expander used by default, default none>," +
+            "\n\t\t\t\"rm3\": {" +
+            "\n\t\t\t\t\"feedback_docs\": <number of feedback documents, default 10>," +
+            "\n\t\t\t\t\"feedback_terms\": <number of expansion terms, default 10>," +
+            "\n\t\t\t\t\"original_query_weight\": <weight of the original query within [0, 1], default 0.5>" +
+            "\n\t\t\t}," +
+            "\n\t\t\t\"entity\": {" +
+            "\n\t\t\t\t\"feedback_docs\": <number of feedback paragraphs to take links from, default 10>," +
+            "\n\t\t\t\t\"entities\": <number of linked entities added, default 10>," +
+            "\n\t\t\t\t\"anchor_terms\": <number of anchor text terms added, needs the corpus database, default 0>," +
+            "\n\t\t\t\t\"original_query_weight\": <weight of the original query, default 1>," +
+            "\n\t\t\t\t\"entity_weight\": <weight of the entity clauses, default 0.3>," +
+            "\n\t\t\t\t\"anchor_weight\": <weight of the anchor text clauses, default 0>" +
+            "\n\t\t\t}" +
+            "\n\t\t}";
+}
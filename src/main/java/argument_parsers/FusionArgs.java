@@ -0,0 +1,66 @@
+package main.java.argument_parsers;
+
+import main.java.ranking.FusionEngine;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Configuration of score fusion across rankers, read from the "fusion" entry of the methods configuration. Used by
+ * the query server for requests that ask for fusion.
+ */
+public class FusionArgs {
+    //How each ranker's scores are normalized before they are combined
+    public final FusionEngine.Normalization normalization;
+
+    //How the normalized scores are combined
+    public final FusionEngine.Combination combination;
+
+    //Number of results retrieved from each ranker
+    public final int depth;
+
+    //Rank offset of reciprocal rank fusion
+    public final int rrf_k;
+
+    //RankLib coordinate ascent model with one feature per ranker, for linear combination. Empty for equal weights.
+    public final String model;
+
+    //Rankers to fuse, each given as "<content type>:<generator>"
+    public final List<String> sources;
+
+    public FusionArgs(JSONObject methodsConf) {
+        JSONObject fusionConf = methodsConf.optJSONObject("fusion");
+        if(fusionConf == null)
+            fusionConf = new JSONObject();
+
+        normalization = FusionEngine.Normalization.valueOf(
+                fusionConf.optString("normalization", "min_max").toUpperCase());
+        combination = FusionEngine.Combination.valueOf(fusionConf.optString("combination", "comb_sum").toUpperCase());
+        depth = fusionConf.optInt("depth", 1000);
+        rrf_k = fusionConf.optInt("rrf_k", 60);
+        model = fusionConf.optString("model", "");
+
+        JSONArray sourcesConf = fusionConf.optJSONArray("sources");
+        if(sourcesConf == null) {
+            sources = Arrays.asList("passage:basic", "passage:sdm");
+        } else {
+            sources = new ArrayList<>();
+            for(int i = 0; i < sourcesConf.length(); i++)
+                sources.add(sourcesConf.getString(i));
+        }
+    }
+
+    public static final String usage =
+            "\n\t\t\"fusion\": {" +
+            "\n\t\t\t\"normalization\": <\"none\", \"min_max\" or \"z_score\" normalization of each ranker's scores>," +
+            "\n\t\t\t\"combination\": <\"comb_sum\", \"comb_mnz\", \"rrf\" or \"linear\" combination of the scores>," +
+            "\n\t\t\t\"depth\": <number of results to fuse from each ranker, default 1000>," +
+            "\n\t\t\t\"rrf_k\": <(optional) rank offset of rrf, default 60>," +
+            "\n\t\t\t\"model\": <(optional) RankLib model with a weight per ranker, for linear combination>," +
+            "\n\t\t\t\"sources\": <(optional) list of \"<content type>:<generator>\" rankers to fuse, default " +
+            "[passage:basic, passage:sdm]>" +
+            "\n\t\t}";
+}
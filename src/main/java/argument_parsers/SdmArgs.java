@@ -0,0 +1,48 @@
+package main.java.argument_parsers;
+
+import org.json.JSONObject;
+
+/**
+ * Configuration of the sequential dependence model, read from the "sdm" entry of the methods configuration.
+ */
+public class SdmArgs {
+    //Weights of the unigram, ordered window and unordered window components
+    public final float unigram_weight;
+    public final float ordered_weight;
+    public final float unordered_weight;
+
+    //Number of positions the terms of an unordered window must fall within
+    public final int window_size;
+
+    //Dirichlet smoothing parameter
+    public final float mu;
+
+    //Whether or not to build span queries instead of the single pass SDM query
+    public final boolean use_spans;
+
+    public SdmArgs(JSONObject methodsConf) {
+        JSONObject sdmConf = methodsConf.optJSONObject("sdm");
+        if(sdmConf == null)
+            sdmConf = new JSONObject();
+
+        unigram_weight = (float) sdmConf.optDouble("unigram_weight", 0.85);
+        ordered_weight = (float) sdmConf.optDouble("ordered_weight", 0.1);
+        unordered_weight = (float) sdmConf.optDouble("unordered_weight", 0.05);
+        window_size = sdmConf.optInt("window_size", 8);
+        mu = (float) sdmConf.optDouble("mu", 2000);
+        use_spans = sdmConf.optBoolean("use_spans", false);
+
+        if(window_size < 2)
+            throw new IllegalArgumentException("SDM window size must be at least 2: " + window_size);
+    }
+
+    public static final String usage =
+            "\n\t\t\"sdm\": {" +
+            "\n\t\t\t\"unigram_weight\": <weight of the unigram component, default 0.85>," +
+            "\n\t\t\t\"ordered_weight\": <weight of the ordered window component, default 0.1>," +
+            "\n\t\t\t\"unordered_weight\": <weight of the unordered window component, default 0.05>," +
+            "\n\t\t\t\"window_size\": <positions an unordered window spans, default 8>," +
+            "\n\t\t\t\"mu\": <Dirichlet smoothing parameter, default 2000>," +
+            "\n\t\t\t\"use_spans\": <whether or not to use span queries instead of the single pass scorer, default false>" +
+            "\n\t\t}";
+}
@@ -0,0 +1,49 @@
+package main.java.argument_parsers;
+
+import org.json.JSONObject;
+
+/**
+ * Configuration of the local query server, read from the optional "server" entry of the configuration.
+ */
+public class ServerArgs {
+    //Port to listen on, on the loopback interface only
+    public final int port;
+
+    //Number of requests ranked at a time
+    public final int worker_threads;
+
+    //Number of requests that may wait for a worker before the server stops accepting connections
+    public final int queue_size;
+
+    //Number of results returned when a request doesn't say
+    public final int default_results;
+
+    //Largest number of results a request may ask for, larger requests are cut to it
+    public final int max_results;
+
+    //Whether or not passage requests may ask to be reranked with the cascade model
+    public final boolean enable_cascade;
+
+    public ServerArgs(JSONObject jsonConf) {
+        JSONObject serverConf = jsonConf.optJSONObject("server");
+        if(serverConf == null)
+            serverConf = new JSONObject();
+
+        port = serverConf.optInt("port", 8085);
+        worker_threads = serverConf.optInt("worker_threads", Runtime.getRuntime().availableProcessors());
+        queue_size = serverConf.optInt("queue_size", 64);
+        default_results = serverConf.optInt("default_results", 100);
+        max_results = serverConf.optInt("max_results", 1000);
+        enable_cascade = serverConf.optBoolean("enable_cascade", false);
+    }
+
+    public static final String usage =
+            "\n\t\"server\": { (optional, used when run with the serve argument)" +
+            "\n\t\t\"port\": <port to listen on at localhost, default 8085>," +
+            "\n\t\t\"worker_threads\": <number of requests to rank at a time, default the number of cores>," +
+            "\n\t\t\"queue_size\": <number of requests that may wait for a worker, default 64>," +
+            "\n\t\t\"default_results\": <number of results when a request doesn't give n, default 100>," +
+            "\n\t\t\"max_results\": <largest n a request may ask for, default 1000>," +
+            "\n\t\t\"enable_cascade\": <whether to load the cascade model for reranked passage requests>" +
+            "\n\t}";
+}
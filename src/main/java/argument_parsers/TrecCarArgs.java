@@ -23,6 +23,11 @@ public class TrecCarArgs {
         public final String section_index;
         public final String entity_index;
         public final boolean build_indexes;
+        public final int paragraph_shards;
+        public final int segment_search_threads;
+        public final String candidate_cache_dir;
+        public final long candidate_cache_mb;
+        public final WarmupArgs warmup_args;
 
         public IndexArgs(JSONObject trecCarConf) {
             JSONObject indexConf = trecCarConf.getJSONObject("indexing");
@@ -30,6 +35,11 @@ public class TrecCarArgs {
             section_index = indexConf.getString("section_index");
             entity_index = indexConf.getString("entity_index");
             build_indexes = indexConf.getBoolean("build_index");
+            paragraph_shards = indexConf.optInt("paragraph_shards", 1);
+            segment_search_threads = indexConf.optInt("segment_search_threads", 0);
+            candidate_cache_dir = indexConf.optString("candidate_cache_dir", "");
+            candidate_cache_mb = indexConf.optLong("candidate_cache_mb", 512);
+            warmup_args = new WarmupArgs(indexConf);
         }
     }
 
@@ -58,7 +68,12 @@ public class TrecCarArgs {
             "\n\t\t\"paragraph_corpus\": <location of the allButBenchmark file>," +
             "\n\t\t\"indexing\": {"+
             "\n\t\t\t\"paragraph_index\": <paragraph index location>,"+
-            "\n\t\t\t\"build_index\": <boolean of whether or not to build the indexes>"+
+            "\n\t\t\t\"paragraph_shards\": <(optional) number of hash partitioned shards to build the paragraph index as>,"+
+            "\n\t\t\t\"segment_search_threads\": <(optional) number of threads to search the segments of one query with>,"+
+            "\n\t\t\t\"candidate_cache_dir\": <(optional) directory to cache first stage hits in across runs>,"+
+            "\n\t\t\t\"candidate_cache_mb\": <(optional) size limit of each index's candidate cache, default 512>,"+
+            "\n\t\t\t\"build_index\": <boolean of whether or not to build the indexes>,"+
+            WarmupArgs.usage +
             "\n\t\t},"+
             OutlineArgs.usage + ", " +
             QrelParser.usage + ", " +
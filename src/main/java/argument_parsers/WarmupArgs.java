@@ -0,0 +1,60 @@
+package main.java.argument_parsers;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Configuration of the warm-up phase run when an index is opened for searching.
+ */
+public class WarmupArgs {
+    public final boolean enabled;
+
+    //Whether or not every index file should be memory mapped and preloaded when it is opened
+    public final boolean mmap_preload;
+
+    //Extensions of the index files that should be read through once (e.g. terms dictionaries and norms)
+    public final List<String> preload_extensions;
+
+    //Fields whose terms dictionaries and norms should be touched
+    public final List<String> fields;
+
+    //File with one query per line to replay, and how many of them to replay
+    public final String sample_queries;
+    public final int sample_size;
+
+    public WarmupArgs(JSONObject indexConf) {
+        JSONObject warmConf = indexConf.optJSONObject("warmup");
+        enabled = warmConf != null;
+        if(warmConf == null)
+            warmConf = new JSONObject();
+
+        mmap_preload = warmConf.optBoolean("mmap_preload", false);
+        preload_extensions = toList(warmConf.optJSONArray("preload_extensions"),
+                Arrays.asList("tim", "tip", "nvd", "nvm"));
+        fields = toList(warmConf.optJSONArray("fields"), new ArrayList<>());
+        sample_queries = warmConf.optString("sample_queries", "");
+        sample_size = warmConf.optInt("sample_size", 200);
+    }
+
+    private static List<String> toList(JSONArray array, List<String> defaultValue) {
+        if(array == null)
+            return defaultValue;
+        List<String> values = new ArrayList<>();
+        for(int i = 0; i < array.length(); i++)
+            values.add(array.getString(i));
+        return values;
+    }
+
+    public static final String usage =
+            "\n\t\t\t\"warmup\": { (optional, the index is searched cold without it)" +
+            "\n\t\t\t\t\"mmap_preload\": <whether or not all index files should be memory mapped and preloaded>," +
+            "\n\t\t\t\t\"preload_extensions\": <list of index file extensions to read through, default [tim, tip, nvd, nvm]>," +
+            "\n\t\t\t\t\"fields\": <list of fields whose terms dictionaries and norms should be touched>," +
+            "\n\t\t\t\t\"sample_queries\": <(optional) file with one query per line to replay>," +
+            "\n\t\t\t\t\"sample_size\": <number of sample queries to replay, default 200>" +
+            "\n\t\t\t}";
+}
@@ -0,0 +1,27 @@
+package main.java.argument_parsers;
+
+import org.json.JSONObject;
+
+/**
+ * Configuration of the window pair query generator, read from the "window" entry of the methods configuration.
+ */
+public class WindowArgs {
+    //Maximum number of window pairs kept in a query, 0 to keep every pair without looking up document frequencies
+    public final int max_clauses;
+
+    public WindowArgs(JSONObject methodsConf) {
+        JSONObject windowConf = methodsConf.optJSONObject("window");
+        if(windowConf == null)
+            windowConf = new JSONObject();
+
+        max_clauses = windowConf.optInt("max_clauses", 64);
+
+        if(max_clauses < 0)
+            throw new IllegalArgumentException("Window max clauses can't be negative: " + max_clauses);
+    }
+
+    public static final String usage =
+            "\n\t\t\"window\": {" +
+            "\n\t\t\t\"max_clauses\": <window pairs with the highest IDF kept in a query, 0 keeps every pair, default 64>" +
+            "\n\t\t}";
+}
@@ -0,0 +1,164 @@
+package main.java.benchmark;
+
+import main.java.indexer.ParaEntityIndexr.configs.TrecCarRepr;
+import main.java.query_generation.BasicBooleanQueryGenerator;
+import main.java.query_generation.QueryExpander;
+import main.java.query_generation.QueryGenerator;
+import main.java.query_generation.Rm3Expander;
+import main.java.ranking.LatencyStats;
+import main.java.ranking.QueryRanker;
+import main.java.ranking.RankResult;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Measures top-1000 retrieval latency of QueryRanker against the previous approach of loading every stored document.
+ *
+ * Usage: RankingBenchmark <paragraph index> <file with one query per line> [number of results] [segment threads]
+ */
+public class RankingBenchmark {
+    private static final String ID_FIELD = TrecCarRepr.TrecCarSearchField.Id.name();
+    private static final String DATA_FIELD = TrecCarRepr.TrecCarSearchField.Text.name();
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: RankingBenchmark <paragraph index> <query file> [number of results] " +
+                    "[segment threads]");
+            return;
+        }
+        int nResults = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        int segmentThreads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        List<String> queries = Files.lines(Paths.get(args[1]))
+                .filter(q -> !q.trim().isEmpty())
+                .collect(Collectors.toList());
+
+        QueryRanker ranker = new QueryRanker(args[0], args[0], args[0], ID_FIELD, DATA_FIELD,
+                QueryRanker.ContentType.PASSAGE);
+        QueryGenerator generator = new BasicBooleanQueryGenerator();
+
+        QueryExpander rm3 = new Rm3Expander();
+
+        //Warm up every path so none of them pays for the cold start.
+        runStored(ranker, generator, queries, nResults);
+        runDocValues(ranker, generator, null, queries, nResults);
+        runDocValues(ranker, generator, rm3, queries, nResults);
+
+        report("stored documents", runStored(ranker, generator, queries, nResults));
+        report("doc values", runDocValues(ranker, generator, null, queries, nResults));
+        report("rm3 two pass", runDocValues(ranker, generator, rm3, queries, nResults));
+
+        compareBatch(ranker, generator, queries, nResults);
+
+        //Single query latency with the segments of each query searched in parallel.
+        QueryRanker segmentRanker = new QueryRanker(args[0], args[0], args[0], ID_FIELD, DATA_FIELD,
+                QueryRanker.ContentType.PASSAGE, null, segmentThreads);
+        runDocValues(segmentRanker, generator, null, queries, nResults);
+        report("serial segments", runDocValues(ranker, generator, null, queries, nResults));
+        report(segmentThreads + " thread segments", runDocValues(segmentRanker, generator, null, queries, nResults));
+
+        //Stage percentiles of every run above, with -Dlatency.stats=true.
+        LatencyStats.dump();
+    }
+
+    /**
+     * Compares the throughput of ranking the queries one after the other with rankAll.
+     */
+    private static void compareBatch(QueryRanker ranker, QueryGenerator generator, List<String> queries,
+                                     int nResults) {
+        List<QueryRanker.RankQuery> rankQueries = new ArrayList<>(queries.size());
+        for(int q = 0; q < queries.size(); q++)
+            rankQueries.add(new QueryRanker.RankQuery(Integer.toString(q), queries.get(q)));
+
+        long start = System.nanoTime();
+        for(QueryRanker.RankQuery query : rankQueries)
+            ranker.rank(nResults, generator, query.query_id, query.query_text);
+        double serialSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        ranker.rankAll(nResults, generator, rankQueries);
+        double batchSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("serial %8.1f queries/s  rankAll %8.1f queries/s  speedup %.2fx on %d cores",
+                queries.size() / serialSeconds, queries.size() / batchSeconds, serialSeconds / batchSeconds,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Searches and then loads every stored document to read its id, as QueryRanker used to.
+     * @return Latency of each query in nanoseconds.
+     */
+    private static long[] runStored(QueryRanker ranker, QueryGenerator generator, List<String> queries, int nResults)
+            throws IOException {
+        IndexSearcher searcher = ranker.getIndexSearcher();
+        long[] latencies = new long[queries.size()];
+        long checksum = 0;
+        for(int q = 0; q < queries.size(); q++) {
+            long start = System.nanoTime();
+            ScoreDoc[] hits = searcher.search(generator.generate(queries.get(q), DATA_FIELD), nResults).scoreDocs;
+            for(ScoreDoc hit : hits) {
+                Document doc = searcher.doc(hit.doc);
+                checksum += doc.get(ID_FIELD).length();
+            }
+            latencies[q] = System.nanoTime() - start;
+        }
+        System.out.println("(checksum " + checksum + ")");
+        return latencies;
+    }
+
+    /**
+     * Ranks through QueryRanker, which resolves ids from DocValues and defers loading the data field.
+     * @param expander Expander for a second pass, or null to rank with a single pass
+     * @return Latency of each query in nanoseconds.
+     */
+    private static long[] runDocValues(QueryRanker ranker, QueryGenerator generator, QueryExpander expander,
+                                       List<String> queries, int nResults) {
+        long[] latencies = new long[queries.size()];
+        long checksum = 0;
+        for(int q = 0; q < queries.size(); q++) {
+            long start = System.nanoTime();
+            List<RankResult> results = ranker.rank(nResults, generator, expander, Integer.toString(q),
+                    queries.get(q), null);
+            for(RankResult result : results)
+                checksum += result.doc_id.length();
+            latencies[q] = System.nanoTime() - start;
+        }
+        System.out.println("(checksum " + checksum + ")");
+        return latencies;
+    }
+
+    /**
+     * Prints the mean and percentile latencies in milliseconds.
+     * @param name Name of the measured configuration
+     * @param latencies Latency of each query in nanoseconds
+     */
+    static void report(String name, long[] latencies) {
+        if(latencies.length == 0) {
+            System.out.println(name + ": no queries");
+            return;
+        }
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+        System.out.println(String.format("%-20s mean %8.3f ms  p50 %8.3f ms  p99 %8.3f ms  max %8.3f ms",
+                name, mean, percentile(sorted, 0.5), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6));
+    }
+
+    /**
+     * @param sorted Sorted latencies in nanoseconds
+     * @param p Percentile between 0 and 1
+     * @return The latency at the given percentile in milliseconds.
+     */
+    static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+}
@@ -0,0 +1,144 @@
+package main.java.benchmark;
+
+import main.java.Tokenizers.EnglishTokenizer;
+import main.java.Tokenizers.Vocabulary;
+import main.java.query_generation.QueryGenerator;
+import org.apache.lucene.analysis.StopFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.en.EnglishPossessiveFilter;
+import org.apache.lucene.analysis.en.PorterStemFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the previous EnglishTokenizer implementation, which built a new analyzer chain for every call, with the
+ * reusable pipeline. Each benchmark operation tokenizes every text once; the GC profiler reports the bytes allocated
+ * per operation. Both implementations are checked to produce the same tokens before measuring.
+ *
+ * Usage: TokenizerBenchmark [file with one text per line] [measurement iterations]
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+
+    private static final String SAMPLE_TEXT = "The Porter stemming algorithm is a process for removing the commoner " +
+            "morphological and inflexional endings from words in English. Its main use is as part of a term " +
+            "normalisation process that is usually done when setting up Information Retrieval systems.";
+
+    //File with one text per line, the sample text if empty
+    @Param("")
+    public String text_file;
+
+    private List<String> texts;
+
+    @Setup
+    public void loadTexts() throws IOException {
+        texts = text_file.isEmpty()
+                ? Arrays.asList(SAMPLE_TEXT)
+                : Files.lines(Paths.get(text_file)).filter(t -> !t.trim().isEmpty()).collect(Collectors.toList());
+        for(String text : texts) {
+            if(!legacyTokenize(text).equals(EnglishTokenizer.tokenize(text, "Text")))
+                throw new IllegalStateException("Tokenizers disagree on: " + text);
+        }
+    }
+
+    @Benchmark
+    public void newAnalyzerPerCall(Blackhole blackhole) {
+        for(String text : texts)
+            blackhole.consume(legacyTokenize(text));
+    }
+
+    @Benchmark
+    public void reusedTokenList(Blackhole blackhole) {
+        for(String text : texts)
+            blackhole.consume(EnglishTokenizer.tokenize(text, "Text"));
+    }
+
+    @Benchmark
+    public void reusedConsumer(Blackhole blackhole) {
+        for(String text : texts)
+            EnglishTokenizer.forEachToken(text, "Text", (buffer, length) -> {
+                blackhole.consume(buffer);
+                blackhole.consume(length);
+            });
+    }
+
+    @Benchmark
+    public void reusedVocabularyIds(Blackhole blackhole) {
+        for(String text : texts)
+            blackhole.consume(Vocabulary.tokenizeToIds(text));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(TokenizerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class);
+        if(args.length > 0)
+            options.param("text_file", args[0]);
+        if(args.length > 1)
+            options.measurementIterations(Integer.parseInt(args[1]));
+        new Runner(options.build()).run();
+    }
+
+    /**
+     * EnglishTokenizer.tokenize as it was before the analysis pipeline was reused.
+     */
+    private static List<String> legacyTokenize(String text) {
+        StandardAnalyzer analyzer = new StandardAnalyzer();
+
+        TokenStream tokenStream = analyzer.tokenStream("Text", new StringReader(text));
+        tokenStream =  new StopFilter(tokenStream, StandardAnalyzer.STOP_WORDS_SET);
+        tokenStream = new EnglishPossessiveFilter(tokenStream);
+        tokenStream = new PorterStemFilter(tokenStream);
+        LinkedList<String> tokens = new LinkedList<>();
+
+        try {
+            tokenStream.reset();
+
+            while(tokenStream.incrementToken()) {
+                String token = tokenStream.getAttribute(CharTermAttribute.class).toString();
+                if(!QueryGenerator.STOP_WORDS.contains(token))
+                    tokens.add(token);
+            }
+
+            tokenStream.end();
+            tokenStream.close();
+        } catch(IOException io) {
+            throw new IllegalStateException("Failed to tokenize words.");
+        }
+        analyzer.close();
+
+        return tokens;
+    }
+}
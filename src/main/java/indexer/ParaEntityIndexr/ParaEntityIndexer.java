@@ -5,8 +5,10 @@ import edu.unh.cs.treccar_v2.read_data.DeserializeData;
 import main.java.indexer.ParaEntityIndexr.configs.TrecCarPara;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.slf4j.Logger;
@@ -15,11 +17,43 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class ParaEntityIndexer {
+    //Keys stored in the user data of every index commit so an interrupted run can be resumed.
+    public static final String RECORDS_CONSUMED_KEY = "records_consumed";
+    public static final String SOURCE_FILE_KEY = "source_file";
+    public static final String INDEX_COMPLETE_KEY = "index_complete";
+    public static final String SHARD_COUNT_KEY = "shard_count";
+
+    //Number of paragraphs added between commits (checkpoints).
+    private static final int COMMIT_INTERVAL = 10000;
+
+    //Number of paragraphs that may wait for each shard writer before the corpus reader blocks.
+    private static final int SHARD_QUEUE_SIZE = 1000;
+
+    private static final String SHARD_PREFIX = "shard-";
+    private static final Pattern shardDirPat = Pattern.compile(SHARD_PREFIX + "(\\d+)");
+
     private TrecCarPara trecCarPara = new TrecCarPara();
 
     private final Logger logger = LoggerFactory.getLogger(ParaEntityIndexer.class);
@@ -27,24 +61,208 @@ public class ParaEntityIndexer {
     protected IndexWriter indexWriter;
     protected String fileIndex;
 
+    //Number of corpus records already committed to the index by a previous run.
+    protected long records_committed;
+
+    //One writer and checkpoint per shard. The single index case is a single shard.
+    protected IndexWriter[] shard_writers;
+    protected long[] shard_checkpoints;
+
     public ParaEntityIndexer(String indexLoc, String fileIndex) throws IOException {
-        logger.info("Building paragraph-entity index.");
+        this(indexLoc, fileIndex, 1);
+    }
+
+    /**
+     * @param indexLoc Location of the index. When more than one shard is requested each shard is stored in its own
+     *                 sub directory of this location.
+     * @param fileIndex Paragraph corpus to index
+     * @param numShards Number of hash partitioned shards to build concurrently.
+     */
+    public ParaEntityIndexer(String indexLoc, String fileIndex, int numShards) throws IOException {
+        if(numShards < 1)
+            throw new IllegalArgumentException("Number of shards must be at least 1: " + numShards);
+
+        logger.info("Building paragraph-entity index" + ((numShards > 1) ? " with " + numShards + " shards." : "."));
         long startTime = System.currentTimeMillis();
 
         this.fileIndex = fileIndex;
-        Directory indexDir;
-        IndexWriterConfig config;
+        removeStaleShards(Paths.get(indexLoc), numShards);
+        if(numShards > 1)
+            writeShardCount(Paths.get(indexLoc), numShards);
+        shard_writers = new IndexWriter[numShards];
+        shard_checkpoints = new long[numShards];
 
-        indexDir = FSDirectory.open(Paths.get(indexLoc));
-        config = new IndexWriterConfig(new WhitespaceAnalyzer());
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-        indexWriter = new IndexWriter(indexDir, config);
+        for(int shard = 0; shard < numShards; shard++) {
+            Directory indexDir = FSDirectory.open((numShards == 1) ? Paths.get(indexLoc)
+                    : Paths.get(indexLoc, SHARD_PREFIX + shard));
+            shard_checkpoints[shard] = readCheckpoint(indexDir, fileIndex, numShards);
+
+            IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+            if(shard_checkpoints[shard] > 0) {
+                logger.info("Resuming interrupted indexing run" + ((numShards > 1) ? " of shard " + shard : "") +
+                        " after " + shard_checkpoints[shard] + " paragraphs.");
+                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+            } else {
+                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+            }
+            shard_writers[shard] = new IndexWriter(indexDir, config);
+        }
+
+        indexWriter = shard_writers[0];
+        records_committed = shard_checkpoints[0];
+        for(long checkpoint : shard_checkpoints)
+            records_committed = Math.min(records_committed, checkpoint);
+
+        if(numShards == 1)
+            paraEntityIndexer();
+        else
+            shardedParaEntityIndexer();
 
-        paraEntityIndexer();
         logger.info("Finished indexing in " +
                 (TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - startTime)) + " minutes.");
     }
 
+    /**
+     * @param id Paragraph id
+     * @param numShards Number of shards in the index
+     * @return The shard the paragraph is stored in.
+     */
+    public static int shardFor(String id, int numShards) {
+        return Math.floorMod(id.hashCode(), numShards);
+    }
+
+    /**
+     * @param indexLoc Location given to the indexer
+     * @return The shard directories of the index ordered by shard number, or an empty list if the index is not sharded.
+     * The number of shards is read from the commit at the root of the index. Indexes built before it was recorded
+     * there fall back to the shard directories present.
+     */
+    public static List<Path> getShardPaths(String indexLoc) throws IOException {
+        Path root = Paths.get(indexLoc);
+        if(!Files.isDirectory(root))
+            return new ArrayList<>();
+
+        try(Directory rootDir = FSDirectory.open(root)) {
+            if(DirectoryReader.indexExists(rootDir)) {
+                int numShards = Integer.parseInt(SegmentInfos.readLatestCommit(rootDir).getUserData()
+                        .getOrDefault(SHARD_COUNT_KEY, "1"));
+                List<Path> shardPaths = new ArrayList<>();
+                for(int shard = 0; numShards > 1 && shard < numShards; shard++) {
+                    Path shardPath = root.resolve(SHARD_PREFIX + shard);
+                    if(!Files.isDirectory(shardPath))
+                        throw new IOException("Missing shard " + shardPath + " of " + numShards);
+                    shardPaths.add(shardPath);
+                }
+                return shardPaths;
+            }
+        }
+        return listShardDirectories(root);
+    }
+
+    /**
+     * @return Every shard directory under root ordered by shard number, whether or not it belongs to the latest build.
+     */
+    private static List<Path> listShardDirectories(Path root) throws IOException {
+        if(!Files.isDirectory(root))
+            return new ArrayList<>();
+        try(Stream<Path> children = Files.list(root)) {
+            return children
+                    .filter(p -> Files.isDirectory(p) && shardDirPat.matcher(p.getFileName().toString()).matches())
+                    .sorted((p1, p2) -> Integer.compare(shardNumber(p1), shardNumber(p2)))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Deletes the shard directories a previous build left that this one doesn't write: all of them when the index
+     * isn't sharded, otherwise those numbered numShards or higher.
+     */
+    private void removeStaleShards(Path root, int numShards) throws IOException {
+        for(Path shardDir : listShardDirectories(root)) {
+            if(numShards > 1 && shardNumber(shardDir) < numShards)
+                continue;
+            logger.info("Removing shard " + shardDir + " of a previous build.");
+            try(Stream<Path> files = Files.walk(shardDir)) {
+                for(Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                    Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Commits an empty index at the root of a sharded index whose user data records the number of shards, which is
+     * how getShardPaths finds them. It replaces any unsharded index stored at the root.
+     */
+    private static void writeShardCount(Path root, int numShards) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        try(Directory rootDir = FSDirectory.open(root); IndexWriter writer = new IndexWriter(rootDir, config)) {
+            Map<String, String> userData = new HashMap<>();
+            userData.put(SHARD_COUNT_KEY, Integer.toString(numShards));
+            writer.setLiveCommitData(userData.entrySet());
+            writer.commit();
+        }
+    }
+
+    private static int shardNumber(Path shardDir) {
+        Matcher m = shardDirPat.matcher(shardDir.getFileName().toString());
+        return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    /**
+     * Reads the checkpoint stored in the latest commit of the index.
+     * @param indexDir Directory of the index
+     * @param sourceFile Corpus file that is being indexed
+     * @return The number of corpus records consumed by an unfinished run over the same corpus, or 0 if the index
+     * should be built from scratch.
+     * @throws IOException If the latest commit cannot be read.
+     */
+    public static long readCheckpoint(Directory indexDir, String sourceFile) throws IOException {
+        return readCheckpoint(indexDir, sourceFile, 1);
+    }
+
+    /**
+     * Reads the checkpoint stored in the latest commit of an index shard.
+     * @param indexDir Directory of the shard
+     * @param sourceFile Corpus file that is being indexed
+     * @param numShards Number of shards the corpus is partitioned into. A change in partitioning forces a rebuild.
+     * @return The number of corpus records consumed by an unfinished run over the same corpus, or 0 if the shard
+     * should be built from scratch.
+     * @throws IOException If the latest commit cannot be read.
+     */
+    public static long readCheckpoint(Directory indexDir, String sourceFile, int numShards) throws IOException {
+        if(!DirectoryReader.indexExists(indexDir))
+            return 0;
+
+        Map<String, String> userData = SegmentInfos.readLatestCommit(indexDir).getUserData();
+        String consumed = userData.get(RECORDS_CONSUMED_KEY);
+        if(consumed == null
+                || Boolean.parseBoolean(userData.get(INDEX_COMPLETE_KEY))
+                || !new File(sourceFile).getAbsolutePath().equals(userData.get(SOURCE_FILE_KEY))
+                || !Integer.toString(numShards).equals(userData.getOrDefault(SHARD_COUNT_KEY, "1")))
+            return 0;
+
+        return Long.parseLong(consumed);
+    }
+
+    /**
+     * Stores the number of consumed corpus records in the next commit, then commits.
+     * @param recordsConsumed Number of records read from the corpus so far
+     * @param complete Whether or not the whole corpus has been indexed
+     */
+    protected void checkpoint(long recordsConsumed, boolean complete) throws IOException {
+        checkpoint(indexWriter, recordsConsumed, complete);
+    }
+
+    private void checkpoint(IndexWriter writer, long recordsConsumed, boolean complete) throws IOException {
+        Map<String, String> userData = new HashMap<>();
+        userData.put(RECORDS_CONSUMED_KEY, Long.toString(recordsConsumed));
+        userData.put(SOURCE_FILE_KEY, new File(fileIndex).getAbsolutePath());
+        userData.put(INDEX_COMPLETE_KEY, Boolean.toString(complete));
+        userData.put(SHARD_COUNT_KEY, Integer.toString(shard_writers.length));
+        writer.setLiveCommitData(userData.entrySet());
+        writer.commit();
+    }
 
     public void paraEntityIndexer() throws IOException{
     final FileInputStream fileInputStream2 = new FileInputStream(new File(fileIndex));
@@ -52,21 +270,124 @@ public class ParaEntityIndexer {
 
     final Iterator<Data.Paragraph> paragraphIterator = DeserializeData.iterParagraphs(fileInputStream2);
 
-        for (int i=1; paragraphIterator.hasNext(); i++){
+        //Records before the checkpoint are already in the index, so they only need to be read past.
+        long i = 0;
+        for (; i < records_committed && paragraphIterator.hasNext(); i++)
+            paragraphIterator.next();
+
+        while (paragraphIterator.hasNext()){
 
         final Data.Paragraph paragraph = paragraphIterator.next();
+        i++;
 
         final Document doc = trecCarPara.paragraphToLuceneDoc(paragraph);
 
         indexWriter.addDocument(doc);
-        if (i % 10000 == 0) {
+        if (i % COMMIT_INTERVAL == 0) {
             System.out.print('.');
-            indexWriter.commit();
+            checkpoint(i, false);
         }
     }
 
-        indexWriter.commit();
+        checkpoint(i, true);
         indexWriter.close();
 
     }
+
+    /**
+     * Work item for a shard writer. A task without a paragraph asks the shard to checkpoint.
+     */
+    private static class ShardTask {
+        final long record;
+        final Data.Paragraph paragraph;
+        final boolean complete;
+
+        ShardTask(long rec, Data.Paragraph para, boolean comp) {
+            record = rec;
+            paragraph = para;
+            complete = comp;
+        }
+    }
+
+    /**
+     * Reads the corpus on the calling thread and hands each paragraph to the writer of its shard. Conversion to Lucene
+     * documents and indexing happens concurrently on one thread per shard. Every shard commits at the same record
+     * counts, and on resume a shard skips the records its own checkpoint already covers.
+     */
+    public void shardedParaEntityIndexer() throws IOException {
+        final int numShards = shard_writers.length;
+        ExecutorService shardPool = Executors.newFixedThreadPool(numShards);
+        List<BlockingQueue<ShardTask>> queues = new ArrayList<>();
+        List<Future<?>> workers = new ArrayList<>();
+
+        for(int shard = 0; shard < numShards; shard++) {
+            BlockingQueue<ShardTask> queue = new ArrayBlockingQueue<>(SHARD_QUEUE_SIZE);
+            IndexWriter writer = shard_writers[shard];
+            long shardCheckpoint = shard_checkpoints[shard];
+            queues.add(queue);
+            workers.add(shardPool.submit(() -> {
+                while(true) {
+                    ShardTask task = queue.take();
+                    if(task.paragraph == null) {
+                        checkpoint(writer, task.record, task.complete);
+                        if(task.complete)
+                            break;
+                    } else if(task.record > shardCheckpoint) {
+                        writer.addDocument(trecCarPara.paragraphToLuceneDoc(task.paragraph));
+                    }
+                }
+                writer.close();
+                return null;
+            }));
+        }
+        shardPool.shutdown();
+
+        try(FileInputStream corpusStream = new FileInputStream(new File(fileIndex))) {
+            final Iterator<Data.Paragraph> paragraphIterator = DeserializeData.iterParagraphs(corpusStream);
+
+            long i = 0;
+            for (; i < records_committed && paragraphIterator.hasNext(); i++)
+                paragraphIterator.next();
+
+            while(paragraphIterator.hasNext()) {
+                final Data.Paragraph paragraph = paragraphIterator.next();
+                i++;
+
+                int shard = shardFor(paragraph.getParaId(), numShards);
+                dispatch(queues.get(shard), workers.get(shard), new ShardTask(i, paragraph, false));
+
+                if(i % COMMIT_INTERVAL == 0) {
+                    System.out.print('.');
+                    for(int s = 0; s < numShards; s++)
+                        dispatch(queues.get(s), workers.get(s), new ShardTask(i, null, false));
+                }
+            }
+
+            for(int s = 0; s < numShards; s++)
+                dispatch(queues.get(s), workers.get(s), new ShardTask(i, null, true));
+
+            for(Future<?> worker : workers)
+                worker.get();
+        } catch(InterruptedException ie) {
+            shardPool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building shards.");
+        } catch(ExecutionException ee) {
+            shardPool.shutdownNow();
+            throw new IOException("Failed to build shard: " + ee.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Queues a task for a shard writer, failing instead of blocking forever if the writer has died.
+     */
+    private void dispatch(BlockingQueue<ShardTask> queue, Future<?> worker, ShardTask task)
+            throws InterruptedException, ExecutionException {
+        while(!queue.offer(task, 1, TimeUnit.SECONDS)) {
+            if(worker.isDone()) {
+                worker.get();
+                throw new IllegalStateException("Shard writer stopped unexpectedly.");
+            }
+        }
+    }
 }
@@ -0,0 +1,110 @@
+package main.java.indexer.ParaEntityIndexr.configs;
+
+import main.java.Tokenizers.Vocabulary;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FloatDocValuesField;
+import org.apache.lucene.document.NumericDocValuesField;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-paragraph statistics computed once at index time and stored as numeric DocValues, so ranking features don't
+ * have to be recomputed from stored text at query time.
+ */
+public class ParagraphStatistics {
+
+    /**
+     * Names of the DocValues fields the statistics are stored in.
+     */
+    public enum Statistic {
+        DocLength,
+        UniqueTerms,
+        EntityLinkCount,
+        BigramDensity
+    }
+
+    //Number of (stemmed, stop word free) tokens in the paragraph
+    public final int doc_length;
+
+    //Number of distinct tokens in the paragraph
+    public final int unique_terms;
+
+    //Number of entity links in the paragraph
+    public final int entity_links;
+
+    //Fraction of the adjacent token pairs of the paragraph that are distinct (0 if there are none)
+    public final float bigram_density;
+
+    public ParagraphStatistics(int docLength, int uniqueTerms, int entityLinks, float bigramDensity) {
+        doc_length = docLength;
+        unique_terms = uniqueTerms;
+        entity_links = entityLinks;
+        bigram_density = bigramDensity;
+    }
+
+    /**
+     * @param tokens Tokens of the paragraph, as indexed in the Text field
+     * @param entityIds Ids of the entities linked from the paragraph
+     * @return The statistics of the paragraph.
+     */
+    public static ParagraphStatistics compute(List<String> tokens, List<String> entityIds) {
+        //Ids local to the paragraph, so indexing threads share no state and nothing outlives the paragraph.
+        Vocabulary localIds = new Vocabulary(tokens.size());
+        int[] ids = new int[tokens.size()];
+        char[] buffer = new char[32];
+        int i = 0;
+        for (String token : tokens) {
+            if (token.length() > buffer.length)
+                buffer = new char[Math.max(token.length(), buffer.length * 2)];
+            token.getChars(0, token.length(), buffer, 0);
+            ids[i++] = localIds.getOrAdd(buffer, 0, token.length());
+        }
+        return compute(ids, entityIds.size());
+    }
+
+    /**
+     * @param tokenIds Ids of the tokens of the paragraph, equal for equal tokens
+     * @param entityLinks Number of entities linked from the paragraph
+     * @return The statistics of the paragraph.
+     */
+    public static ParagraphStatistics compute(int[] tokenIds, int entityLinks) {
+        long[] bigrams = new long[Math.max(0, tokenIds.length - 1)];
+        for (int i = 0; i < bigrams.length; i++)
+            bigrams[i] = Vocabulary.pair(tokenIds[i], tokenIds[i + 1]);
+        Arrays.sort(bigrams);
+
+        int[] sortedIds = tokenIds.clone();
+        Arrays.sort(sortedIds);
+
+        float density = (bigrams.length > 0) ? countDistinct(bigrams) / (float) bigrams.length : 0f;
+        return new ParagraphStatistics(tokenIds.length, countDistinct(sortedIds), entityLinks, density);
+    }
+
+    private static int countDistinct(int[] sorted) {
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++)
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                distinct++;
+        return distinct;
+    }
+
+    private static int countDistinct(long[] sorted) {
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++)
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                distinct++;
+        return distinct;
+    }
+
+    /**
+     * Adds the statistics to the document as numeric DocValues.
+     * @param doc Lucene document of the paragraph
+     */
+    public void addTo(Document doc) {
+        doc.add(new NumericDocValuesField(Statistic.DocLength.name(), doc_length));
+        doc.add(new NumericDocValuesField(Statistic.UniqueTerms.name(), unique_terms));
+        doc.add(new NumericDocValuesField(Statistic.EntityLinkCount.name(), entity_links));
+        doc.add(new FloatDocValuesField(Statistic.BigramDensity.name(), bigram_density));
+    }
+}
@@ -4,10 +4,13 @@ import edu.unh.cs.treccar_v2.Data;
 import main.java.Tokenizers.EnglishTokenizer;
 import main.java.query_generation.QueryGenerator;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.util.BytesRef;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -47,42 +50,64 @@ public class TrecCarPara implements TrecCarRepr {
 
 
     public HashMap<TrecCarSearchField, List<String>> convertParagraph(Data.Paragraph p) {
+        return convertParagraph(p, tokenizeParagraph(p.getTextOnly()));
+    }
+
+    /**
+     * @param p Paragraph to convert
+     * @param tokens Tokens of the paragraph text, see {@link #tokenizeParagraph(String)}
+     * @return The text of each search field.
+     */
+    public HashMap<TrecCarSearchField, List<String>> convertParagraph(Data.Paragraph p, List<String> tokens) {
         final HashMap<TrecCarSearchField, List<String>> result = new HashMap<>();
-        result.put(TrecCarSearchField.Text, Collections.singletonList(createUnigram(p.getTextOnly())));
-        result.put(TrecCarSearchField.BiText, Collections.singletonList(createBigram(p.getTextOnly())));
-        result.put(TrecCarSearchField.WText, Collections.singletonList(createWindow(p.getTextOnly())));
+        result.put(TrecCarSearchField.Text, Collections.singletonList(createUnigram(tokens)));
+        result.put(TrecCarSearchField.BiText, Collections.singletonList(createBigram(tokens)));
+        result.put(TrecCarSearchField.WText, Collections.singletonList(createWindow(tokens)));
         result.put(TrecCarSearchField.EntityLinks, TrecCarReprUtils.getEntitiesOnly(p));
         result.put(TrecCarSearchField.OutlinkIds, TrecCarReprUtils.getEntityIdsOnly(p));
         return result;
     }
 
     public Document paragraphToLuceneDoc(Data.Paragraph paragraph) {
-        final HashMap<TrecCarSearchField, List<String>> repr = convertParagraph(paragraph);
+        final List<String> tokens = tokenizeParagraph(paragraph.getTextOnly());
+        final HashMap<TrecCarSearchField, List<String>> repr = convertParagraph(paragraph, tokens);
         String id = idParagraph(paragraph);
         final Document doc = new Document();
         doc.add(new StringField(getIdField().name(), id, Field.Store.YES));  // don't tokenize this!
+        doc.add(new BinaryDocValuesField(getIdField().name(), new BytesRef(id)));
 
         for (TrecCarSearchField field : repr.keySet()) {
             doc.add(new TextField(field.name(), String.join("\n", repr.get(field)), Field.Store.YES));
         }
+
+        // Entity links are also kept as DocValues so rankings can resolve them without loading stored fields.
+        for (String entityId : repr.get(getEntityField())) {
+            doc.add(new SortedSetDocValuesField(getEntityField().name(), new BytesRef(entityId)));
+        }
+
+        ParagraphStatistics.compute(tokens, repr.get(getEntityField())).addTo(doc);
         return doc;
     }
 
-    private String createUnigram(String paragraph) {
-
-        List<String> tokens = EnglishTokenizer.tokenize(paragraph, TrecCarSearchField.Text.name());
+    /**
+     * Tokenizes the paragraph text once for all of the text fields and statistics.
+     * @param paragraph Paragraph text
+     * @return Stemmed tokens with stop words removed.
+     */
+    public List<String> tokenizeParagraph(String paragraph) {
+        List<String> tokens = new ArrayList<>(EnglishTokenizer.tokenize(paragraph, TrecCarSearchField.Text.name()));
 
         tokens.removeAll(QueryGenerator.STOP_WORDS);
 
-        return StringUtils.join(tokens, " ");
+        return tokens;
     }
 
-    private String createBigram(String paragraph) {
+    private String createUnigram(List<String> tokens) {
 
+        return StringUtils.join(tokens, " ");
+    }
 
-        List<String> tokens = EnglishTokenizer.tokenize(paragraph, TrecCarSearchField.Text.name());
-
-        tokens.removeAll(QueryGenerator.STOP_WORDS);
+    private String createBigram(List<String> tokens) {
 
         List<String> bigramPara = new ArrayList<>();
 
@@ -94,13 +119,9 @@ public class TrecCarPara implements TrecCarRepr {
         return StringUtils.join(bigramPara, " ");
     }
 
-    private String createWindow(String paragraph) {
+    private String createWindow(List<String> tokens) {
         final int WINDOW_SIZE = 8;
 
-        List<String> tokens = EnglishTokenizer.tokenize(paragraph, TrecCarSearchField.Text.name());
-
-        tokens.removeAll(QueryGenerator.STOP_WORDS);
-
         List<String> windowParagraph = new ArrayList<>();
 
         for (int i = 0; i < tokens.size(); i++) {
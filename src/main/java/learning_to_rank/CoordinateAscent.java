@@ -0,0 +1,189 @@
+package main.java.learning_to_rank;
+
+import main.java.Util.RankLibUtil;
+import main.java.ranking.RerankModel;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Coordinate ascent over the weights of a linear model, as in RankLib: each weight in turn is moved by growing steps
+ * in both directions, and kept wherever the training metric improves. The scores of every candidate are kept up to
+ * date incrementally, so trying a weight costs one pass over a single feature column.
+ */
+public class CoordinateAscent {
+
+    /**
+     * Linear model produced by coordinate ascent, with L1 normalized weights.
+     */
+    public static class LinearModel implements RerankModel {
+        public final double[] weights;
+
+        public LinearModel(double[] w) {
+            weights = w;
+        }
+
+        @Override
+        public double score(double[] features) {
+            double score = 0;
+            for(int i = 0; i < weights.length; i++)
+                score += weights[i] * features[i];
+            return score;
+        }
+
+        /**
+         * Saves the model in RankLib's coordinate ascent format, which RankLibUtil.TrainedModel can load.
+         */
+        public void save(Path modelFile) throws IOException {
+            StringBuilder model = new StringBuilder("## Coordinate Ascent\n");
+            for(int i = 0; i < weights.length; i++)
+                model.append(i + 1).append(':').append(String.format(Locale.ROOT, "%.10f", weights[i])).append(' ');
+            Files.write(modelFile, model.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private final RankLibUtil.Metric metric;
+    private final int metric_k;
+    private final int random_restarts;
+    private final int max_iterations;
+    private final double tolerance;
+    private final long seed;
+
+    private static final double STEP_BASE = 0.05;
+    private static final double STEP_SCALE = 2.0;
+    private static final int STEPS = 25;
+
+    /**
+     * @param m Metric to optimize
+     * @param k Cut off of the metric
+     * @param restarts Number of restarts from random weights after the first, uniform, start
+     * @param iterations Maximum number of passes over the features per start
+     * @param tol Smallest improvement of the metric that counts
+     * @param randomSeed Seed of the feature order and the random starts
+     */
+    public CoordinateAscent(RankLibUtil.Metric m, int k, int restarts, int iterations, double tol, long randomSeed) {
+        metric = m;
+        metric_k = k;
+        random_restarts = restarts;
+        max_iterations = iterations;
+        tolerance = tol;
+        seed = randomSeed;
+    }
+
+    /**
+     * @param queries Training queries, all with the same number of features
+     * @return The weights that scored best on the training queries.
+     */
+    public LinearModel train(List<TrainingQuery> queries) {
+        int nFeatures = queries.stream().mapToInt(TrainingQuery::getNumberOfFeatures).max().orElse(0);
+        Random random = new Random(seed);
+
+        double[] bestWeights = null;
+        double bestMetric = Double.NEGATIVE_INFINITY;
+        for(int start = 0; start <= random_restarts; start++) {
+            double[] weights = new double[nFeatures];
+            for(int f = 0; f < nFeatures; f++)
+                weights[f] = (start == 0) ? 1.0 / nFeatures : random.nextDouble();
+            double metricValue = ascend(queries, weights, random);
+            if(metricValue > bestMetric) {
+                bestMetric = metricValue;
+                bestWeights = weights;
+            }
+        }
+        return new LinearModel(normalize(bestWeights == null ? new double[nFeatures] : bestWeights));
+    }
+
+    /**
+     * Moves the weights to a local maximum of the metric.
+     * @return The metric at the final weights.
+     */
+    private double ascend(List<TrainingQuery> queries, double[] weights, Random random) {
+        double[][] scores = new double[queries.size()][];
+        double[][] candidate = new double[queries.size()][];
+        for(int q = 0; q < scores.length; q++) {
+            TrainingQuery query = queries.get(q);
+            scores[q] = new double[query.size()];
+            candidate[q] = new double[query.size()];
+            for(int d = 0; d < query.size(); d++)
+                for(int f = 0; f < weights.length; f++)
+                    scores[q][d] += weights[f] * query.features[d][f];
+        }
+        double current = RankingMetrics.mean(metric, metric_k, queries, scores);
+
+        int[] features = new int[weights.length];
+        for(int f = 0; f < features.length; f++)
+            features[f] = f;
+        for(int iteration = 0; iteration < max_iterations; iteration++) {
+            shuffle(features, random);
+            double start = current;
+            for(int f : features) {
+                double original = weights[f];
+                double bestWeight = original;
+                for(int direction = -1; direction <= 1; direction += 2) {
+                    double step = STEP_BASE * direction;
+                    if(original != 0 && Math.abs(step) > 0.5 * Math.abs(original))
+                        step = STEP_BASE * Math.abs(original) * direction;
+                    double total = step;
+                    for(int s = 0; s < STEPS; s++) {
+                        double tried = original + total;
+                        shiftScores(queries, f, tried - weights[f], scores, candidate);
+                        double value = RankingMetrics.mean(metric, metric_k, queries, candidate);
+                        if(value > current + tolerance) {
+                            current = value;
+                            bestWeight = tried;
+                            copyScores(candidate, scores);
+                            weights[f] = tried;
+                        }
+                        step *= STEP_SCALE;
+                        total += step;
+                    }
+                }
+                weights[f] = bestWeight;
+            }
+            if(current - start < tolerance)
+                break;
+        }
+        return current;
+    }
+
+    /**
+     * Fills candidate with the scores after adding delta to the weight of feature f.
+     */
+    private static void shiftScores(List<TrainingQuery> queries, int f, double delta, double[][] scores,
+                                    double[][] candidate) {
+        for(int q = 0; q < scores.length; q++) {
+            double[][] features = queries.get(q).features;
+            for(int d = 0; d < features.length; d++)
+                candidate[q][d] = scores[q][d] + delta * features[d][f];
+        }
+    }
+
+    private static void copyScores(double[][] from, double[][] to) {
+        for(int q = 0; q < from.length; q++)
+            System.arraycopy(from[q], 0, to[q], 0, from[q].length);
+    }
+
+    private static void shuffle(int[] values, Random random) {
+        for(int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+    private static double[] normalize(double[] weights) {
+        double sum = 0;
+        for(double weight : weights)
+            sum += Math.abs(weight);
+        if(sum > 0)
+            for(int i = 0; i < weights.length; i++)
+                weights[i] /= sum;
+        return weights;
+    }
+}
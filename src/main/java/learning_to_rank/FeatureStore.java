@@ -0,0 +1,405 @@
+package main.java.learning_to_rank;
+
+import main.java.Util.RankLibUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary, columnar alternative to RankLib's text format for training and test data. Features are stored as float32
+ * columns, so loading a file is a memory map instead of parsing every value. Layout, little endian:
+ *
+ *   header      magic, version, number of queries, number of features (int32), number of documents,
+ *               offset of the dictionary (int64)
+ *   queries     first document of each query, and the total number of documents (int64)
+ *   labels      relevance of each document (int32)
+ *   features    one column of every document's value per feature (float32), missing features are 0
+ *   dictionary  numerical id, id and text of each query, then the id of each document (length prefixed UTF-8)
+ */
+public class FeatureStore {
+    private static final int MAGIC = 0x46535452;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    /**
+     * Writes the queries' documents, labels and features.
+     * @param queries Queries as collected for RankLib
+     * @param storeFile File to write
+     */
+    public static void write(List<RankLibUtil.RankLibQueryInfo> queries, Path storeFile) {
+        int nFeatures = 0;
+        long nDocs = 0;
+        for(RankLibUtil.RankLibQueryInfo query : queries) {
+            nDocs += query.doc_data.size();
+            for(RankLibUtil.RankLibQueryInfo.RelevanceFeaturePair doc : query.doc_data.values())
+                nFeatures = Math.max(nFeatures, doc.getHighestFeature());
+        }
+        long dictionaryOffset = HEADER_BYTES + 8L * (queries.size() + 1) + 4L * nDocs + 4L * nFeatures * nDocs;
+
+        try(FileChannel channel = FileChannel.open(storeFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter out = new ChannelWriter(channel);
+            out.buffer.putInt(MAGIC).putInt(VERSION).putInt(queries.size()).putInt(nFeatures).putLong(nDocs)
+                    .putLong(dictionaryOffset);
+
+            long start = 0;
+            for(RankLibUtil.RankLibQueryInfo query : queries) {
+                out.reserve(8).putLong(start);
+                start += query.doc_data.size();
+            }
+            out.reserve(8).putLong(start);
+
+            for(RankLibUtil.RankLibQueryInfo query : queries)
+                for(RankLibUtil.RankLibQueryInfo.RelevanceFeaturePair doc : query.doc_data.values())
+                    out.reserve(4).putInt(doc.relevance);
+
+            for(int f = 1; f <= nFeatures; f++)
+                for(RankLibUtil.RankLibQueryInfo query : queries)
+                    for(RankLibUtil.RankLibQueryInfo.RelevanceFeaturePair doc : query.doc_data.values()) {
+                        double value = doc.getFeature(f);
+                        out.reserve(4).putFloat(Double.isNaN(value) ? 0 : (float) value);
+                    }
+
+            for(RankLibUtil.RankLibQueryInfo query : queries) {
+                out.reserve(4).putInt(query.numerical_id);
+                out.putString(query.query_id);
+                out.putString(query.query_text);
+            }
+            for(RankLibUtil.RankLibQueryInfo query : queries)
+                for(String docId : query.doc_data.keySet())
+                    out.putString(docId);
+            out.flush();
+        } catch(IOException io) {
+            throw new IllegalStateException("Unable to write feature store " + storeFile + ": " + io.getMessage());
+        }
+    }
+
+    /**
+     * Buffers writes to a channel.
+     */
+    private static class ChannelWriter {
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        ChannelWriter(FileChannel c) {
+            channel = c;
+        }
+
+        /**
+         * @return The buffer, with at least the given number of bytes free.
+         */
+        ByteBuffer reserve(int bytes) throws IOException {
+            if(buffer.remaining() < bytes)
+                flush();
+            return buffer;
+        }
+
+        void putString(String value) throws IOException {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            reserve(4).putInt(bytes.length);
+            if(bytes.length <= BUFFER_BYTES) {
+                reserve(bytes.length).put(bytes);
+            } else {
+                flush();
+                ByteBuffer large = ByteBuffer.wrap(bytes);
+                while(large.hasRemaining())
+                    channel.write(large);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Memory mapped view of a feature store. The mapping outlives close() until it is garbage collected, as Java 8
+     * offers no way to unmap a file.
+     */
+    public static class Reader implements AutoCloseable {
+        private final FileChannel channel;
+        private final int n_queries, n_features, n_docs;
+        private final LongBuffer query_starts;
+        private final IntBuffer labels;
+        private final FloatBuffer[] columns;
+
+        private final int[] numerical_ids;
+        private final String[] query_ids, query_texts;
+
+        //Position of each document id in the dictionary
+        private final ByteBuffer dictionary;
+        private final int[] doc_id_offsets;
+
+        public Reader(Path storeFile) {
+            try {
+                channel = FileChannel.open(storeFile, StandardOpenOption.READ);
+                ByteBuffer header = map(0, HEADER_BYTES);
+                if(header.getInt() != MAGIC || header.getInt() != VERSION)
+                    throw new IllegalStateException("Not a version " + VERSION + " feature store: " + storeFile);
+                n_queries = header.getInt();
+                n_features = header.getInt();
+                long nDocs = header.getLong();
+                long dictionaryOffset = header.getLong();
+                if(nDocs > Integer.MAX_VALUE)
+                    throw new IllegalStateException("Too many documents in " + storeFile + ": " + nDocs);
+                n_docs = (int) nDocs;
+
+                long position = HEADER_BYTES;
+                query_starts = map(position, 8L * (n_queries + 1)).asLongBuffer();
+                position += 8L * (n_queries + 1);
+                labels = map(position, 4L * n_docs).asIntBuffer();
+                position += 4L * n_docs;
+                columns = new FloatBuffer[n_features];
+                for(int f = 0; f < n_features; f++) {
+                    columns[f] = map(position, 4L * n_docs).asFloatBuffer();
+                    position += 4L * n_docs;
+                }
+
+                dictionary = map(dictionaryOffset, channel.size() - dictionaryOffset);
+                numerical_ids = new int[n_queries];
+                query_ids = new String[n_queries];
+                query_texts = new String[n_queries];
+                for(int q = 0; q < n_queries; q++) {
+                    numerical_ids[q] = dictionary.getInt();
+                    query_ids[q] = readString(dictionary, dictionary.position());
+                    dictionary.position(dictionary.position() + 4 + dictionary.getInt(dictionary.position()));
+                    query_texts[q] = readString(dictionary, dictionary.position());
+                    dictionary.position(dictionary.position() + 4 + dictionary.getInt(dictionary.position()));
+                }
+                doc_id_offsets = new int[n_docs];
+                for(int d = 0; d < n_docs; d++) {
+                    doc_id_offsets[d] = dictionary.position();
+                    dictionary.position(dictionary.position() + 4 + dictionary.getInt(dictionary.position()));
+                }
+            } catch(IOException io) {
+                throw new IllegalStateException("Unable to open feature store " + storeFile + ": " + io.getMessage());
+            }
+        }
+
+        private ByteBuffer map(long position, long size) throws IOException {
+            if(size > Integer.MAX_VALUE)
+                throw new IllegalStateException("Section of " + size + " bytes is too large to map");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+
+        private static String readString(ByteBuffer buffer, int position) {
+            byte[] bytes = new byte[buffer.getInt(position)];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(position + 4);
+            slice.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public int getNumberOfQueries() {
+            return n_queries;
+        }
+
+        public int getNumberOfFeatures() {
+            return n_features;
+        }
+
+        public int getNumberOfDocuments() {
+            return n_docs;
+        }
+
+        /**
+         * @return Ordinal of the query's first document.
+         */
+        public int getQueryStart(int query) {
+            return (int) query_starts.get(query);
+        }
+
+        /**
+         * @return Ordinal after the query's last document.
+         */
+        public int getQueryEnd(int query) {
+            return (int) query_starts.get(query + 1);
+        }
+
+        public String getQueryId(int query) {
+            return query_ids[query];
+        }
+
+        public int getNumericalId(int query) {
+            return numerical_ids[query];
+        }
+
+        public String getQueryText(int query) {
+            return query_texts[query];
+        }
+
+        public String getDocId(int doc) {
+            return readString(dictionary, doc_id_offsets[doc]);
+        }
+
+        public int getLabel(int doc) {
+            return labels.get(doc);
+        }
+
+        /**
+         * @param doc Document ordinal
+         * @param feature Feature index, from 0
+         */
+        public float getFeature(int doc, int feature) {
+            return columns[feature].get(doc);
+        }
+
+        /**
+         * @return The values of a feature, from 0, for every document.
+         */
+        public FloatBuffer getColumn(int feature) {
+            return columns[feature].duplicate();
+        }
+
+        /**
+         * @return The query's features and labels, for training in process.
+         */
+        public TrainingQuery getTrainingQuery(int query) {
+            int start = getQueryStart(query);
+            double[][] features = new double[getQueryEnd(query) - start][n_features];
+            int[] queryLabels = new int[features.length];
+            for(int d = 0; d < features.length; d++)
+                queryLabels[d] = labels.get(start + d);
+            for(int f = 0; f < n_features; f++)
+                for(int d = 0; d < features.length; d++)
+                    features[d][f] = columns[f].get(start + d);
+            return new TrainingQuery(query_ids[query], features, queryLabels);
+        }
+
+        public List<TrainingQuery> getTrainingQueries() {
+            List<TrainingQuery> queries = new ArrayList<>(n_queries);
+            for(int q = 0; q < n_queries; q++)
+                queries.add(getTrainingQuery(q));
+            return queries;
+        }
+
+        /**
+         * @return The query as collected for RankLib.
+         */
+        public RankLibUtil.RankLibQueryInfo getRankLibQueryInfo(int query) {
+            RankLibUtil.RankLibQueryInfo queryInfo = new RankLibUtil.RankLibQueryInfo(query_ids[query],
+                    numerical_ids[query], query_texts[query], getQueryEnd(query) - getQueryStart(query), n_features);
+            for(int d = getQueryStart(query); d < getQueryEnd(query); d++) {
+                RankLibUtil.RankLibQueryInfo.RelevanceFeaturePair doc =
+                        queryInfo.addDocument(getDocId(d), labels.get(d), n_features);
+                for(int f = 0; f < n_features; f++)
+                    doc.addFeature(f + 1, columns[f].get(d));
+            }
+            return queryInfo;
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch(IOException io) {
+                throw new IllegalStateException("Unable to close feature store: " + io.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Converts a file in RankLib's text format, as written by RankLibUtil.outputToRankLibFormat.
+     * @param textFile RankLib file to read
+     * @param storeFile Feature store to write
+     * @see #readRankLibText(Path)
+     */
+    public static void fromRankLibText(Path textFile, Path storeFile) {
+        write(readRankLibText(textFile), storeFile);
+    }
+
+    /**
+     * Reads a file in RankLib's text format, as written by RankLibUtil.outputToRankLibFormat. The comment after each
+     * line's features is expected to hold the document id and then the query id.
+     * @param textFile RankLib file to read
+     * @return The data of each query, in the order of the file.
+     */
+    public static List<RankLibUtil.RankLibQueryInfo> readRankLibText(Path textFile) {
+        List<RankLibUtil.RankLibQueryInfo> queries = new ArrayList<>();
+        RankLibUtil.RankLibQueryInfo query = null;
+        try(BufferedReader in = Files.newBufferedReader(textFile, StandardCharsets.UTF_8)) {
+            for(String line = in.readLine(); line != null; line = in.readLine()) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                int commentStart = line.indexOf('#');
+                String[] parts = ((commentStart < 0) ? line : line.substring(0, commentStart)).trim().split("\\s+");
+                String[] comment = (commentStart < 0) ? new String[0]
+                        : line.substring(commentStart + 1).trim().split("\\s+", 2);
+                if(parts.length < 2 || !parts[1].startsWith("qid:"))
+                    throw new IllegalStateException("Expected a qid in line: " + line);
+
+                String qid = parts[1].substring(4);
+                String queryId = (comment.length > 1) ? comment[1] : qid;
+                if(query == null || !query.query_id.equals(queryId)) {
+                    int numericalId;
+                    try {
+                        numericalId = Integer.parseInt(qid);
+                    } catch(NumberFormatException nfe) {
+                        numericalId = queries.size() + 1;
+                    }
+                    query = new RankLibUtil.RankLibQueryInfo(queryId, numericalId, "");
+                    queries.add(query);
+                }
+
+                String docId = (comment.length > 0 && !comment[0].isEmpty()) ? comment[0]
+                        : Integer.toString(query.doc_data.size());
+                RankLibUtil.RankLibQueryInfo.RelevanceFeaturePair doc =
+                        query.addDocument(docId, (int) Float.parseFloat(parts[0]), -1);
+                for(int i = 2; i < parts.length; i++) {
+                    int separator = parts[i].indexOf(':');
+                    doc.addFeature(Integer.parseInt(parts[i].substring(0, separator)),
+                            Double.parseDouble(parts[i].substring(separator + 1)));
+                }
+            }
+        } catch(IOException | NumberFormatException e) {
+            throw new IllegalStateException("Unable to read RankLib file " + textFile + ": " + e.getMessage());
+        }
+        return queries;
+    }
+
+    /**
+     * Converts a feature store back to RankLib's text format, in the same lines RankLibUtil.outputToRankLibFormat
+     * writes.
+     * @param storeFile Feature store to read
+     * @param textFile RankLib file to write
+     */
+    public static void toRankLibText(Path storeFile, Path textFile) {
+        try(Reader reader = new Reader(storeFile);
+            BufferedWriter out = Files.newBufferedWriter(textFile, StandardCharsets.UTF_8)) {
+            double[] features = new double[reader.getNumberOfFeatures()];
+            for(int q = 0; q < reader.getNumberOfQueries(); q++) {
+                String qid = Integer.toString(reader.getNumericalId(q));
+                for(int d = reader.getQueryStart(q); d < reader.getQueryEnd(q); d++) {
+                    for(int f = 0; f < features.length; f++)
+                        features[f] = reader.getFeature(d, f);
+                    out.write(RankLibUtil.buildObjectString(reader.getLabel(d), qid,
+                            reader.getDocId(d) + " " + reader.getQueryId(q), features));
+                    out.newLine();
+                }
+            }
+        } catch(IOException io) {
+            throw new IllegalStateException("Unable to write RankLib file " + textFile + ": " + io.getMessage());
+        }
+    }
+}
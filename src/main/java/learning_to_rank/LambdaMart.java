@@ -0,0 +1,475 @@
+package main.java.learning_to_rank;
+
+import main.java.Util.RankLibUtil;
+import main.java.ranking.RerankModel;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * LambdaMART: gradient boosted regression trees fit to the lambda gradients of NDCG@k, with a Newton step at each
+ * leaf, as in RankLib. Feature values are bucketed once into at most threshold_candidates split points per feature, so
+ * finding a split is a pass over per-bucket histograms instead of a sort. Trees are added until max_trees, or until the
+ * training metric hasn't improved for early_stop trees, and the ensemble is cut back to its best size.
+ */
+public class LambdaMart {
+
+    /**
+     * Regression tree stored in arrays. Leaves have feature -1.
+     */
+    public static class RegressionTree {
+        final int[] feature;
+        final double[] threshold;
+        final int[] left, right;
+        final double[] value;
+
+        RegressionTree(int[] f, double[] t, int[] l, int[] r, double[] v) {
+            feature = f;
+            threshold = t;
+            left = l;
+            right = r;
+            value = v;
+        }
+
+        public double evaluate(double[] features) {
+            int node = 0;
+            while(feature[node] >= 0)
+                node = (features[feature[node]] <= threshold[node]) ? left[node] : right[node];
+            return value[node];
+        }
+
+        /**
+         * Appends the subtree under node as RankLib's nested split elements.
+         * @param position "left" or "right", null for the root
+         */
+        private void write(StringBuilder out, int node, int depth, String position) {
+            indent(out, depth).append((position == null) ? "<split>" : "<split pos=\"" + position + "\">").append('\n');
+            if(feature[node] < 0) {
+                indent(out, depth + 1).append("<output> ").append(value[node]).append(" </output>\n");
+            } else {
+                indent(out, depth + 1).append("<feature> ").append(feature[node] + 1).append(" </feature>\n");
+                indent(out, depth + 1).append("<threshold> ").append(threshold[node]).append(" </threshold>\n");
+                write(out, left[node], depth + 1, "left");
+                write(out, right[node], depth + 1, "right");
+            }
+            indent(out, depth).append("</split>\n");
+        }
+
+        private static StringBuilder indent(StringBuilder out, int depth) {
+            for(int i = 0; i < depth; i++)
+                out.append('\t');
+            return out;
+        }
+
+        /**
+         * @param root Root split element of a tree in RankLib's format
+         */
+        static RegressionTree read(Element root) {
+            List<Element> nodes = new ArrayList<>();
+            List<Integer> parents = new ArrayList<>();
+            nodes.add(root);
+            parents.add(-1);
+            //Nodes are numbered in breadth first order, each split's children after it.
+            for(int node = 0; node < nodes.size(); node++)
+                for(Element child : children(nodes.get(node), "split")) {
+                    nodes.add(child);
+                    parents.add(node);
+                }
+
+            int[] f = new int[nodes.size()], l = new int[nodes.size()], r = new int[nodes.size()];
+            double[] t = new double[nodes.size()], v = new double[nodes.size()];
+            Arrays.fill(f, -1);
+            for(int node = 0; node < nodes.size(); node++) {
+                Element split = nodes.get(node);
+                List<Element> output = children(split, "output");
+                if(!output.isEmpty()) {
+                    v[node] = Double.parseDouble(output.get(0).getTextContent().trim());
+                } else {
+                    f[node] = Integer.parseInt(children(split, "feature").get(0).getTextContent().trim()) - 1;
+                    t[node] = Double.parseDouble(children(split, "threshold").get(0).getTextContent().trim());
+                }
+                int parent = parents.get(node);
+                if(parent >= 0) {
+                    if(split.getAttribute("pos").equals("left"))
+                        l[parent] = node;
+                    else
+                        r[parent] = node;
+                }
+            }
+            return new RegressionTree(f, t, l, r, v);
+        }
+    }
+
+    /**
+     * Ensemble produced by LambdaMART.
+     */
+    public static class Ensemble implements RerankModel {
+        public final List<RegressionTree> trees;
+        public final double shrinkage;
+
+        public Ensemble(List<RegressionTree> t, double s) {
+            trees = t;
+            shrinkage = s;
+        }
+
+        @Override
+        public double score(double[] features) {
+            double score = 0;
+            for(RegressionTree tree : trees)
+                score += shrinkage * tree.evaluate(features);
+            return score;
+        }
+
+        /**
+         * Saves the ensemble in RankLib's LambdaMART format, which RankLib and load can read.
+         */
+        public void save(Path modelFile) throws IOException {
+            StringBuilder model = new StringBuilder("## LambdaMART\n")
+                    .append("## No. of trees = ").append(trees.size()).append('\n')
+                    .append("## Learning rate = ").append(shrinkage).append('\n')
+                    .append("<ensemble>\n");
+            for(int t = 0; t < trees.size(); t++) {
+                model.append("\t<tree id=\"").append(t + 1).append("\" weight=\"").append(shrinkage).append("\">\n");
+                trees.get(t).write(model, 0, 2, null);
+                model.append("\t</tree>\n");
+            }
+            model.append("</ensemble>\n");
+            Files.write(modelFile, model.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @param modelLoc Location of a model file
+         * @return Whether or not the model is a tree ensemble saved by RankLib's LambdaMART or MART, or by save.
+         */
+        public static boolean isEnsemble(String modelLoc) {
+            try(BufferedReader in = Files.newBufferedReader(Paths.get(modelLoc), StandardCharsets.UTF_8)) {
+                String header = in.readLine();
+                return header != null && (header.startsWith("## LambdaMART") || header.startsWith("## MART"));
+            } catch(IOException io) {
+                throw new IllegalStateException("Unable to read model " + modelLoc + ": " + io.getMessage());
+            }
+        }
+
+        /**
+         * @param modelLoc Location of a tree ensemble saved by RankLib's LambdaMART or MART, or by save. Every tree
+         *                 must have the same weight.
+         * @return The loaded ensemble.
+         */
+        public static Ensemble load(String modelLoc) {
+            try {
+                //The ## comments before the ensemble aren't XML.
+                StringBuilder xml = new StringBuilder();
+                for(String line : Files.readAllLines(Paths.get(modelLoc), StandardCharsets.UTF_8))
+                    if(!line.startsWith("##"))
+                        xml.append(line).append('\n');
+                Element ensemble = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                        .parse(new InputSource(new StringReader(xml.toString()))).getDocumentElement();
+
+                List<RegressionTree> trees = new ArrayList<>();
+                double weight = Double.NaN;
+                for(Element tree : children(ensemble, "tree")) {
+                    double treeWeight = Double.parseDouble(tree.getAttribute("weight"));
+                    if(!Double.isNaN(weight) && treeWeight != weight)
+                        throw new IllegalStateException("Expected every tree to have weight " + weight + ": " +
+                                treeWeight);
+                    weight = treeWeight;
+                    trees.add(RegressionTree.read(children(tree, "split").get(0)));
+                }
+                return new Ensemble(trees, Double.isNaN(weight) ? 1.0 : weight);
+            } catch(IOException | ParserConfigurationException | SAXException | RuntimeException e) {
+                throw new IllegalStateException("Unable to load model " + modelLoc + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return The child elements of parent with the given name, in document order.
+     */
+    private static List<Element> children(Element parent, String name) {
+        List<Element> children = new ArrayList<>();
+        for(Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+            if(child instanceof Element && child.getNodeName().equals(name))
+                children.add((Element) child);
+        return children;
+    }
+
+    private final RankLibUtil.Metric metric;
+    private final int metric_k;
+    private final int max_trees;
+    private final int max_leaves;
+    private final double shrinkage;
+    private final int threshold_candidates;
+    private final int min_leaf_support;
+    private final int early_stop;
+
+    /**
+     * @param m Metric to pick the number of trees by. The gradients always follow NDCG@k.
+     * @param k Cut off of the metric and of the NDCG gradients
+     * @param trees Maximum number of trees
+     * @param leaves Number of leaves per tree
+     * @param shrink Learning rate
+     * @param thresholds Maximum number of split points per feature
+     * @param minLeafSupport Smallest number of candidates in a leaf
+     * @param earlyStop Number of trees without improvement after which training stops
+     */
+    public LambdaMart(RankLibUtil.Metric m, int k, int trees, int leaves, double shrink, int thresholds,
+                      int minLeafSupport, int earlyStop) {
+        metric = m;
+        metric_k = k;
+        max_trees = trees;
+        max_leaves = leaves;
+        shrinkage = shrink;
+        threshold_candidates = thresholds;
+        min_leaf_support = minLeafSupport;
+        early_stop = earlyStop;
+    }
+
+    public Ensemble train(List<TrainingQuery> queries) {
+        int nFeatures = queries.stream().mapToInt(TrainingQuery::getNumberOfFeatures).max().orElse(0);
+        int nDocs = 0;
+        int[] queryStart = new int[queries.size() + 1];
+        for(int q = 0; q < queries.size(); q++) {
+            queryStart[q] = nDocs;
+            nDocs += queries.get(q).size();
+        }
+        queryStart[queries.size()] = nDocs;
+
+        //Bucket every feature value once.
+        double[][] thresholds = new double[nFeatures][];
+        int[][] buckets = new int[nFeatures][nDocs];
+        for(int f = 0; f < nFeatures; f++) {
+            double[] column = new double[nDocs];
+            for(int q = 0; q < queries.size(); q++)
+                for(int d = 0; d < queries.get(q).size(); d++)
+                    column[queryStart[q] + d] = queries.get(q).features[d][f];
+            thresholds[f] = splitPoints(column);
+            for(int i = 0; i < nDocs; i++) {
+                int bucket = Arrays.binarySearch(thresholds[f], column[i]);
+                buckets[f][i] = (bucket >= 0) ? bucket : -bucket - 1;
+            }
+        }
+
+        double[] modelScores = new double[nDocs];
+        double[] lambdas = new double[nDocs];
+        double[] hessians = new double[nDocs];
+        double[][] queryScores = new double[queries.size()][];
+        List<RegressionTree> trees = new ArrayList<>();
+        double bestMetric = Double.NEGATIVE_INFINITY;
+        int bestSize = 0;
+        for(int t = 0; t < max_trees && t - bestSize < early_stop; t++) {
+            Arrays.fill(lambdas, 0);
+            Arrays.fill(hessians, 0);
+            for(int q = 0; q < queries.size(); q++)
+                computeLambdas(queries.get(q).labels, modelScores, queryStart[q], lambdas, hessians);
+
+            RegressionTree tree = fitTree(buckets, thresholds, lambdas, hessians, nDocs);
+            trees.add(tree);
+            for(int q = 0; q < queries.size(); q++) {
+                TrainingQuery query = queries.get(q);
+                queryScores[q] = new double[query.size()];
+                for(int d = 0; d < query.size(); d++) {
+                    modelScores[queryStart[q] + d] += shrinkage * tree.evaluate(query.features[d]);
+                    queryScores[q][d] = modelScores[queryStart[q] + d];
+                }
+            }
+
+            double value = RankingMetrics.mean(metric, metric_k, queries, queryScores);
+            if(value > bestMetric) {
+                bestMetric = value;
+                bestSize = t + 1;
+            }
+        }
+        return new Ensemble(new ArrayList<>(trees.subList(0, bestSize)), shrinkage);
+    }
+
+    /**
+     * Adds the lambda gradient and its second derivative of each candidate of a query.
+     */
+    private void computeLambdas(int[] labels, double[] modelScores, int start, double[] lambdas, double[] hessians) {
+        int n = labels.length;
+        double[] scores = Arrays.copyOfRange(modelScores, start, start + n);
+        double ideal = RankingMetrics.idealDcg(labels, metric_k);
+        if(ideal <= 0)
+            return;
+        int[] order = RankingMetrics.sortByScore(scores);
+        int[] position = new int[n];
+        for(int rank = 0; rank < n; rank++)
+            position[order[rank]] = rank;
+
+        for(int i = 0; i < n; i++) {
+            for(int j = 0; j < n; j++) {
+                if(labels[i] <= labels[j])
+                    continue;
+                double discountI = (position[i] < metric_k) ? RankingMetrics.discount(position[i]) : 0;
+                double discountJ = (position[j] < metric_k) ? RankingMetrics.discount(position[j]) : 0;
+                double delta = Math.abs((RankingMetrics.gain(labels[i]) - RankingMetrics.gain(labels[j])) *
+                        (discountI - discountJ)) / ideal;
+                if(delta == 0)
+                    continue;
+                double rho = 1.0 / (1.0 + Math.exp(scores[i] - scores[j]));
+                lambdas[start + i] += delta * rho;
+                lambdas[start + j] -= delta * rho;
+                double hessian = delta * rho * (1.0 - rho);
+                hessians[start + i] += hessian;
+                hessians[start + j] += hessian;
+            }
+        }
+    }
+
+    /**
+     * Grows a tree best first: the leaf whose best split reduces the squared error the most is split next.
+     */
+    private RegressionTree fitTree(int[][] buckets, double[][] thresholds, double[] lambdas, double[] hessians,
+                                   int nDocs) {
+        int maxNodes = 2 * max_leaves - 1;
+        int[] feature = new int[maxNodes];
+        double[] threshold = new double[maxNodes];
+        int[] left = new int[maxNodes], right = new int[maxNodes];
+        double[] value = new double[maxNodes];
+        Arrays.fill(feature, -1);
+
+        List<int[]> nodeDocs = new ArrayList<>();
+        int[] all = new int[nDocs];
+        for(int i = 0; i < nDocs; i++)
+            all[i] = i;
+        nodeDocs.add(all);
+        List<Split> splits = new ArrayList<>();
+        splits.add(bestSplit(all, buckets, lambdas));
+        int nodes = 1, leaves = 1;
+
+        while(leaves < max_leaves) {
+            int splitNode = -1;
+            for(int node = 0; node < nodes; node++) {
+                Split split = splits.get(node);
+                if(feature[node] < 0 && split != null && (splitNode < 0 || split.gain > splits.get(splitNode).gain))
+                    splitNode = node;
+            }
+            if(splitNode < 0)
+                break;
+
+            Split split = splits.get(splitNode);
+            int[] docs = nodeDocs.get(splitNode);
+            int[] leftDocs = new int[split.left_count];
+            int[] rightDocs = new int[docs.length - split.left_count];
+            int l = 0, r = 0;
+            for(int doc : docs) {
+                if(buckets[split.feature][doc] <= split.bucket)
+                    leftDocs[l++] = doc;
+                else
+                    rightDocs[r++] = doc;
+            }
+
+            feature[splitNode] = split.feature;
+            threshold[splitNode] = thresholds[split.feature][split.bucket];
+            left[splitNode] = nodes;
+            right[splitNode] = nodes + 1;
+            nodeDocs.add(leftDocs);
+            nodeDocs.add(rightDocs);
+            splits.add(bestSplit(leftDocs, buckets, lambdas));
+            splits.add(bestSplit(rightDocs, buckets, lambdas));
+            nodes += 2;
+            leaves++;
+        }
+
+        for(int node = 0; node < nodes; node++) {
+            if(feature[node] >= 0)
+                continue;
+            double gradient = 0, hessian = 0;
+            for(int doc : nodeDocs.get(node)) {
+                gradient += lambdas[doc];
+                hessian += hessians[doc];
+            }
+            value[node] = (hessian > 0) ? gradient / hessian : 0;
+        }
+        return new RegressionTree(Arrays.copyOf(feature, nodes), Arrays.copyOf(threshold, nodes),
+                Arrays.copyOf(left, nodes), Arrays.copyOf(right, nodes), Arrays.copyOf(value, nodes));
+    }
+
+    private static class Split {
+        final int feature, bucket, left_count;
+        final double gain;
+
+        Split(int f, int b, int l, double g) {
+            feature = f;
+            bucket = b;
+            left_count = l;
+            gain = g;
+        }
+    }
+
+    /**
+     * @return The split of the candidates that most reduces the squared error of the lambdas, or null if none is
+     * allowed.
+     */
+    private Split bestSplit(int[] docs, int[][] buckets, double[] lambdas) {
+        if(docs.length < 2 * min_leaf_support)
+            return null;
+        double total = 0;
+        for(int doc : docs)
+            total += lambdas[doc];
+        double parent = total * total / docs.length;
+
+        Split best = null;
+        for(int f = 0; f < buckets.length; f++) {
+            int nBuckets = 0;
+            for(int doc : docs)
+                nBuckets = Math.max(nBuckets, buckets[f][doc] + 1);
+            double[] sums = new double[nBuckets];
+            int[] counts = new int[nBuckets];
+            for(int doc : docs) {
+                sums[buckets[f][doc]] += lambdas[doc];
+                counts[buckets[f][doc]]++;
+            }
+
+            double leftSum = 0;
+            int leftCount = 0;
+            for(int b = 0; b < nBuckets - 1; b++) {
+                leftSum += sums[b];
+                leftCount += counts[b];
+                int rightCount = docs.length - leftCount;
+                if(leftCount < min_leaf_support || rightCount < min_leaf_support || counts[b] == 0)
+                    continue;
+                double rightSum = total - leftSum;
+                double gain = leftSum * leftSum / leftCount + rightSum * rightSum / rightCount - parent;
+                if(gain > 0 && (best == null || gain > best.gain))
+                    best = new Split(f, b, leftCount, gain);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return Up to threshold_candidates ascending split points. A value is in bucket b if it is at most point b.
+     */
+    private double[] splitPoints(double[] column) {
+        double[] sorted = column.clone();
+        Arrays.sort(sorted);
+        double[] distinct = new double[sorted.length];
+        int nDistinct = 0;
+        for(double value : sorted)
+            if(nDistinct == 0 || value != distinct[nDistinct - 1])
+                distinct[nDistinct++] = value;
+        if(nDistinct <= threshold_candidates)
+            return Arrays.copyOf(distinct, nDistinct);
+
+        double[] points = new double[threshold_candidates];
+        for(int i = 0; i < threshold_candidates; i++)
+            points[i] = distinct[(int) ((long) (i + 1) * nDistinct / threshold_candidates) - 1];
+        return points;
+    }
+}
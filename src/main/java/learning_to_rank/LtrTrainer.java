@@ -0,0 +1,208 @@
+package main.java.learning_to_rank;
+
+import main.java.Util.RankLibUtil;
+import main.java.ranking.FeatureExtractor;
+import main.java.ranking.RerankModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains rerank models in process on feature matrices already in memory, instead of running the RankLib jar.
+ * Supports coordinate ascent and LambdaMART, which RankLibUtil.train trains with it; the folds of a cross-validation
+ * are trained concurrently.
+ */
+public class LtrTrainer {
+    private static final Logger logger = LoggerFactory.getLogger(LtrTrainer.class);
+
+    /* Executor the folds are trained on. */
+    private static final ExecutorService fold_executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "ltr-fold");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /**
+     * Model trained on one fold and its metric on the training and held out queries.
+     */
+    public static class Fold {
+        public final int fold;
+        public final double train_metric;
+        public final double test_metric;
+        public final RerankModel model;
+
+        Fold(int f, double train, double test, RerankModel m) {
+            fold = f;
+            train_metric = train;
+            test_metric = test;
+            model = m;
+        }
+    }
+
+    /**
+     * Results of k-fold cross-validation, the in process counterpart of RankLibUtil.FoldData.
+     */
+    public static class CrossValidation {
+        public final List<Fold> folds;
+
+        //Fold with the best metric on its held out queries
+        public final Fold best_fold;
+
+        //Mean metric on the held out queries over the folds
+        public final double average_test_metric;
+
+        CrossValidation(List<Fold> f) {
+            folds = Collections.unmodifiableList(f);
+            Fold best = null;
+            double sum = 0;
+            for(Fold fold : f) {
+                sum += fold.test_metric;
+                if(best == null || fold.test_metric > best.test_metric)
+                    best = fold;
+            }
+            best_fold = best;
+            average_test_metric = f.isEmpty() ? 0 : sum / f.size();
+        }
+    }
+
+    private final RankLibUtil.Metric metric;
+    private final int metric_k;
+    private final boolean normalize;
+
+    /**
+     * @param m Metric to optimize and report
+     * @param k Cut off of the metric
+     * @param normalizeFeatures Whether to sum normalize each query's features first, as CascadeRanker does
+     */
+    public LtrTrainer(RankLibUtil.Metric m, int k, boolean normalizeFeatures) {
+        metric = m;
+        metric_k = k;
+        normalize = normalizeFeatures;
+    }
+
+    /**
+     * @param method COORDINATE_ASCENT or LAMBDA_MART
+     * @param queries Training queries
+     * @return The trained model.
+     */
+    public RerankModel train(RankLibUtil.LearningMethod method, List<TrainingQuery> queries) {
+        return trainPrepared(method, prepare(queries));
+    }
+
+    /**
+     * Splits the queries into kFolds contiguous folds, and for each trains on the other folds and tests on it.
+     * @param method COORDINATE_ASCENT or LAMBDA_MART
+     * @param queries Training queries
+     * @param kFolds Number of folds, at least 2
+     * @return Metrics and model of every fold.
+     */
+    public CrossValidation crossValidate(RankLibUtil.LearningMethod method, List<TrainingQuery> queries, int kFolds) {
+        if(kFolds < 2 || kFolds > queries.size())
+            throw new IllegalArgumentException("Expected between 2 and " + queries.size() + " folds: " + kFolds);
+        List<TrainingQuery> prepared = prepare(queries);
+
+        List<Future<Fold>> futures = new ArrayList<>(kFolds);
+        for(int f = 0; f < kFolds; f++) {
+            int fold = f;
+            int testStart = fold * prepared.size() / kFolds;
+            int testEnd = (fold + 1) * prepared.size() / kFolds;
+            futures.add(fold_executor.submit(() -> {
+                List<TrainingQuery> train = new ArrayList<>(prepared.subList(0, testStart));
+                train.addAll(prepared.subList(testEnd, prepared.size()));
+                List<TrainingQuery> test = prepared.subList(testStart, testEnd);
+                RerankModel model = trainPrepared(method, train);
+                Fold result = new Fold(fold + 1, evaluate(model, train), evaluate(model, test), model);
+                logger.info("Fold " + result.fold + ": training " + metric.name + " " + result.train_metric +
+                        ", test " + result.test_metric);
+                return result;
+            }));
+        }
+
+        List<Fold> folds = new ArrayList<>(kFolds);
+        try {
+            for(Future<Fold> future : futures)
+                folds.add(future.get());
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            throw new IllegalStateException("Interrupted during cross-validation");
+        } catch(ExecutionException ee) {
+            futures.forEach(future -> future.cancel(true));
+            throw new IllegalStateException("Unable to train a fold: " + ee.getCause().getMessage());
+        }
+        return new CrossValidation(folds);
+    }
+
+    /**
+     * Saves a model trained by this class in RankLib's format for its method, which RankLib and RankLibUtil.FoldData
+     * can load.
+     * @param model Coordinate ascent or LambdaMART model
+     * @param modelLoc File to write
+     */
+    public static void saveModel(RerankModel model, String modelLoc) {
+        try {
+            if(model instanceof CoordinateAscent.LinearModel)
+                ((CoordinateAscent.LinearModel) model).save(Paths.get(modelLoc));
+            else if(model instanceof LambdaMart.Ensemble)
+                ((LambdaMart.Ensemble) model).save(Paths.get(modelLoc));
+            else
+                throw new IllegalArgumentException("Unable to save model of type " +
+                        model.getClass().getSimpleName());
+        } catch(IOException io) {
+            throw new IllegalStateException("Unable to save model " + modelLoc + ": " + io.getMessage());
+        }
+    }
+
+    /**
+     * @return The mean metric of the model's rankings of the queries.
+     */
+    public double evaluate(RerankModel model, List<TrainingQuery> queries) {
+        double[][] scores = new double[queries.size()][];
+        for(int q = 0; q < queries.size(); q++) {
+            TrainingQuery query = queries.get(q);
+            scores[q] = new double[query.size()];
+            for(int d = 0; d < query.size(); d++)
+                scores[q][d] = model.score(query.features[d]);
+        }
+        return RankingMetrics.mean(metric, metric_k, queries, scores);
+    }
+
+    private RerankModel trainPrepared(RankLibUtil.LearningMethod method, List<TrainingQuery> queries) {
+        switch(method) {
+            case COORDINATE_ASCENT:
+                return new CoordinateAscent(metric, metric_k, 5, 25, 0.001, 42).train(queries);
+            case LAMBDA_MART:
+                return new LambdaMart(metric, metric_k, 1000, 10, 0.1, 256, 1, 100).train(queries);
+            default:
+                throw new IllegalArgumentException("Unsupported learning method: " + method +
+                        ", use RankLibUtil to train it with RankLib");
+        }
+    }
+
+    /**
+     * @return The queries, with normalized copies of their features if enabled.
+     */
+    private List<TrainingQuery> prepare(List<TrainingQuery> queries) {
+        if(!normalize)
+            return queries;
+        List<TrainingQuery> prepared = new ArrayList<>(queries.size());
+        for(TrainingQuery query : queries) {
+            double[][] features = new double[query.size()][];
+            for(int d = 0; d < features.length; d++)
+                features[d] = query.features[d].clone();
+            FeatureExtractor.normalizeSum(features);
+            prepared.add(new TrainingQuery(query.query_id, features, query.labels));
+        }
+        return prepared;
+    }
+}
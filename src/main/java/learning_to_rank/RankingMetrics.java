@@ -0,0 +1,149 @@
+package main.java.learning_to_rank;
+
+import main.java.Util.RankLibUtil;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates rankings with the metrics RankLib trains for. Candidates with a label above 0 are relevant, and graded
+ * metrics use the label as the grade. Ties in score keep the candidates' original order.
+ */
+public class RankingMetrics {
+
+    /**
+     * @param metric Metric to evaluate
+     * @param k Cut off of the @k metrics, ignored by MAP
+     * @param scores Score of each candidate
+     * @param labels Relevance label of each candidate
+     * @return The metric of the ranking the scores produce.
+     */
+    public static double evaluate(RankLibUtil.Metric metric, int k, double[] scores, int[] labels) {
+        int[] ranked = rankedLabels(scores, labels);
+        int cutoff = Math.min(k, ranked.length);
+        switch(metric) {
+            case MAP:
+                return averagePrecision(ranked);
+            case DCG_k:
+                return dcg(ranked, cutoff);
+            case NDCG_k:
+                double ideal = idealDcg(labels, cutoff);
+                return (ideal > 0) ? dcg(ranked, cutoff) / ideal : 0;
+            case P_k: {
+                int relevant = 0;
+                for(int i = 0; i < cutoff; i++)
+                    if(ranked[i] > 0)
+                        relevant++;
+                return (k > 0) ? (double) relevant / k : 0;
+            }
+            case RR_k:
+                for(int i = 0; i < cutoff; i++)
+                    if(ranked[i] > 0)
+                        return 1.0 / (i + 1);
+                return 0;
+            case ERR_k:
+                return err(ranked, cutoff);
+            default:
+                throw new IllegalArgumentException("Unsupported metric: " + metric);
+        }
+    }
+
+    /**
+     * @param queries Queries to evaluate
+     * @param scores Scores of each query's candidates, aligned with queries
+     * @return The mean of the metric over the queries that have candidates.
+     */
+    public static double mean(RankLibUtil.Metric metric, int k, List<TrainingQuery> queries, double[][] scores) {
+        double sum = 0;
+        int evaluated = 0;
+        for(int q = 0; q < queries.size(); q++) {
+            if(queries.get(q).size() == 0)
+                continue;
+            sum += evaluate(metric, k, scores[q], queries.get(q).labels);
+            evaluated++;
+        }
+        return (evaluated == 0) ? 0 : sum / evaluated;
+    }
+
+    /**
+     * @return The DCG@k of the ideal ordering of the labels.
+     */
+    public static double idealDcg(int[] labels, int k) {
+        int[] sorted = labels.clone();
+        Arrays.sort(sorted);
+        double ideal = 0;
+        for(int i = 0; i < Math.min(k, sorted.length); i++)
+            ideal += gain(sorted[sorted.length - 1 - i]) * discount(i);
+        return ideal;
+    }
+
+    static double gain(int label) {
+        return (label > 0) ? (1 << Math.min(label, 30)) - 1 : 0;
+    }
+
+    /**
+     * @return The discount of the rank, 0 being the top.
+     */
+    static double discount(int rank) {
+        return 1.0 / (Math.log(rank + 2) / Math.log(2));
+    }
+
+    /**
+     * @return The labels in the order of the candidates' scores, highest first.
+     */
+    private static int[] rankedLabels(double[] scores, int[] labels) {
+        int[] order = sortByScore(scores);
+        int[] ranked = new int[order.length];
+        for(int i = 0; i < order.length; i++)
+            ranked[i] = labels[order[i]];
+        return ranked;
+    }
+
+    /**
+     * @return Indexes of the scores, highest score first and ties in index order.
+     */
+    static int[] sortByScore(double[] scores) {
+        Integer[] order = new Integer[scores.length];
+        for(int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> (scores[a] != scores[b]) ? Double.compare(scores[b], scores[a]) : a - b);
+        int[] sorted = new int[order.length];
+        for(int i = 0; i < order.length; i++)
+            sorted[i] = order[i];
+        return sorted;
+    }
+
+    private static double averagePrecision(int[] ranked) {
+        int relevant = 0;
+        double precisionSum = 0;
+        for(int i = 0; i < ranked.length; i++) {
+            if(ranked[i] > 0) {
+                relevant++;
+                precisionSum += (double) relevant / (i + 1);
+            }
+        }
+        return (relevant == 0) ? 0 : precisionSum / relevant;
+    }
+
+    private static double dcg(int[] ranked, int k) {
+        double dcg = 0;
+        for(int i = 0; i < k; i++)
+            dcg += gain(ranked[i]) * discount(i);
+        return dcg;
+    }
+
+    private static double err(int[] ranked, int k) {
+        int maxLabel = 1;
+        for(int label : ranked)
+            maxLabel = Math.max(maxLabel, label);
+        double maxGain = 1 << Math.min(maxLabel, 30);
+
+        double err = 0, notSatisfied = 1;
+        for(int i = 0; i < k; i++) {
+            double satisfied = gain(ranked[i]) / maxGain;
+            err += notSatisfied * satisfied / (i + 1);
+            notSatisfied *= 1 - satisfied;
+        }
+        return err;
+    }
+}
@@ -0,0 +1,51 @@
+package main.java.learning_to_rank;
+
+import main.java.Util.RankLibUtil;
+
+/**
+ * Feature matrix and relevance labels of the candidates of one query, as trained on in memory.
+ */
+public class TrainingQuery {
+    public final String query_id;
+
+    //Features of each candidate, feature 1 at index 0
+    public final double[][] features;
+
+    //Relevance label of each candidate, aligned with features
+    public final int[] labels;
+
+    public TrainingQuery(String queryId, double[][] f, int[] l) {
+        if(f.length != l.length)
+            throw new IllegalArgumentException("Expected a label for each of the " + f.length + " candidates: " +
+                    l.length);
+        query_id = queryId;
+        features = f;
+        labels = l;
+    }
+
+    /**
+     * @param queryInfo Query data as written for RankLib
+     * @param nFeatures Number of features, missing features are 0
+     * @return The query's features and labels.
+     */
+    public static TrainingQuery fromRankLib(RankLibUtil.RankLibQueryInfo queryInfo, int nFeatures) {
+        double[][] features = new double[queryInfo.doc_data.size()][];
+        int[] labels = new int[features.length];
+        int i = 0;
+        for(RankLibUtil.RankLibQueryInfo.RelevanceFeaturePair doc : queryInfo.doc_data.values()) {
+            features[i] = new double[nFeatures];
+            doc.copyFeatures(features[i]);
+            labels[i] = doc.relevance;
+            i++;
+        }
+        return new TrainingQuery(queryInfo.query_id, features, labels);
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    public int getNumberOfFeatures() {
+        return (features.length == 0) ? 0 : features[0].length;
+    }
+}
@@ -1,13 +1,9 @@
 package main.java.query_generation;
 
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
 
+import java.util.List;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Generates a boolean query given the string to query. Performs default tokenization, and removes stop words.
@@ -15,13 +11,19 @@ import java.util.stream.Stream;
 public class BasicBooleanQueryGenerator extends QueryGenerator{
 
     @Override
-    public Query generate(String queryString, String dataFieldName) {
-        BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
-        Stream<String> tokens = tokenize(queryString, dataFieldName).stream().filter((String s) -> !QueryGenerator.STOP_WORDS.contains(s));
+    public List<String> tokenizeQuery(String queryString, String dataFieldName) {
+        return tokenize(queryString, dataFieldName).stream()
+                .filter((String s) -> !QueryGenerator.STOP_WORDS.contains(s))
+                .collect(Collectors.toList());
+    }
 
-        for (String token: tokens.collect(Collectors.toList()))
-            booleanQuery.add(new TermQuery( new Term(dataFieldName, token)), BooleanClause.Occur.SHOULD);
+    @Override
+    public Query generateFromTokens(List<String> tokens, String dataFieldName) {
+        return buildDisjunction(dataFieldName, tokens);
+    }
 
-        return booleanQuery.build();
+    @Override
+    public Query extend(Query prefixQuery, List<String> prefixTokens, List<String> suffixTokens, String dataFieldName) {
+        return extendDisjunction(prefixQuery, prefixTokens, suffixTokens, dataFieldName);
     }
 }
@@ -1,25 +1,30 @@
 package main.java.query_generation;
 
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.Query;
 
+import java.util.List;
+
+/**
+ * Generates a disjunction of the query terms as analyzed by the EnglishAnalyzer.
+ */
 public class BasicEnglishQueryGenerator extends QueryGenerator {
+    private static final Analyzer ENGLISH_ANALYZER = new EnglishAnalyzer();
+
+    @Override
+    public List<String> tokenizeQuery(String queryString, String dataFieldName) {
+        //The terms are used directly, so query syntax (AND, OR, NOT, special characters) needs no escaping.
+        return analyze(ENGLISH_ANALYZER, queryString, dataFieldName);
+    }
+
     @Override
-    public Query generate(String queryString, String dataFieldName) {
-        QueryParser parser = new QueryParser(dataFieldName, new EnglishAnalyzer());
-        try {
-            return parser.parse(filterInvalidQueryTerms(queryString));
-        } catch (ParseException pe) {
-            throw new IllegalStateException("Could not parse query: " + pe.getMessage());
-        }
+    public Query generateFromTokens(List<String> tokens, String dataFieldName) {
+        return buildDisjunction(dataFieldName, tokens);
     }
 
-    public String filterInvalidQueryTerms(String query) {
-        return QueryParser.escape(query)
-                .replaceAll("AND", "")
-                .replaceAll("OR", "")
-                .replaceAll("NOT", "");
+    @Override
+    public Query extend(Query prefixQuery, List<String> prefixTokens, List<String> suffixTokens, String dataFieldName) {
+        return extendDisjunction(prefixQuery, prefixTokens, suffixTokens, dataFieldName);
     }
 }
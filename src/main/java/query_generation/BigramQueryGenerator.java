@@ -1,38 +1,44 @@
 package main.java.query_generation;
 
-import main.java.Tokenizers.EnglishTokenizer;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.Query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class BigramQueryGenerator extends QueryGenerator {
     @Override
-    public Query generate(String queryString, String dataFieldName) {
-        QueryParser parser = new QueryParser(dataFieldName, new StandardAnalyzer());
-        try {
-            List<String> tokens =  EnglishTokenizer.tokenize(queryString, dataFieldName);
-            tokens.removeAll(QueryGenerator.STOP_WORDS);
+    public Query generateFromTokens(List<String> tokens, String dataFieldName) {
+        ArrayList<String> bigramQuery = new ArrayList<>();
 
-            ArrayList<String> bigramQuery = new ArrayList<>();
-
-            if(tokens.size() == 1) {
-                bigramQuery.add(tokens.get(0));
-            }
+        if(tokens.size() == 1) {
+            bigramQuery.add(tokens.get(0));
+        }
 
-            for(int i = 0; i < tokens.size() - 1; i++){
+        for(int i = 0; i < tokens.size() - 1; i++){
 
-                bigramQuery.add(tokens.get(i) + "_" + tokens.get(i + 1));
-            }
+            bigramQuery.add(tokens.get(i) + "_" + tokens.get(i + 1));
+        }
 
-            return parser.parse(QueryParser.escape(StringUtils.join(bigramQuery, " ")));
+        //Bigrams are indexed as whole whitespace separated terms, so they are matched directly.
+        return buildDisjunction(dataFieldName, bigramQuery);
+    }
 
-        } catch (ParseException pe) {
-            throw new IllegalStateException("Could not parse query: " + pe.getMessage());
+    /**
+     * Once the prefix has a bigram, the query of the whole sequence is the prefix query plus the bigrams from the last
+     * prefix token on.
+     */
+    @Override
+    public Query extend(Query prefixQuery, List<String> prefixTokens, List<String> suffixTokens, String dataFieldName) {
+        if(prefixTokens.size() < 2 || suffixTokens.isEmpty())
+            return super.extend(prefixQuery, prefixTokens, suffixTokens, dataFieldName);
+
+        List<String> bigrams = new ArrayList<>(suffixTokens.size());
+        String previous = prefixTokens.get(prefixTokens.size() - 1);
+        for(String token : suffixTokens) {
+            bigrams.add(previous + "_" + token);
+            previous = token;
         }
+        return buildDisjunction(Arrays.asList(prefixQuery, buildDisjunction(dataFieldName, bigrams)));
     }
 }
@@ -0,0 +1,177 @@
+package main.java.query_generation;
+
+import main.java.Tokenizers.EnglishTokenizer;
+import main.java.Tokenizers.Vocabulary;
+import main.java.Util.IntFloatMap;
+import main.java.Util.TopKHeap;
+import main.java.database.CorpusDB;
+import main.java.indexer.ParaEntityIndexr.configs.TrecCarRepr.TrecCarSearchField;
+import main.java.ranking.DocValuesLookup;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Expands a query with the entities linked from the first pass paragraphs, and optionally the anchor text of those
+ * links. Linked entities are read from the OutlinkIds DocValues of the index, so they cost no database access. Anchor
+ * text is fetched for all feedback paragraphs with a single batched CorpusDB call. Entities and anchor terms are
+ * interned to int ids local to the query and scored in primitive maps, each weighted by the normalized first pass score of the paragraphs
+ * they come from.
+ */
+public class EntityExpander implements QueryExpander {
+    private final int feedback_docs;
+    private final int n_entities;
+    private final int n_anchor_terms;
+    private final float original_query_weight;
+    private final float entity_weight;
+    private final float anchor_weight;
+
+    //Database to read anchor text from, null if anchor text isn't used
+    private final CorpusDB corpus_db;
+
+    public EntityExpander() {
+        this(10, 10, 0, 1f, 0.3f, 0f, null);
+    }
+
+    /**
+     * @param feedbackDocs Number of first pass paragraphs to take links from
+     * @param nEntities Number of entities added to the query
+     * @param nAnchorTerms Number of anchor text terms added to the query
+     * @param originalQueryWeight Weight of the original query
+     * @param entityWeight Weight of the entity clauses
+     * @param anchorWeight Weight of the anchor text clauses
+     * @param corpusDB Connected database to read anchor text from, or null to only use the index
+     */
+    public EntityExpander(int feedbackDocs, int nEntities, int nAnchorTerms, float originalQueryWeight,
+                          float entityWeight, float anchorWeight, CorpusDB corpusDB) {
+        feedback_docs = feedbackDocs;
+        n_entities = nEntities;
+        n_anchor_terms = (corpusDB == null) ? 0 : nAnchorTerms;
+        original_query_weight = originalQueryWeight;
+        entity_weight = entityWeight;
+        anchor_weight = anchorWeight;
+        corpus_db = corpusDB;
+    }
+
+    @Override
+    public int getFeedbackDepth() {
+        return feedback_docs;
+    }
+
+    @Override
+    public Query expand(String queryText, Query originalQuery, String dataFieldName, IndexSearcher searcher,
+                        ScoreDoc[] feedback) {
+        int nFeedback = Math.min(feedback_docs, feedback.length);
+        if(nFeedback == 0)
+            return originalQuery;
+
+        int[] docs = new int[nFeedback];
+        float[] docWeights = new float[nFeedback];
+        float scoreSum = 0;
+        for(int i = 0; i < nFeedback; i++) {
+            docs[i] = feedback[i].doc;
+            scoreSum += feedback[i].score;
+        }
+        for(int i = 0; i < nFeedback; i++)
+            docWeights[i] = (scoreSum > 0) ? feedback[i].score / scoreSum : 1f / nFeedback;
+
+        DocValuesLookup docValues = new DocValuesLookup(searcher.getIndexReader());
+        BooleanQuery.Builder expanded = new BooleanQuery.Builder();
+        expanded.add(new BoostQuery(originalQuery, original_query_weight), BooleanClause.Occur.SHOULD);
+        try {
+            if(n_entities > 0) {
+                String[][] links = docValues.getMultiValues(docs, TrecCarSearchField.OutlinkIds.name());
+                Query entityQuery = entityClauses(links, docWeights);
+                if(entityQuery != null)
+                    expanded.add(new BoostQuery(entityQuery, entity_weight), BooleanClause.Occur.SHOULD);
+            }
+            if(n_anchor_terms > 0) {
+                String[] paragraphIds = docValues.getValues(docs, TrecCarSearchField.Id.name());
+                Query anchorQuery = anchorClauses(paragraphIds, docWeights, dataFieldName);
+                if(anchorQuery != null)
+                    expanded.add(new BoostQuery(anchorQuery, anchor_weight), BooleanClause.Occur.SHOULD);
+            }
+        } catch(IOException io) {
+            throw new IllegalStateException("Unable to read feedback links: " + io.getMessage());
+        }
+        return expanded.build();
+    }
+
+    /**
+     * @param links Entity ids linked from each feedback paragraph
+     * @param docWeights Weight of each feedback paragraph
+     * @return Weighted clauses on the top entities, or null if no paragraph links to an entity.
+     */
+    private Query entityClauses(String[][] links, float[] docWeights) {
+        //Interned for this query only, so a long running process doesn't keep every entity ever linked.
+        Vocabulary entityVocabulary = new Vocabulary();
+        IntFloatMap entityScores = new IntFloatMap(64);
+        for(int i = 0; i < links.length; i++)
+            for(String entity : links[i])
+                entityScores.add(entityVocabulary.getOrAdd(entity), docWeights[i]);
+
+        return topClauses(entityScores, n_entities, entityVocabulary, TrecCarSearchField.OutlinkIds.name());
+    }
+
+    /**
+     * @param paragraphIds Ids of the feedback paragraphs
+     * @param docWeights Weight of each feedback paragraph
+     * @param dataFieldName Field the anchor terms are matched in
+     * @return Weighted clauses on the top anchor text terms, or null if there is no anchor text.
+     */
+    private Query anchorClauses(String[] paragraphIds, float[] docWeights, String dataFieldName) {
+        List<String> knownIds = new ArrayList<>(paragraphIds.length);
+        for(String paragraphId : paragraphIds)
+            if(paragraphId != null)
+                knownIds.add(paragraphId);
+        if(knownIds.isEmpty())
+            return null;
+        Map<String, List<CorpusDB.ParagraphLink>> outlinks = corpus_db.getParagraphOutlinks(knownIds);
+
+        Vocabulary vocabulary = new Vocabulary();
+        IntFloatMap termScores = new IntFloatMap(256);
+        for(int i = 0; i < paragraphIds.length; i++) {
+            if(paragraphIds[i] == null || outlinks.get(paragraphIds[i]) == null)
+                continue;
+            float docWeight = docWeights[i];
+            for(CorpusDB.ParagraphLink link : outlinks.get(paragraphIds[i]))
+                if(link.anchor_text != null)
+                    EnglishTokenizer.forEachToken(link.anchor_text, dataFieldName, (buffer, length) ->
+                            termScores.add(vocabulary.getOrAdd(buffer, 0, length), docWeight));
+        }
+
+        return topClauses(termScores, n_anchor_terms, vocabulary, dataFieldName);
+    }
+
+    /**
+     * @return A disjunction of the top scoring keys, boosted so that the average boost is 1, or null if there are none.
+     */
+    private static Query topClauses(IntFloatMap scores, int k, Vocabulary vocabulary, String field) {
+        TopKHeap top = new TopKHeap(k);
+        scores.forEach(top::offer);
+        if(top.size() == 0)
+            return null;
+
+        float[] weights = new float[top.size()];
+        int[] ids = top.drain(weights);
+        float weightSum = 0;
+        for(float weight : weights)
+            weightSum += weight;
+        if(weightSum <= 0)
+            return null;
+
+        List<Query> clauses = new ArrayList<>(ids.length);
+        for(int i = 0; i < ids.length; i++)
+            clauses.add(QueryGenerator.termClause(field, vocabulary.getToken(ids[i]),
+                    ids.length * weights[i] / weightSum));
+        return QueryGenerator.buildDisjunction(clauses);
+    }
+}
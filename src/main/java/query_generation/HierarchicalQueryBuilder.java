@@ -0,0 +1,74 @@
+package main.java.query_generation;
+
+import edu.unh.cs.treccar_v2.Data;
+import org.apache.lucene.search.Query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the hierarchical queries of an outline page, one per section. The page title and each heading are tokenized
+ * once, and the tokens and query of a parent prefix are handed to its descendant sections instead of generating every
+ * section query from its full text.
+ */
+public class HierarchicalQueryBuilder {
+    private final QueryGenerator generator;
+    private final String data_field_name;
+
+    /**
+     * Query of a single section, along with the id and text it would have as a hierarchical query.
+     */
+    public static class SectionQuery {
+        public final String query_id;
+        public final String query_text;
+        public final Query query;
+
+        public SectionQuery(String queryId, String queryText, Query q) {
+            query_id = queryId;
+            query_text = queryText;
+            query = q;
+        }
+    }
+
+    /**
+     * @param queryGenerator Method of generating queries
+     * @param dataFieldName Data field name in the index to reference
+     */
+    public HierarchicalQueryBuilder(QueryGenerator queryGenerator, String dataFieldName) {
+        generator = queryGenerator;
+        data_field_name = dataFieldName;
+    }
+
+    /**
+     * @param page Outline page
+     * @return The query of every section of the page, parents before their children.
+     */
+    public List<SectionQuery> build(Data.Page page) {
+        List<String> pageTokens = generator.tokenizeQuery(page.getPageName(), data_field_name);
+        Query pageQuery = generator.generateFromTokens(pageTokens, data_field_name);
+
+        List<SectionQuery> queries = new ArrayList<>();
+        for (Data.Section section : page.getChildSections())
+            addSection(section, page.getPageId(), page.getPageName(), pageTokens, pageQuery, queries);
+        return queries;
+    }
+
+    private void addSection(Data.Section section, String parentId, String parentText, List<String> parentTokens,
+                            Query parentQuery, List<SectionQuery> queries) {
+        String queryId = parentId + "/" + section.getHeadingId();
+        String queryText = parentText + " " + section.getHeading();
+
+        List<String> headingTokens = generator.tokenizeQuery(section.getHeading(), data_field_name);
+        Query query = generator.extend(parentQuery, parentTokens, headingTokens, data_field_name);
+        queries.add(new SectionQuery(queryId, queryText, query));
+
+        List<String> tokens = new ArrayList<>(parentTokens.size() + headingTokens.size());
+        tokens.addAll(parentTokens);
+        tokens.addAll(headingTokens);
+        for (Data.PageSkeleton child : section.getChildren())
+            if (child instanceof Data.Section)
+                addSection((Data.Section) child, queryId, queryText, Collections.unmodifiableList(tokens), query,
+                        queries);
+    }
+}
@@ -0,0 +1,27 @@
+package main.java.query_generation;
+
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Expands a query using the results of a first pass over the index (pseudo-relevance feedback).
+ */
+public interface QueryExpander {
+
+    /**
+     * @return Number of first pass results the expander uses.
+     */
+    int getFeedbackDepth();
+
+    /**
+     * @param queryText Text of the original query
+     * @param originalQuery Query of the first pass
+     * @param dataFieldName Data field name in the index to reference
+     * @param searcher Searcher the first pass was run on
+     * @param feedback Top results of the first pass, best first
+     * @return The query for the second pass.
+     */
+    Query expand(String queryText, Query originalQuery, String dataFieldName, IndexSearcher searcher,
+                 ScoreDoc[] feedback);
+}
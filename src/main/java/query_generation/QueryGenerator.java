@@ -1,22 +1,34 @@
 package main.java.query_generation;
 
+import main.java.Tokenizers.EnglishTokenizer;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 
 /**
   * Method for generating a query given a certain string
   */
 public abstract class QueryGenerator {
+    //Analyzers keep their components per thread, so one instance can be shared by every call.
+    private static final Analyzer STANDARD_ANALYZER = new StandardAnalyzer();
+
     /**
       * Perform tokenization on the given queryString. The default implementation performs basic english tokenization.
       *
@@ -24,21 +36,27 @@ public abstract class QueryGenerator {
       * @return List of tokens in the string
       */
     public static List<String> tokenize(String queryString, String dataFieldName)  {
-        StandardAnalyzer analyzer = new StandardAnalyzer();
+        return analyze(STANDARD_ANALYZER, queryString, dataFieldName);
+    }
 
-        //Parse out the query
-        TokenStream tokenStream = analyzer.tokenStream(dataFieldName, new StringReader(queryString));
+    /**
+     * @param analyzer Analyzer to run
+     * @param text Text to analyze
+     * @param dataFieldName Field the text is analyzed for
+     * @return The tokens produced by the analyzer.
+     */
+    protected static List<String> analyze(Analyzer analyzer, String text, String dataFieldName) {
         LinkedList<String> tokens = new LinkedList<>();
 
-        try {
+        try (TokenStream tokenStream = analyzer.tokenStream(dataFieldName, text)) {
+            CharTermAttribute termAtt = tokenStream.addAttribute(CharTermAttribute.class);
             tokenStream.reset();
 
             while(tokenStream.incrementToken()) {
-                tokens.add(tokenStream.getAttribute(CharTermAttribute.class).toString());
+                tokens.add(termAtt.toString());
             }
 
             tokenStream.end();
-            tokenStream.close();
         } catch(IOException io) {
             throw new IllegalStateException("Failed to tokenize words.");
         }
@@ -46,13 +64,125 @@ public abstract class QueryGenerator {
         return tokens;
     }
 
+    /**
+     * Builds a disjunction (SHOULD clauses) of term queries. A term that occurs several times becomes a single clause
+     * boosted by its count, which scores the same as repeating the clause.
+     * @param dataFieldName Field to search
+     * @param terms Terms of the query, in order and possibly repeated
+     * @return The query.
+     */
+    protected static Query buildDisjunction(String dataFieldName, List<String> terms) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String term : terms)
+            counts.merge(term, 1, Integer::sum);
+
+        List<Query> clauses = new ArrayList<>(counts.size());
+        counts.forEach((term, count) -> clauses.add(termClause(dataFieldName, term, count)));
+        return buildDisjunction(clauses);
+    }
+
+    /**
+     * @param dataFieldName Field to search
+     * @param term Term to match
+     * @param boost Weight of the term
+     * @return A term query, wrapped in a BoostQuery if the boost isn't 1.
+     */
+    protected static Query termClause(String dataFieldName, String term, float boost) {
+        Query termQuery = new TermQuery(new Term(dataFieldName, term));
+        return (boost == 1f) ? termQuery : new BoostQuery(termQuery, boost);
+    }
+
+    /**
+     * Combines the clauses as SHOULD clauses. If there are more clauses than BooleanQuery.getMaxClauseCount() they are
+     * split into nested boolean queries, so long queries can't fail with TooManyClauses. Scores are sums either way.
+     * @param clauses Clauses to combine
+     * @return The combined query.
+     */
+    protected static Query buildDisjunction(List<Query> clauses) {
+        if (clauses.size() == 1)
+            return clauses.get(0);
+
+        int maxClauses = BooleanQuery.getMaxClauseCount();
+        if (clauses.size() > maxClauses) {
+            List<Query> nested = new ArrayList<>();
+            for (int start = 0; start < clauses.size(); start += maxClauses)
+                nested.add(buildDisjunction(clauses.subList(start, Math.min(clauses.size(), start + maxClauses))));
+            return buildDisjunction(nested);
+        }
+
+        BooleanQuery.Builder booleanQuery = new BooleanQuery.Builder();
+        for (Query clause : clauses)
+            booleanQuery.add(clause, BooleanClause.Occur.SHOULD);
+        return booleanQuery.build();
+    }
+
     /**
       * Generate a query with the given query string.
       * @param queryString String to generate the query from
       * @param dataFieldName Data field name in the index to reference
       * @return
       */
-    public abstract Query generate(String queryString, String dataFieldName);
+    public Query generate(String queryString, String dataFieldName) {
+        return generateFromTokens(tokenizeQuery(queryString, dataFieldName), dataFieldName);
+    }
+
+    /**
+     * Tokenizes a query string the way generate does: English tokenization and stemming, with stop words removed.
+     * @param queryString String to tokenize
+     * @param dataFieldName Data field name in the index to reference
+     * @return Tokens of the query, in order.
+     */
+    public List<String> tokenizeQuery(String queryString, String dataFieldName) {
+        List<String> tokens = new ArrayList<>(EnglishTokenizer.tokenize(queryString, dataFieldName));
+        tokens.removeAll(STOP_WORDS);
+        return tokens;
+    }
+
+    /**
+     * Generate a query from tokens produced by tokenizeQuery.
+     * @param tokens Tokens of the query, in order
+     * @param dataFieldName Data field name in the index to reference
+     * @return The query.
+     */
+    public abstract Query generateFromTokens(List<String> tokens, String dataFieldName);
+
+    /**
+     * @return Identifies the queries this generator produces, for caching search results across runs. Generators with
+     * parameters that change their queries must include them.
+     */
+    public String getCacheKey() {
+        return getClass().getName();
+    }
+
+    /**
+     * Generates the query of a prefix followed by more tokens, e.g. a section heading below its parent headings, from
+     * the already built prefix. By default the query is built from all of the tokens without tokenizing the prefix
+     * again; generators whose queries are sums over parts of the tokens can reuse the prefix query itself.
+     * @param prefixQuery Query generated from the prefix tokens
+     * @param prefixTokens Tokens of the prefix
+     * @param suffixTokens Tokens following the prefix
+     * @param dataFieldName Data field name in the index to reference
+     * @return The query of all of the tokens.
+     */
+    public Query extend(Query prefixQuery, List<String> prefixTokens, List<String> suffixTokens, String dataFieldName) {
+        List<String> tokens = new ArrayList<>(prefixTokens.size() + suffixTokens.size());
+        tokens.addAll(prefixTokens);
+        tokens.addAll(suffixTokens);
+        return generateFromTokens(tokens, dataFieldName);
+    }
+
+    /**
+     * @return A disjunction of the prefix query and the query of the suffix tokens, which scores the same as the
+     * disjunction of all of the clauses since boolean disjunction scores are sums.
+     */
+    protected Query extendDisjunction(Query prefixQuery, List<String> prefixTokens, List<String> suffixTokens,
+                                      String dataFieldName) {
+        if (suffixTokens.isEmpty())
+            return prefixQuery;
+        if (prefixTokens.isEmpty())
+            return generateFromTokens(suffixTokens, dataFieldName);
+        return buildDisjunction(Arrays.asList(prefixQuery, generateFromTokens(suffixTokens, dataFieldName)));
+    }
 
     public static final HashSet<String> STOP_WORDS = new HashSet<>(Arrays.asList(
             "a", "about", "above", "after", "again", "against", "all", "also","am", "an",
@@ -0,0 +1,185 @@
+package main.java.query_generation;
+
+import main.java.Tokenizers.EnglishTokenizer;
+import main.java.Tokenizers.Vocabulary;
+import main.java.Util.IntFloatMap;
+import main.java.Util.TopKHeap;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * RM3 pseudo-relevance feedback. The relevance model is estimated from the stored data field of the top feedback
+ * documents, which holds the already analyzed, whitespace separated tokens of the paragraph, so feedback documents are
+ * not analyzed again. Documents are fetched and turned into term distributions in parallel, and the distributions are
+ * summed into a primitive map keyed by ids of a vocabulary local to the query. The expansion terms are interpolated with the original query.
+ */
+public class Rm3Expander implements QueryExpander {
+    //Shared by every expander, feedback documents of a query are loaded in parallel.
+    private static final ExecutorService feedback_executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "rm3-feedback");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final int feedback_docs;
+    private final int feedback_terms;
+    private final float original_query_weight;
+
+    /**
+     * Term distribution of one feedback document.
+     */
+    private static class DocumentModel {
+        final int[] term_ids;
+        final float[] probabilities;
+
+        DocumentModel(int[] termIds, float[] probabilities) {
+            term_ids = termIds;
+            this.probabilities = probabilities;
+        }
+    }
+
+    public Rm3Expander() {
+        this(10, 10, 0.5f);
+    }
+
+    /**
+     * @param feedbackDocs Number of first pass results the relevance model is estimated from
+     * @param feedbackTerms Number of expansion terms added to the query
+     * @param originalQueryWeight Weight of the original query, the expansion terms get the rest
+     */
+    public Rm3Expander(int feedbackDocs, int feedbackTerms, float originalQueryWeight) {
+        if(originalQueryWeight < 0 || originalQueryWeight > 1)
+            throw new IllegalArgumentException("Original query weight must be within [0, 1]: " + originalQueryWeight);
+        feedback_docs = feedbackDocs;
+        feedback_terms = feedbackTerms;
+        original_query_weight = originalQueryWeight;
+    }
+
+    @Override
+    public int getFeedbackDepth() {
+        return feedback_docs;
+    }
+
+    @Override
+    public Query expand(String queryText, Query originalQuery, String dataFieldName, IndexSearcher searcher,
+                        ScoreDoc[] feedback) {
+        int nFeedback = Math.min(feedback_docs, feedback.length);
+        if(nFeedback == 0 || feedback_terms == 0)
+            return originalQuery;
+
+        //Interned for this query only, so a long running process doesn't keep every feedback term it has seen.
+        Vocabulary vocabulary = new Vocabulary();
+        List<DocumentModel> models = loadModels(Arrays.copyOf(feedback, nFeedback), dataFieldName, searcher,
+                vocabulary);
+
+        //P(w|R) = sum over the feedback documents of P(w|D) * P(D|Q), with P(D|Q) the normalized first pass score.
+        float scoreSum = 0;
+        for(int i = 0; i < nFeedback; i++)
+            scoreSum += feedback[i].score;
+        IntFloatMap relevanceModel = new IntFloatMap(1024);
+        for(int i = 0; i < nFeedback; i++) {
+            float docWeight = (scoreSum > 0) ? feedback[i].score / scoreSum : 1f / nFeedback;
+            DocumentModel model = models.get(i);
+            for(int t = 0; t < model.term_ids.length; t++)
+                relevanceModel.add(model.term_ids[t], docWeight * model.probabilities[t]);
+        }
+
+        TopKHeap topTerms = new TopKHeap(feedback_terms);
+        relevanceModel.forEach(topTerms::offer);
+        float[] weights = new float[topTerms.size()];
+        int[] termIds = topTerms.drain(weights);
+        float weightSum = 0;
+        for(float weight : weights)
+            weightSum += weight;
+        if(weightSum <= 0)
+            return originalQuery;
+
+        //Scale the expansion terms to the total weight of the original query terms, so the interpolation is balanced.
+        int nQueryTokens = Math.max(1, EnglishTokenizer.tokenize(queryText, dataFieldName).size());
+        List<Query> expansionClauses = new ArrayList<>(termIds.length);
+        for(int i = 0; i < termIds.length; i++)
+            expansionClauses.add(QueryGenerator.termClause(dataFieldName, vocabulary.getToken(termIds[i]),
+                    nQueryTokens * weights[i] / weightSum));
+
+        BooleanQuery.Builder expanded = new BooleanQuery.Builder();
+        expanded.add(new BoostQuery(originalQuery, original_query_weight), BooleanClause.Occur.SHOULD);
+        expanded.add(new BoostQuery(QueryGenerator.buildDisjunction(expansionClauses), 1 - original_query_weight),
+                BooleanClause.Occur.SHOULD);
+        return expanded.build();
+    }
+
+    /**
+     * @return The term distribution of each feedback document, aligned with feedback.
+     */
+    private static List<DocumentModel> loadModels(ScoreDoc[] feedback, String dataFieldName, IndexSearcher searcher,
+                                                  Vocabulary vocabulary) {
+        List<Future<DocumentModel>> loads = new ArrayList<>(feedback.length);
+        for(ScoreDoc scoreDoc : feedback)
+            loads.add(feedback_executor.submit(() -> {
+                String text = searcher.doc(scoreDoc.doc, Collections.singleton(dataFieldName)).get(dataFieldName);
+                return toModel(text, vocabulary);
+            }));
+
+        List<DocumentModel> models = new ArrayList<>(feedback.length);
+        try {
+            for(Future<DocumentModel> load : loads)
+                models.add(load.get());
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading feedback documents.");
+        } catch(ExecutionException ee) {
+            throw new IllegalStateException("Unable to load feedback documents: " + ee.getCause().getMessage());
+        }
+        return models;
+    }
+
+    /**
+     * @param text Indexed text of a document, whitespace separated tokens
+     * @param vocabulary Vocabulary of the query the terms are interned into
+     * @return The maximum likelihood term distribution of the document.
+     */
+    private static DocumentModel toModel(String text, Vocabulary vocabulary) {
+        if(text == null)
+            return new DocumentModel(new int[0], new float[0]);
+
+        char[] chars = text.toCharArray();
+        int[] ids = new int[16];
+        int length = 0;
+        for(int start = 0, end; start < chars.length; start = end + 1) {
+            for(end = start; end < chars.length && !Character.isWhitespace(chars[end]); end++);
+            if(end == start)
+                continue;
+            if(length == ids.length)
+                ids = Arrays.copyOf(ids, length * 2);
+            ids[length++] = vocabulary.getOrAdd(chars, start, end - start);
+        }
+        Arrays.sort(ids, 0, length);
+
+        int distinct = 0;
+        for(int i = 0; i < length; i++)
+            if(i == 0 || ids[i] != ids[i - 1])
+                distinct++;
+        int[] termIds = new int[distinct];
+        float[] probabilities = new float[distinct];
+        for(int start = 0, end, t = 0; start < length; start = end, t++) {
+            for(end = start + 1; end < length && ids[end] == ids[start]; end++);
+            termIds[t] = ids[start];
+            probabilities[t] = (end - start) / (float) length;
+        }
+        return new DocumentModel(termIds, probabilities);
+    }
+}
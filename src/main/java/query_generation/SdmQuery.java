@@ -0,0 +1,405 @@
+package main.java.query_generation;
+
+import main.java.indexer.ParaEntityIndexr.configs.ParagraphStatistics;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sequential dependence model query over a positional field. Each distinct query term is read from a single postings
+ * cursor per segment, and the positions it returns for a document are used for the unigram, ordered window (#1) and
+ * unordered window (#uwN) components at once. Every component is a Dirichlet smoothed language model score, clamped at
+ * zero like LMDirichletSimilarity. Window collection probabilities are estimated by the less frequent term of the pair,
+ * since a window can't occur more often than either of its terms.
+ */
+public class SdmQuery extends Query {
+    private final String field;
+    private final List<String> tokens;
+    private final float unigram_weight;
+    private final float ordered_weight;
+    private final float unordered_weight;
+    private final int window_size;
+    private final float mu;
+
+    /**
+     * @param field Positional field to search
+     * @param tokens Tokens of the query, in order
+     * @param unigramWeight Weight of the unigram component
+     * @param orderedWeight Weight of the ordered window component
+     * @param unorderedWeight Weight of the unordered window component
+     * @param windowSize Number of positions the terms of an unordered window must fall within
+     * @param mu Dirichlet smoothing parameter
+     */
+    public SdmQuery(String field, List<String> tokens, float unigramWeight, float orderedWeight,
+                    float unorderedWeight, int windowSize, float mu) {
+        this.field = field;
+        this.tokens = new ArrayList<>(tokens);
+        unigram_weight = unigramWeight;
+        ordered_weight = orderedWeight;
+        unordered_weight = unorderedWeight;
+        window_size = windowSize;
+        this.mu = mu;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+        return new SdmWeight(searcher, boost);
+    }
+
+    @Override
+    public String toString(String defaultField) {
+        return "sdm(" + (field.equals(defaultField) ? "" : field + ":") + String.join(" ", tokens) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!sameClassAs(other))
+            return false;
+        SdmQuery that = (SdmQuery) other;
+        return field.equals(that.field) && tokens.equals(that.tokens) && unigram_weight == that.unigram_weight &&
+                ordered_weight == that.ordered_weight && unordered_weight == that.unordered_weight &&
+                window_size == that.window_size && mu == that.mu;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = classHash();
+        hash = 31 * hash + field.hashCode();
+        hash = 31 * hash + tokens.hashCode();
+        hash = 31 * hash + Float.floatToIntBits(unigram_weight);
+        hash = 31 * hash + Float.floatToIntBits(ordered_weight);
+        hash = 31 * hash + Float.floatToIntBits(unordered_weight);
+        hash = 31 * hash + window_size;
+        hash = 31 * hash + Float.floatToIntBits(mu);
+        return hash;
+    }
+
+    private class SdmWeight extends Weight {
+        private final float boost;
+
+        //Distinct terms of the query, with their number of occurrences and collection probabilities
+        private final Term[] terms;
+        private final TermContext[] term_contexts;
+        private final int[] query_counts;
+        private final double[] term_probabilities;
+
+        //Slots of the terms of each adjacent pair of query tokens
+        private final int[] pair_first;
+        private final int[] pair_second;
+
+        //Length assumed for documents without a DocLength value
+        private final float average_length;
+
+        SdmWeight(IndexSearcher searcher, float boost) throws IOException {
+            super(SdmQuery.this);
+            this.boost = boost;
+
+            Map<String, Integer> slots = new LinkedHashMap<>();
+            int[] tokenSlots = new int[tokens.size()];
+            for (int i = 0; i < tokenSlots.length; i++)
+                tokenSlots[i] = slots.computeIfAbsent(tokens.get(i), t -> slots.size());
+
+            CollectionStatistics collectionStats = searcher.collectionStatistics(field);
+            long sumTotalTermFreq = (collectionStats == null) ? 0 : Math.max(0, collectionStats.sumTotalTermFreq());
+            long docCount = (collectionStats == null) ? 0 : Math.max(0, collectionStats.docCount());
+            average_length = (docCount == 0) ? 1f : sumTotalTermFreq / (float) docCount;
+
+            terms = new Term[slots.size()];
+            term_contexts = new TermContext[slots.size()];
+            query_counts = new int[slots.size()];
+            term_probabilities = new double[slots.size()];
+            for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+                int i = slot.getValue();
+                terms[i] = new Term(field, slot.getKey());
+                term_contexts[i] = TermContext.build(searcher.getTopReaderContext(), terms[i]);
+                TermStatistics termStats = searcher.termStatistics(terms[i], term_contexts[i]);
+                long totalTermFreq = (termStats == null) ? 0 : Math.max(0, termStats.totalTermFreq());
+                term_probabilities[i] = (totalTermFreq + 1) / (double) (sumTotalTermFreq + 1);
+            }
+            for (int tokenSlot : tokenSlots)
+                query_counts[tokenSlot]++;
+
+            int nPairs = Math.max(0, tokenSlots.length - 1);
+            pair_first = new int[nPairs];
+            pair_second = new int[nPairs];
+            for (int i = 0; i < nPairs; i++) {
+                pair_first[i] = tokenSlots[i];
+                pair_second[i] = tokenSlots[i + 1];
+            }
+        }
+
+        @Override
+        public void extractTerms(Set<Term> termSet) {
+            termSet.addAll(Arrays.asList(terms));
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            SdmScorer scorer = scorer(context);
+            if (scorer != null && scorer.iterator().advance(doc) == doc)
+                return Explanation.match(scorer.score(), "sdm, unigram " + scorer.unigram_score + ", ordered " +
+                        scorer.ordered_score + ", unordered " + scorer.unordered_score);
+            return Explanation.noMatch("no matching terms");
+        }
+
+        @Override
+        public SdmScorer scorer(LeafReaderContext context) throws IOException {
+            Terms fieldTerms = context.reader().terms(field);
+            if (fieldTerms == null)
+                return null;
+            if (!fieldTerms.hasPositions())
+                throw new IllegalStateException("SDM needs positions, which aren't indexed for field: " + field);
+
+            TermsEnum termsEnum = fieldTerms.iterator();
+            PostingsEnum[] postings = new PostingsEnum[terms.length];
+            boolean anyTerm = false;
+            for (int i = 0; i < terms.length; i++) {
+                TermState state = term_contexts[i].get(context.ord);
+                if (state == null)
+                    continue;
+                termsEnum.seekExact(terms[i].bytes(), state);
+                postings[i] = termsEnum.postings(null, PostingsEnum.POSITIONS);
+                anyTerm = true;
+            }
+            if (!anyTerm)
+                return null;
+
+            NumericDocValues docLengths = context.reader().getNumericDocValues(
+                    ParagraphStatistics.Statistic.DocLength.name());
+            return new SdmScorer(this, postings, docLengths);
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext context) {
+            return DocValues.isCacheable(context, ParagraphStatistics.Statistic.DocLength.name());
+        }
+    }
+
+    private class SdmScorer extends Scorer {
+        private final SdmWeight weight;
+        private final PostingsEnum[] postings;
+        private final NumericDocValues doc_lengths;
+        private final DocIdSetIterator iterator;
+
+        //Positions of each term in the current document, read once and shared by all of the components
+        private final int[][] positions;
+        private final int[] freqs;
+
+        private int positions_doc = -1;
+        private int scored_doc = -1;
+        private float score;
+        private double unigram_score;
+        private double ordered_score;
+        private double unordered_score;
+
+        SdmScorer(SdmWeight weight, PostingsEnum[] postings, NumericDocValues docLengths) {
+            super(weight);
+            this.weight = weight;
+            this.postings = postings;
+            doc_lengths = docLengths;
+            positions = new int[postings.length][8];
+            freqs = new int[postings.length];
+
+            List<PostingsEnum> cursors = new ArrayList<>();
+            for (PostingsEnum cursor : postings)
+                if (cursor != null)
+                    cursors.add(cursor);
+            iterator = new UnionIterator(cursors.toArray(new PostingsEnum[cursors.size()]));
+        }
+
+        @Override
+        public int docID() {
+            return iterator.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+
+        @Override
+        public int freq() throws IOException {
+            readPositions();
+            int matching = 0;
+            for (int freq : freqs)
+                if (freq > 0)
+                    matching++;
+            return matching;
+        }
+
+        @Override
+        public float score() throws IOException {
+            int doc = docID();
+            if (doc == scored_doc)
+                return score;
+
+            readPositions();
+            float length = documentLength(doc);
+
+            unigram_score = 0;
+            for (int i = 0; i < freqs.length; i++)
+                if (freqs[i] > 0)
+                    unigram_score += weight.query_counts[i] *
+                            dirichlet(freqs[i], weight.term_probabilities[i], length);
+
+            ordered_score = 0;
+            unordered_score = 0;
+            for (int p = 0; p < weight.pair_first.length; p++) {
+                int a = weight.pair_first[p];
+                int b = weight.pair_second[p];
+                if (freqs[a] == 0 || freqs[b] == 0)
+                    continue;
+                double probability = Math.min(weight.term_probabilities[a], weight.term_probabilities[b]);
+                int ordered = countOrdered(positions[a], freqs[a], positions[b], freqs[b]);
+                if (ordered > 0)
+                    ordered_score += dirichlet(ordered, probability, length);
+                int unordered = countUnordered(positions[a], freqs[a], positions[b], freqs[b]);
+                if (unordered > 0)
+                    unordered_score += dirichlet(unordered, probability, length);
+            }
+
+            score = (float) (weight.boost * (unigram_weight * unigram_score + ordered_weight * ordered_score +
+                    unordered_weight * unordered_score));
+            scored_doc = doc;
+            return score;
+        }
+
+        /**
+         * Reads the positions of every term in the current document. Each postings cursor can only be read once per
+         * document, so this is done before any of the components are computed.
+         */
+        private void readPositions() throws IOException {
+            int doc = docID();
+            if (doc == positions_doc)
+                return;
+            for (int i = 0; i < postings.length; i++) {
+                PostingsEnum cursor = postings[i];
+                if (cursor == null || cursor.docID() != doc) {
+                    freqs[i] = 0;
+                    continue;
+                }
+                int freq = cursor.freq();
+                if (positions[i].length < freq)
+                    positions[i] = new int[Math.max(freq, positions[i].length * 2)];
+                for (int k = 0; k < freq; k++)
+                    positions[i][k] = cursor.nextPosition();
+                freqs[i] = freq;
+            }
+            positions_doc = doc;
+        }
+
+        private float documentLength(int doc) throws IOException {
+            if (doc_lengths != null && doc_lengths.advanceExact(doc))
+                return doc_lengths.longValue();
+            return weight.average_length;
+        }
+
+        private double dirichlet(int freq, double collectionProbability, float length) {
+            double value = Math.log(1 + freq / (mu * collectionProbability)) + Math.log(mu / (length + mu));
+            return (value > 0) ? value : 0;
+        }
+
+        /**
+         * @return Number of positions of a directly followed by b.
+         */
+        private int countOrdered(int[] a, int nA, int[] b, int nB) {
+            int count = 0;
+            for (int i = 0, j = 0; i < nA && j < nB; ) {
+                int next = a[i] + 1;
+                if (b[j] < next) {
+                    j++;
+                } else {
+                    if (b[j] == next)
+                        count++;
+                    i++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * @return Number of positions of a with an occurrence of b (at another position) in the same window.
+         */
+        private int countUnordered(int[] a, int nA, int[] b, int nB) {
+            int reach = window_size - 1;
+            int count = 0;
+            for (int i = 0, j = 0; i < nA; i++) {
+                while (j < nB && b[j] < a[i] - reach)
+                    j++;
+                for (int k = j; k < nB && b[k] <= a[i] + reach; k++) {
+                    if (b[k] != a[i]) {
+                        count++;
+                        break;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Iterates over the documents containing any of the terms. Queries only have a handful of terms, so the cursors
+     * are scanned linearly instead of being kept in a heap.
+     */
+    private static class UnionIterator extends DocIdSetIterator {
+        private final PostingsEnum[] cursors;
+        private int doc = -1;
+
+        UnionIterator(PostingsEnum[] cursors) {
+            this.cursors = cursors;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            int min = NO_MORE_DOCS;
+            for (PostingsEnum cursor : cursors) {
+                int cursorDoc = cursor.docID();
+                if (cursorDoc < target)
+                    cursorDoc = cursor.advance(target);
+                min = Math.min(min, cursorDoc);
+            }
+            doc = min;
+            return doc;
+        }
+
+        @Override
+        public long cost() {
+            long cost = 0;
+            for (PostingsEnum cursor : cursors)
+                cost += cursor.cost();
+            return cost;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package main.java.query_generation;
+
+import main.java.argument_parsers.SdmArgs;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequential dependence model over the positional Text field, replacing the separate bigram and window fields. By
+ * default an {@link SdmQuery} is generated, which scores all three components in one pass over the postings. The span
+ * mode builds the same model from span queries and uses the searcher's similarity instead.
+ */
+public class SdmQueryGenerator extends QueryGenerator {
+    private final float unigram_weight;
+    private final float ordered_weight;
+    private final float unordered_weight;
+    private final int window_size;
+    private final float mu;
+    private final boolean use_spans;
+
+    public SdmQueryGenerator() {
+        this(0.85f, 0.1f, 0.05f, 8, 2000f, false);
+    }
+
+    public SdmQueryGenerator(SdmArgs args) {
+        this(args.unigram_weight, args.ordered_weight, args.unordered_weight, args.window_size, args.mu,
+                args.use_spans);
+    }
+
+    /**
+     * @param unigramWeight Weight of the unigram component
+     * @param orderedWeight Weight of the ordered window component
+     * @param unorderedWeight Weight of the unordered window component
+     * @param windowSize Number of positions the terms of an unordered window must fall within
+     * @param mu Dirichlet smoothing parameter, unused in span mode
+     * @param useSpans Whether or not to build span queries instead of an SdmQuery
+     */
+    public SdmQueryGenerator(float unigramWeight, float orderedWeight, float unorderedWeight, int windowSize,
+                             float mu, boolean useSpans) {
+        unigram_weight = unigramWeight;
+        ordered_weight = orderedWeight;
+        unordered_weight = unorderedWeight;
+        window_size = windowSize;
+        this.mu = mu;
+        use_spans = useSpans;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return super.getCacheKey() + "(" + unigram_weight + "," + ordered_weight + "," + unordered_weight + "," +
+                window_size + "," + mu + "," + use_spans + ")";
+    }
+
+    @Override
+    public Query generateFromTokens(List<String> tokens, String dataFieldName) {
+        if (!use_spans)
+            return new SdmQuery(dataFieldName, tokens, unigram_weight, ordered_weight, unordered_weight, window_size, mu);
+        if (tokens.size() <= 1)
+            return buildDisjunction(dataFieldName, tokens);
+
+        List<Query> ordered = new ArrayList<>();
+        List<Query> unordered = new ArrayList<>();
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            SpanQuery[] pair = new SpanQuery[]{
+                    new SpanTermQuery(new Term(dataFieldName, tokens.get(i))),
+                    new SpanTermQuery(new Term(dataFieldName, tokens.get(i + 1)))
+            };
+            ordered.add(new SpanNearQuery(pair, 0, true));
+            //Slop counts the positions between the two terms, so a window of n positions allows n - 2.
+            unordered.add(new SpanNearQuery(pair, window_size - 2, false));
+        }
+
+        BooleanQuery.Builder sdm = new BooleanQuery.Builder();
+        sdm.add(new BoostQuery(buildDisjunction(dataFieldName, tokens), unigram_weight), BooleanClause.Occur.SHOULD);
+        sdm.add(new BoostQuery(buildDisjunction(ordered), ordered_weight), BooleanClause.Occur.SHOULD);
+        sdm.add(new BoostQuery(buildDisjunction(unordered), unordered_weight), BooleanClause.Occur.SHOULD);
+        return sdm.build();
+    }
+}
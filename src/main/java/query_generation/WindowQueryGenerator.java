@@ -1,43 +1,178 @@
 package main.java.query_generation;
 
-import main.java.Tokenizers.EnglishTokenizer;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
+import main.java.Tokenizers.Vocabulary;
+import main.java.argument_parsers.WindowArgs;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Generates a disjunction of the ordered token pairs that occur within a window of the query, matched against the
+ * window field of the index. Optionally the pairs are pruned using the index statistics: pairs that never occur in
+ * the index are dropped and only the max_clauses pairs with the highest IDF are kept. Kept pairs are boosted by their
+ * count like the unpruned query, since the similarity already weighs them by IDF. This bounds the cost of a query
+ * regardless of its length.
+ */
 public class WindowQueryGenerator extends QueryGenerator {
+    private static final int WINDOW_SIZE = 8;
+
+    //Document frequencies are cached up to this many terms, after which the cache starts over.
+    private static final int MAX_CACHED_TERMS = 1 << 20;
+
+    //Reader to take document frequencies from, null if the pairs shouldn't be pruned.
+    private final IndexReader index_reader;
+    private final int max_clauses;
+    private final ConcurrentHashMap<Term, Integer> doc_freq_cache = new ConcurrentHashMap<>();
+
+    public WindowQueryGenerator() {
+        index_reader = null;
+        max_clauses = Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param indexReader Reader of the index the queries will be run against
+     * @param args Configured clause limit, a limit of 0 keeps every pair
+     */
+    public WindowQueryGenerator(IndexReader indexReader, WindowArgs args) {
+        index_reader = (args.max_clauses > 0) ? indexReader : null;
+        max_clauses = (args.max_clauses > 0) ? args.max_clauses : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param indexReader Reader of the index the queries will be run against
+     * @param maxClauses Maximum number of window pairs to keep in a query
+     */
+    public WindowQueryGenerator(IndexReader indexReader, int maxClauses) {
+        if(maxClauses < 1)
+            throw new IllegalArgumentException("Queries must be allowed at least one clause: " + maxClauses);
+        index_reader = indexReader;
+        max_clauses = maxClauses;
+    }
 
     @Override
-    public Query generate(String queryString, String dataFieldName) {
-        final int WINDOW_SIZE = 8;
-        QueryParser parser = new QueryParser(dataFieldName, new StandardAnalyzer());
+    public String getCacheKey() {
+        return super.getCacheKey() + ((index_reader == null) ? "" : "(max_clauses=" + max_clauses + ")");
+    }
+
+    /**
+     * A distinct window pair term of the query and the number of times it occurs.
+     */
+    protected static class WindowTerm {
+        public final String term;
+        public final int count;
+
+        WindowTerm(String t, int c) {
+            term = t;
+            count = c;
+        }
+    }
+
+    @Override
+    public Query generateFromTokens(List<String> tokens, String dataFieldName) {
+        if (tokens.size() == 1) {
+            return buildDisjunction(dataFieldName, tokens);
+        }
+
+        List<WindowTerm> windowTerms = windowTerms(tokens);
+        if (index_reader != null)
+            return buildPrunedQuery(windowTerms, dataFieldName);
+
+        List<Query> clauses = new ArrayList<>();
+        for (WindowTerm windowTerm : windowTerms)
+            clauses.add(termClause(dataFieldName, windowTerm.term, windowTerm.count));
+        return buildDisjunction(clauses);
+    }
+
+    /**
+     * Keeps the max_clauses window pairs with the highest IDF that occur in the index, boosted by their count.
+     * @param windowTerms Distinct window pairs of the query
+     * @param dataFieldName Field to search
+     * @return The pruned query.
+     */
+    private Query buildPrunedQuery(List<WindowTerm> windowTerms, String dataFieldName) {
         try {
-                List<String> tokens = EnglishTokenizer.tokenize(queryString, dataFieldName);
-                tokens.removeAll(QueryGenerator.STOP_WORDS);
+            int docCount = Math.max(1, index_reader.getDocCount(dataFieldName));
+            int nCandidates = 0;
+            WindowTerm[] candidates = new WindowTerm[windowTerms.size()];
+            double[] idfs = new double[windowTerms.size()];
+            for (WindowTerm windowTerm : windowTerms) {
+                int docFreq = docFreq(new Term(dataFieldName, windowTerm.term));
+                if (docFreq == 0)
+                    continue;
+                candidates[nCandidates] = windowTerm;
+                idfs[nCandidates++] = Math.log(1 + (docCount - docFreq + 0.5) / (docFreq + 0.5));
+            }
 
-                ArrayList<String> windowQuery = new ArrayList<>();
+            //Order the candidates by decreasing IDF and keep the top max_clauses.
+            Integer[] order = new Integer[nCandidates];
+            for (int i = 0; i < nCandidates; i++)
+                order[i] = i;
+            Arrays.sort(order, (a, b) -> Double.compare(idfs[b], idfs[a]));
+            int nKept = Math.min(nCandidates, max_clauses);
 
-                if (tokens.size() == 1) {
-                    windowQuery.add(tokens.get(0));
-                }
+            List<Query> clauses = new ArrayList<>(nKept);
+            for (int k = 0; k < nKept; k++) {
+                WindowTerm kept = candidates[order[k]];
+                clauses.add(termClause(dataFieldName, kept.term, kept.count));
+            }
+            return buildDisjunction(clauses);
+        } catch (IOException io) {
+            throw new IllegalStateException("Could not read index statistics: " + io.getMessage());
+        }
+    }
+
+    /**
+     * @return The document frequency of the term, from the cache if it was looked up before.
+     */
+    private int docFreq(Term term) throws IOException {
+        Integer cached = doc_freq_cache.get(term);
+        if (cached != null)
+            return cached;
+
+        int docFreq = index_reader.docFreq(term);
+        if (doc_freq_cache.size() >= MAX_CACHED_TERMS)
+            doc_freq_cache.clear();
+        doc_freq_cache.put(term, docFreq);
+        return docFreq;
+    }
+
+    /**
+     * Pairs every token with the tokens following it in the window, in both orders. Pairs are counted as long encoded
+     * vocabulary ids, so the term string is only built once for each distinct pair.
+     * @param tokens Tokens of the query
+     * @return The distinct window pair terms with their counts.
+     */
+    protected static List<WindowTerm> windowTerms(List<String> tokens) {
+        Vocabulary vocabulary = Vocabulary.getShared();
+        int[] ids = new int[tokens.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = vocabulary.getOrAdd(tokens.get(i));
 
+        long[] pairs = new long[2 * ids.length * (WINDOW_SIZE - 2)];
+        int nPairs = 0;
+        for (int i = 0; i < ids.length - 1; i++) {
 
-                for (int i = 0; i < tokens.size() - 1; i++) {
+            for (int j = i + 1; j < i + WINDOW_SIZE - 1 && j < ids.length; j++) {
+                pairs[nPairs++] = Vocabulary.pair(ids[i], ids[j]);
+                pairs[nPairs++] = Vocabulary.pair(ids[j], ids[i]);
+            }
+        }
+        Arrays.sort(pairs, 0, nPairs);
 
-                    for (int j = i + 1; j < i + WINDOW_SIZE - 1 && j < tokens.size(); j++) {
-                        windowQuery.add(tokens.get(i) + "_" + tokens.get(j));
-                        windowQuery.add(tokens.get(j) + "_" + tokens.get(i));
-                    }
-                }
-                return parser.parse(QueryParser.escape(StringUtils.join(windowQuery, " ")));
+        List<WindowTerm> windowTerms = new ArrayList<>();
+        for (int start = 0, end; start < nPairs; start = end) {
+            for (end = start + 1; end < nPairs && pairs[end] == pairs[start]; end++);
 
-        } catch (ParseException pe) {
-            throw new IllegalStateException("Could not parse query: " + pe.getMessage());
+            String term = vocabulary.getToken(Vocabulary.first(pairs[start])) + "_" +
+                    vocabulary.getToken(Vocabulary.second(pairs[start]));
+            windowTerms.add(new WindowTerm(term, end - start));
         }
+        return windowTerms;
     }
 }
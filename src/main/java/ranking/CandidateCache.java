@@ -0,0 +1,216 @@
+package main.java.ranking;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk backed cache of first stage search results, so re-runs and methods sharing a generator don't repeat the same
+ * searches. An entry holds the top documents of one query as compact (Lucene document, score) arrays, keyed by
+ * (query id, query text, generator, similarity, index version, depth). Document numbers are only meaningful for the
+ * index commit they were searched on, so the whole cache is cleared when it is opened for a different index version.
+ * Entries are evicted least recently used first once the cache holds more than its size limit. Thread safe.
+ */
+public class CandidateCache {
+    private static final Logger logger = LoggerFactory.getLogger(CandidateCache.class);
+
+    private static final String VERSION_FILE = "index.version";
+    private static final String ENTRY_SUFFIX = ".hits";
+
+    /**
+     * Cached top documents of a query.
+     */
+    public static class Entry {
+        public final int[] docs;
+        public final float[] scores;
+
+        public Entry(int[] d, float[] s) {
+            docs = d;
+            scores = s;
+        }
+    }
+
+    private final Path cache_dir;
+    private final long max_bytes;
+    private final String index_version;
+
+    //Size of each entry file, least recently used first.
+    private final LinkedHashMap<String, Long> entry_sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long total_bytes = 0;
+
+    /**
+     * @param cacheDir Directory the entries are stored in, created if it doesn't exist
+     * @param maxBytes Total size the entry files may take up
+     * @param indexVersion Version of the index commit being searched. Entries of any other version are deleted.
+     */
+    public CandidateCache(Path cacheDir, long maxBytes, String indexVersion) throws IOException {
+        cache_dir = cacheDir;
+        max_bytes = maxBytes;
+        index_version = indexVersion;
+        Files.createDirectories(cache_dir);
+
+        Path versionFile = cache_dir.resolve(VERSION_FILE);
+        boolean stale = !Files.exists(versionFile) ||
+                !new String(Files.readAllBytes(versionFile), StandardCharsets.UTF_8).equals(index_version);
+
+        //Temporary files are left behind by runs that stopped while writing an entry.
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(cache_dir, "*.tmp")) {
+            for(Path temp : files)
+                Files.deleteIfExists(temp);
+        }
+        List<Path> entries = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(cache_dir, "*" + ENTRY_SUFFIX)) {
+            files.forEach(entries::add);
+        }
+        if(stale) {
+            if(!entries.isEmpty())
+                logger.info("Index changed, clearing " + entries.size() + " cached rankings from " + cache_dir);
+            for(Path entry : entries)
+                Files.deleteIfExists(entry);
+            Files.write(versionFile, index_version.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        //Rebuild the recency order from the modification times, which are updated on every hit.
+        entries.sort((a, b) -> {
+            try {
+                return Files.getLastModifiedTime(a).compareTo(Files.getLastModifiedTime(b));
+            } catch(IOException io) {
+                return 0;
+            }
+        });
+        for(Path entry : entries) {
+            long size = Files.size(entry);
+            entry_sizes.put(entry.getFileName().toString(), size);
+            total_bytes += size;
+        }
+        evict();
+    }
+
+    /**
+     * @return The key of a query's first stage results.
+     */
+    public String key(String queryId, String queryText, String generatorKey, String similarity, int depth) {
+        return queryId + "\n" + queryText + "\n" + generatorKey + "\n" + similarity + "\n" +
+                index_version + "\n" + depth;
+    }
+
+    /**
+     * @param key Key returned by key(...)
+     * @return The cached results, or null if they aren't cached.
+     */
+    public Entry get(String key) {
+        String fileName = fileName(key);
+        synchronized(this) {
+            if(entry_sizes.get(fileName) == null)
+                return null;
+        }
+
+        Path file = cache_dir.resolve(fileName);
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            //A different key with the same file name is a miss.
+            if(!in.readUTF().equals(key))
+                return null;
+            int count = in.readInt();
+            int[] docs = new int[count];
+            float[] scores = new float[count];
+            for(int i = 0; i < count; i++) {
+                docs[i] = in.readInt();
+                scores[i] = in.readFloat();
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Entry(docs, scores);
+        } catch(NoSuchFileException e) {
+            //Evicted by another thread.
+            return null;
+        } catch(IOException io) {
+            logger.warn("Unable to read cached ranking " + file + ": " + io.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Caches the results of a query. Failing to write the entry only loses the cached copy.
+     * @param key Key returned by key(...)
+     * @param docs Lucene document numbers of the results, best first
+     * @param scores Scores of the results, aligned with docs
+     */
+    public void put(String key, int[] docs, float[] scores) {
+        String fileName = fileName(key);
+        Path file = cache_dir.resolve(fileName);
+        try {
+            //Written to a temporary file and moved into place so readers never see a partial entry.
+            Path temp = Files.createTempFile(cache_dir, fileName, ".tmp");
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeUTF(key);
+                out.writeInt(docs.length);
+                for(int i = 0; i < docs.length; i++) {
+                    out.writeInt(docs[i]);
+                    out.writeFloat(scores[i]);
+                }
+            }
+            long size = Files.size(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized(this) {
+                Long previous = entry_sizes.put(fileName, size);
+                total_bytes += size - ((previous == null) ? 0 : previous);
+                evict();
+            }
+        } catch(IOException io) {
+            logger.warn("Unable to cache ranking " + file + ": " + io.getMessage());
+        }
+    }
+
+    /**
+     * @return Number of cached rankings.
+     */
+    public synchronized int size() {
+        return entry_sizes.size();
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = entry_sizes.entrySet().iterator();
+        while(total_bytes > max_bytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            try {
+                Files.deleteIfExists(cache_dir.resolve(entry.getKey()));
+            } catch(IOException io) {
+                logger.warn("Unable to evict cached ranking " + entry.getKey() + ": " + io.getMessage());
+            }
+            total_bytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + ENTRY_SUFFIX.length());
+            for(byte b : digest)
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return name.append(ENTRY_SUFFIX).toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package main.java.ranking;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Scores a fixed set of candidate documents with a query, without searching the whole index. The candidates are
+ * visited in index order and each segment's scorer is advanced straight to them, so the cost depends on the number of
+ * candidates rather than the number of matching documents.
+ */
+public class CandidateScorer {
+
+    /**
+     * @param searcher Searcher the document numbers refer to, which provides the scoring statistics
+     * @param query Query to score the candidates with
+     * @param docs Lucene document numbers of the candidates, in any order
+     * @return The score of each candidate, aligned with docs. 0 for candidates the query doesn't match, and for
+     * candidates without a Lucene document (-1).
+     */
+    public static float[] score(IndexSearcher searcher, Query query, int[] docs) throws IOException {
+        float[] scores = new float[docs.length];
+        Weight weight = searcher.createNormalizedWeight(query, true);
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+
+        LeafReaderContext leaf = null;
+        Scorer scorer = null;
+        DocIdSetIterator iterator = null;
+        for(long packed : DocValuesLookup.sortByDoc(docs)) {
+            int index = (int) packed;
+            int doc = (int) (packed >>> 32);
+            if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                scorer = weight.scorer(leaf);
+                iterator = (scorer == null) ? null : scorer.iterator();
+            }
+            if(iterator == null)
+                continue;
+
+            int target = doc - leaf.docBase;
+            int current = iterator.docID();
+            if(current < target)
+                current = iterator.advance(target);
+            if(current == target)
+                scores[index] = scorer.score();
+        }
+        return scores;
+    }
+}
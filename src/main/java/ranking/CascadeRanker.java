@@ -0,0 +1,174 @@
+package main.java.ranking;
+
+import main.java.Util.RankLibUtil;
+import main.java.argument_parsers.CascadeArgs;
+import main.java.argument_parsers.WarmupArgs;
+import main.java.learning_to_rank.LambdaMart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two stage ranking cascade. The first stage searches the index for the top first_stage_depth candidates with the
+ * ranker's similarity (e.g. BM25). The candidates are then reranked in process through the rerank hook: features are
+ * extracted with a FeatureExtractor and scored with a loaded model, with no RankLib process or feature files involved.
+ * If a stage runs over its latency budget, the query falls back to the first stage ranking.
+ */
+public class CascadeRanker extends QueryRanker {
+    private static final Logger logger = LoggerFactory.getLogger(CascadeRanker.class);
+
+    private final CascadeArgs cascade_args;
+    private final FeatureExtractor feature_extractor;
+    private final RerankModel model;
+
+    //Number of queries that fell back to the first stage ranking because a budget ran out
+    private final AtomicLong budget_fallbacks = new AtomicLong(0);
+
+    /**
+     * Reranks with the RankLib model configured in cascadeArgs.
+     */
+    public CascadeRanker(String para_loc, String sec_loc, String entity_loc, String idFieldName, String dataFieldName,
+                         ContentType cType, CascadeArgs cascadeArgs, FeatureExtractor featureExtractor) {
+        this(para_loc, sec_loc, entity_loc, idFieldName, dataFieldName, cType, cascadeArgs, featureExtractor,
+                loadModel(cascadeArgs, featureExtractor));
+    }
+
+    /**
+     * @param cascadeArgs Depths and budgets of the stages
+     * @param featureExtractor Extracts the features the model was trained on
+     * @param rerankModel Model to score the candidates with
+     */
+    public CascadeRanker(String para_loc, String sec_loc, String entity_loc, String idFieldName, String dataFieldName,
+                         ContentType cType, CascadeArgs cascadeArgs, FeatureExtractor featureExtractor,
+                         RerankModel rerankModel) {
+        this(para_loc, sec_loc, entity_loc, idFieldName, dataFieldName, cType, null, 0, cascadeArgs,
+                featureExtractor, rerankModel);
+    }
+
+    /**
+     * Reranks the candidates of firstStage's already opened index with the RankLib model configured in cascadeArgs.
+     * The searchers and candidate cache are shared with firstStage, so nothing is opened or warmed again.
+     * @param firstStage Ranker whose index to search
+     */
+    public CascadeRanker(QueryRanker firstStage, CascadeArgs cascadeArgs, FeatureExtractor featureExtractor) {
+        this(firstStage, cascadeArgs, featureExtractor, loadModel(cascadeArgs, featureExtractor));
+    }
+
+    /**
+     * @param firstStage Ranker whose index to search
+     * @param cascadeArgs Depths and budgets of the stages
+     * @param featureExtractor Extracts the features the model was trained on
+     * @param rerankModel Model to score the candidates with
+     */
+    public CascadeRanker(QueryRanker firstStage, CascadeArgs cascadeArgs, FeatureExtractor featureExtractor,
+                         RerankModel rerankModel) {
+        super(firstStage);
+        cascade_args = cascadeArgs;
+        feature_extractor = featureExtractor;
+        model = rerankModel;
+    }
+
+    /**
+     * Entity rankings built from paragraphs have no Lucene documents to extract features from, so entity ranking
+     * arguments aren't taken.
+     * @param warmupArgs Warm-up to run when warm() is called, or null to search the index cold.
+     * @param segmentThreads Number of threads to search the segments of a single query with, 0 or 1 to search them
+     *                       serially.
+     * @param cascadeArgs Depths and budgets of the stages
+     * @param featureExtractor Extracts the features the model was trained on
+     * @param rerankModel Model to score the candidates with
+     */
+    public CascadeRanker(String para_loc, String sec_loc, String entity_loc, String idFieldName, String dataFieldName,
+                         ContentType cType, WarmupArgs warmupArgs, int segmentThreads, CascadeArgs cascadeArgs,
+                         FeatureExtractor featureExtractor, RerankModel rerankModel) {
+        super(para_loc, sec_loc, entity_loc, idFieldName, dataFieldName, cType, warmupArgs, segmentThreads);
+        cascade_args = cascadeArgs;
+        feature_extractor = featureExtractor;
+        model = rerankModel;
+    }
+
+    private static RerankModel loadModel(CascadeArgs cascadeArgs, FeatureExtractor featureExtractor) {
+        if(cascadeArgs.model.isEmpty())
+            throw new IllegalArgumentException("No reranking model configured for the cascade.");
+        if(LambdaMart.Ensemble.isEnsemble(cascadeArgs.model))
+            return LambdaMart.Ensemble.load(cascadeArgs.model);
+        RankLibUtil.TrainedModel trainedModel = new RankLibUtil.TrainedModel(cascadeArgs.model);
+        if(trainedModel.getNumberOfFeatures() != featureExtractor.getNumberOfFeatures())
+            throw new IllegalArgumentException("Model " + cascadeArgs.model + " has " +
+                    trainedModel.getNumberOfFeatures() + " features, the extractor produces " +
+                    featureExtractor.getNumberOfFeatures());
+        return trainedModel::linearCombination;
+    }
+
+    /**
+     * Retrieves first_stage_depth candidates (at least nResults) to rerank, the top nResults of which are kept.
+     */
+    @Override
+    protected int searchDepth(int nResults) {
+        return Math.max(super.searchDepth(nResults), cascade_args.first_stage_depth);
+    }
+
+    /**
+     * The first stage budget is checked against the recorded search and fetch times.
+     */
+    @Override
+    protected boolean readsTiming() {
+        return cascade_args.first_stage_budget_ms > 0;
+    }
+
+    @Override
+    public List<RankResult> rerank(String qid, List<RankResult> ranking, QueryTiming timing) {
+        if(ranking.isEmpty())
+            return ranking;
+
+        long firstStageNanos = timing.getNanos("search") + timing.getNanos("fetch");
+        if(cascade_args.first_stage_budget_ms > 0 &&
+                firstStageNanos > TimeUnit.MILLISECONDS.toNanos(cascade_args.first_stage_budget_ms)) {
+            return fallBack(qid, "first stage", ranking);
+        }
+
+        long deadline = (cascade_args.rerank_budget_ms > 0)
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cascade_args.rerank_budget_ms)
+                : Long.MAX_VALUE;
+        double[][] features = feature_extractor.extract(this, ranking.get(0).query, ranking, deadline);
+        timing.lap("features");
+        if(features == null)
+            return fallBack(qid, "feature extraction", ranking);
+        if(cascade_args.normalize)
+            FeatureExtractor.normalizeSum(features);
+
+        //Sort by model score, breaking ties by first stage rank so the order is deterministic.
+        double[] scores = new double[features.length];
+        Integer[] order = new Integer[features.length];
+        for(int i = 0; i < features.length; i++) {
+            scores[i] = model.score(features[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> (scores[a] != scores[b]) ? Double.compare(scores[b], scores[a]) : a - b);
+        timing.lap("model");
+
+        List<RankResult> reranked = new ArrayList<>(ranking.size());
+        for(int rank = 0; rank < order.length; rank++)
+            reranked.add(ranking.get(order[rank]).withRank(rank, scores[order[rank]]));
+        return reranked;
+    }
+
+    private List<RankResult> fallBack(String qid, String stage, List<RankResult> ranking) {
+        long fallbacks = budget_fallbacks.incrementAndGet();
+        logger.warn("Query " + qid + " ran over the " + stage + " budget, using the first stage ranking (" +
+                fallbacks + " so far).");
+        return ranking;
+    }
+
+    /**
+     * @return Number of queries that fell back to the first stage ranking because a budget ran out.
+     */
+    public long getBudgetFallbacks() {
+        return budget_fallbacks.get();
+    }
+}
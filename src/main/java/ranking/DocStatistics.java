@@ -0,0 +1,67 @@
+package main.java.ranking;
+
+import main.java.indexer.ParaEntityIndexr.configs.ParagraphStatistics.Statistic;
+import org.apache.lucene.index.IndexReader;
+
+import java.io.IOException;
+
+/**
+ * Index-time statistics of a batch of documents, read from DocValues into primitive arrays aligned with the given
+ * document numbers. Documents indexed without statistics read as 0.
+ */
+public class DocStatistics {
+    public final int[] doc_length;
+    public final int[] unique_terms;
+    public final int[] entity_links;
+    public final float[] bigram_density;
+
+    private DocStatistics(int size) {
+        doc_length = new int[size];
+        unique_terms = new int[size];
+        entity_links = new int[size];
+        bigram_density = new float[size];
+    }
+
+    /**
+     * @param reader Reader the document numbers refer to
+     * @param docs Lucene document numbers, e.g. the candidates of a query
+     * @return Statistics of the documents, aligned with docs.
+     */
+    public static DocStatistics read(IndexReader reader, int[] docs) throws IOException {
+        return read(new DocValuesLookup(reader), docs);
+    }
+
+    /**
+     * @param lookup DocValues lookup over the index the document numbers refer to
+     * @param docs Lucene document numbers, e.g. the candidates of a query
+     * @return Statistics of the documents, aligned with docs.
+     */
+    public static DocStatistics read(DocValuesLookup lookup, int[] docs) throws IOException {
+        DocStatistics stats = new DocStatistics(docs.length);
+
+        long[] values = lookup.getNumericValues(docs, Statistic.DocLength.name(), 0);
+        for(int i = 0; i < docs.length; i++)
+            stats.doc_length[i] = (int) values[i];
+
+        values = lookup.getNumericValues(docs, Statistic.UniqueTerms.name(), 0);
+        for(int i = 0; i < docs.length; i++)
+            stats.unique_terms[i] = (int) values[i];
+
+        values = lookup.getNumericValues(docs, Statistic.EntityLinkCount.name(), 0);
+        for(int i = 0; i < docs.length; i++)
+            stats.entity_links[i] = (int) values[i];
+
+        values = lookup.getNumericValues(docs, Statistic.BigramDensity.name(), Float.floatToRawIntBits(0f));
+        for(int i = 0; i < docs.length; i++)
+            stats.bigram_density[i] = Float.intBitsToFloat((int) values[i]);
+
+        return stats;
+    }
+
+    /**
+     * @return Number of documents in the batch.
+     */
+    public int size() {
+        return doc_length.length;
+    }
+}
@@ -0,0 +1,181 @@
+package main.java.ranking;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resolves per-document values for batches of search hits from DocValues, so ranking doesn't have to load and
+ * decompress whole stored documents. Hits are visited in index order because DocValues can only be iterated forward.
+ * Segments written before the DocValues fields existed fall back to the stored field.
+ */
+public class DocValuesLookup {
+    private final IndexReader reader;
+
+    /**
+     * @param indexReader Reader the document numbers refer to
+     */
+    public DocValuesLookup(IndexReader indexReader) {
+        reader = indexReader;
+    }
+
+    /**
+     * Reads a single valued field (e.g. the document id) for each document.
+     * @param docs Lucene document numbers, in any order
+     * @param field Field stored as BinaryDocValues
+     * @return The values of the field, aligned with docs. Null where a document has no value or is negative.
+     */
+    public String[] getValues(int[] docs, String field) throws IOException {
+        String[] values = new String[docs.length];
+        List<LeafReaderContext> leaves = reader.leaves();
+
+        LeafReaderContext leaf = null;
+        BinaryDocValues docValues = null;
+        boolean stored = false;
+        int prevDoc = -1, prevIndex = -1;
+        for(long packed : sortByDoc(docs)) {
+            int index = (int) packed;
+            int doc = (int) (packed >>> 32);
+            if(doc == prevDoc) {
+                values[index] = values[prevIndex];
+                continue;
+            }
+
+            if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                stored = !hasDocValues(leaf.reader(), field, DocValuesType.BINARY);
+                docValues = stored ? null : DocValues.getBinary(leaf.reader(), field);
+            }
+
+            if(stored) {
+                values[index] = leaf.reader().document(doc - leaf.docBase, Collections.singleton(field)).get(field);
+            } else if(docValues.advanceExact(doc - leaf.docBase)) {
+                values[index] = docValues.binaryValue().utf8ToString();
+            }
+            prevDoc = doc;
+            prevIndex = index;
+        }
+        return values;
+    }
+
+    /**
+     * Reads a multi valued field (e.g. the entity links) for each document.
+     * @param docs Lucene document numbers, in any order
+     * @param field Field stored as SortedSetDocValues
+     * @return The values of the field, aligned with docs. Empty where a document has no value or is negative.
+     */
+    public String[][] getMultiValues(int[] docs, String field) throws IOException {
+        String[][] values = new String[docs.length][];
+        Arrays.fill(values, new String[0]);
+        List<LeafReaderContext> leaves = reader.leaves();
+
+        LeafReaderContext leaf = null;
+        SortedSetDocValues docValues = null;
+        boolean stored = false;
+        int prevDoc = -1, prevIndex = -1;
+        String[] buffer = new String[16];
+        for(long packed : sortByDoc(docs)) {
+            int index = (int) packed;
+            int doc = (int) (packed >>> 32);
+            if(doc == prevDoc) {
+                values[index] = values[prevIndex];
+                continue;
+            }
+
+            if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                stored = !hasDocValues(leaf.reader(), field, DocValuesType.SORTED_SET);
+                docValues = stored ? null : DocValues.getSortedSet(leaf.reader(), field);
+            }
+
+            if(stored) {
+                String linked = leaf.reader().document(doc - leaf.docBase, Collections.singleton(field)).get(field);
+                values[index] = (linked == null || linked.isEmpty()) ? new String[0] : linked.split("\n");
+            } else if(docValues.advanceExact(doc - leaf.docBase)) {
+                int count = 0;
+                for(long ord = docValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = docValues.nextOrd()) {
+                    if(count == buffer.length)
+                        buffer = Arrays.copyOf(buffer, count * 2);
+                    BytesRef term = docValues.lookupOrd(ord);
+                    buffer[count++] = term.utf8ToString();
+                }
+                values[index] = Arrays.copyOf(buffer, count);
+            } else {
+                values[index] = new String[0];
+            }
+            prevDoc = doc;
+            prevIndex = index;
+        }
+        return values;
+    }
+
+    /**
+     * Reads a numeric field (e.g. an index-time statistic) for each document.
+     * @param docs Lucene document numbers, in any order
+     * @param field Field stored as NumericDocValues
+     * @param missing Value to use for documents without a value, and negative document numbers
+     * @return The values of the field, aligned with docs.
+     */
+    public long[] getNumericValues(int[] docs, String field, long missing) throws IOException {
+        long[] values = new long[docs.length];
+        Arrays.fill(values, missing);
+        List<LeafReaderContext> leaves = reader.leaves();
+
+        LeafReaderContext leaf = null;
+        NumericDocValues docValues = null;
+        int prevDoc = -1, prevIndex = -1;
+        for(long packed : sortByDoc(docs)) {
+            int index = (int) packed;
+            int doc = (int) (packed >>> 32);
+            if(doc == prevDoc) {
+                values[index] = values[prevIndex];
+                continue;
+            }
+
+            if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                docValues = DocValues.getNumeric(leaf.reader(), field);
+            }
+
+            values[index] = docValues.advanceExact(doc - leaf.docBase) ? docValues.longValue() : missing;
+            prevDoc = doc;
+            prevIndex = index;
+        }
+        return values;
+    }
+
+    private static boolean hasDocValues(LeafReader leafReader, String field, DocValuesType type) {
+        FieldInfo info = leafReader.getFieldInfos().fieldInfo(field);
+        return info != null && info.getDocValuesType() == type;
+    }
+
+    /**
+     * @return The document numbers packed with their position in docs, sorted by document number. Negative document
+     * numbers (results that weren't produced by a search, see RankResult.lucene_doc) are left out, so callers leave
+     * them at their "no value" default.
+     */
+    static long[] sortByDoc(int[] docs) {
+        long[] packed = new long[docs.length];
+        int count = 0;
+        for(int i = 0; i < docs.length; i++)
+            if(docs[i] >= 0)
+                packed[count++] = ((long) docs[i] << 32) | i;
+        if(count < packed.length)
+            packed = Arrays.copyOf(packed, count);
+        Arrays.sort(packed);
+        return packed;
+    }
+}
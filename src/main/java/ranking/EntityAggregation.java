@@ -0,0 +1,37 @@
+package main.java.ranking;
+
+import main.java.Util.IntFloatMap;
+
+/**
+ * Ways of combining the scores of the paragraphs that link to an entity into the entity's score.
+ */
+public enum EntityAggregation {
+    //Sum of the scores of the linking paragraphs
+    SUM,
+    //Score of the best linking paragraph
+    MAX,
+    //Sum of 1 / (k + rank) over the linking paragraphs, which ignores the scale of the paragraph scores
+    RRF;
+
+    /**
+     * Adds the contribution of one linking paragraph to an entity's score.
+     * @param scores Entity scores of the query
+     * @param entity Id of the linked entity
+     * @param score Score of the paragraph
+     * @param rank Rank of the paragraph, from 0
+     * @param rrfK Rank offset of reciprocal rank fusion
+     */
+    public void accumulate(IntFloatMap scores, int entity, float score, int rank, int rrfK) {
+        switch(this) {
+            case SUM:
+                scores.add(entity, score);
+                break;
+            case MAX:
+                scores.max(entity, score);
+                break;
+            case RRF:
+                scores.add(entity, 1f / (rrfK + rank + 1));
+                break;
+        }
+    }
+}
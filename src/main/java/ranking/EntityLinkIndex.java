@@ -0,0 +1,126 @@
+package main.java.ranking;
+
+import main.java.Tokenizers.Vocabulary;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resolves the entities linked by paragraphs to dense int ids, so entity scores can be accumulated without strings.
+ * The links are read from the paragraphs' SortedSetDocValues. When the index is opened, each segment's ordinals are
+ * mapped once to ids in an entity vocabulary shared by all segments, so resolving a link costs an array lookup
+ * instead of a term lookup. Segments written before the DocValues field existed fall back to the stored field.
+ * Thread safe: every call reads the DocValues with its own iterators.
+ */
+public class EntityLinkIndex {
+    private static final int[] NO_LINKS = new int[0];
+
+    private final IndexReader reader;
+    private final String field;
+    private final Vocabulary entity_vocabulary = new Vocabulary();
+
+    //Entity id of each ordinal, per segment. Null for segments without the DocValues field.
+    private final int[][] ord_to_entity;
+
+    /**
+     * @param indexReader Paragraph index the document numbers refer to
+     * @param linkField Field holding the linked entity ids, stored as SortedSetDocValues
+     */
+    public EntityLinkIndex(IndexReader indexReader, String linkField) throws IOException {
+        reader = indexReader;
+        field = linkField;
+        List<LeafReaderContext> leaves = reader.leaves();
+        ord_to_entity = new int[leaves.size()][];
+        for(LeafReaderContext leaf : leaves) {
+            FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+            if(info == null || info.getDocValuesType() != DocValuesType.SORTED_SET)
+                continue;
+
+            SortedSetDocValues docValues = DocValues.getSortedSet(leaf.reader(), field);
+            if(docValues.getValueCount() > Integer.MAX_VALUE)
+                throw new IllegalStateException("Too many linked entities in segment " + leaf.ord);
+            int[] entities = new int[(int) docValues.getValueCount()];
+            TermsEnum terms = docValues.termsEnum();
+            for(BytesRef term = terms.next(); term != null; term = terms.next())
+                entities[(int) terms.ord()] = entity_vocabulary.getOrAdd(term.utf8ToString());
+            ord_to_entity[leaf.ord] = entities;
+        }
+    }
+
+    /**
+     * @param docs Lucene document numbers of paragraphs, in any order
+     * @return The ids of the entities each paragraph links to, aligned with docs. Empty for negative numbers.
+     */
+    public int[][] getLinks(int[] docs) throws IOException {
+        int[][] links = new int[docs.length][];
+        Arrays.fill(links, NO_LINKS);
+        List<LeafReaderContext> leaves = reader.leaves();
+
+        LeafReaderContext leaf = null;
+        SortedSetDocValues docValues = null;
+        int[] ordMap = null;
+        int[] buffer = new int[16];
+        int prevDoc = -1, prevIndex = -1;
+        for(long packed : DocValuesLookup.sortByDoc(docs)) {
+            int index = (int) packed;
+            int doc = (int) (packed >>> 32);
+            if(doc == prevDoc) {
+                links[index] = links[prevIndex];
+                continue;
+            }
+
+            if(leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                ordMap = ord_to_entity[leaf.ord];
+                docValues = (ordMap == null) ? null : DocValues.getSortedSet(leaf.reader(), field);
+            }
+
+            if(ordMap == null) {
+                links[index] = readStored(leaf, doc - leaf.docBase);
+            } else if(docValues.advanceExact(doc - leaf.docBase)) {
+                int count = 0;
+                for(long ord = docValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = docValues.nextOrd()) {
+                    if(count == buffer.length)
+                        buffer = Arrays.copyOf(buffer, count * 2);
+                    buffer[count++] = ordMap[(int) ord];
+                }
+                links[index] = Arrays.copyOf(buffer, count);
+            } else {
+                links[index] = NO_LINKS;
+            }
+            prevDoc = doc;
+            prevIndex = index;
+        }
+        return links;
+    }
+
+    private int[] readStored(LeafReaderContext leaf, int leafDoc) throws IOException {
+        String linked = leaf.reader().document(leafDoc, Collections.singleton(field)).get(field);
+        if(linked == null || linked.isEmpty())
+            return NO_LINKS;
+        String[] ids = linked.split("\n");
+        int[] entities = new int[ids.length];
+        for(int i = 0; i < ids.length; i++)
+            entities[i] = entity_vocabulary.getOrAdd(ids[i]);
+        return entities;
+    }
+
+    /**
+     * @param entity Entity id returned by getLinks
+     * @return The page id of the entity.
+     */
+    public String getEntityId(int entity) {
+        return entity_vocabulary.getToken(entity);
+    }
+}
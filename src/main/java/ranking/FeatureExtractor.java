@@ -0,0 +1,88 @@
+package main.java.ranking;
+
+import main.java.query_generation.QueryGenerator;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts learning to rank features for the candidates of a query inside the ranking process. Features are numbered
+ * from 1 like RankLib features:
+ *   1: first stage score
+ *   2 - 5: document length, unique terms, entity links and bigram density, read from DocValues
+ *   6 and on: score of each additional query generator, computed only for the candidates
+ * Use the same extractor to write training data and to rerank, so the model sees the same features.
+ */
+public class FeatureExtractor {
+    private static final int STATISTIC_FEATURES = 5;
+
+    private final List<QueryGenerator> generators;
+
+    /**
+     * @param extraGenerators Generators whose scores on the candidates are added as features
+     */
+    public FeatureExtractor(List<QueryGenerator> extraGenerators) {
+        generators = new ArrayList<>(extraGenerators);
+    }
+
+    public int getNumberOfFeatures() {
+        return STATISTIC_FEATURES + generators.size();
+    }
+
+    /**
+     * @param ranker Ranker that produced the candidates
+     * @param queryText Text of the query
+     * @param candidates First stage results
+     * @param deadline System.nanoTime() by which extraction must be done, Long.MAX_VALUE for no deadline
+     * @return The features of each candidate, aligned with candidates, or null if the deadline passed first.
+     */
+    public double[][] extract(QueryRanker ranker, String queryText, List<RankResult> candidates, long deadline) {
+        int[] docs = new int[candidates.size()];
+        for(int i = 0; i < docs.length; i++)
+            docs[i] = candidates.get(i).lucene_doc;
+
+        double[][] features = new double[docs.length][getNumberOfFeatures()];
+        DocStatistics stats = ranker.getDocStatistics(candidates);
+        for(int i = 0; i < docs.length; i++) {
+            features[i][0] = candidates.get(i).score;
+            features[i][1] = stats.doc_length[i];
+            features[i][2] = stats.unique_terms[i];
+            features[i][3] = stats.entity_links[i];
+            features[i][4] = stats.bigram_density[i];
+        }
+
+        IndexSearcher searcher = ranker.getIndexSearcher();
+        for(int g = 0; g < generators.size(); g++) {
+            if(System.nanoTime() > deadline)
+                return null;
+            try {
+                float[] scores = CandidateScorer.score(searcher,
+                        generators.get(g).generate(queryText, ranker.getDataFieldName()), docs);
+                for(int i = 0; i < docs.length; i++)
+                    features[i][STATISTIC_FEATURES + g] = scores[i];
+            } catch(IOException io) {
+                throw new IllegalStateException("Unable to score candidates: " + io.getMessage());
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Divides each feature by the sum of its absolute values over the candidates, like RankLib's "-norm sum".
+     * @param features Features of the candidates of one query, normalized in place
+     */
+    public static void normalizeSum(double[][] features) {
+        if(features.length == 0)
+            return;
+        for(int f = 0; f < features[0].length; f++) {
+            double sum = 0;
+            for(double[] candidate : features)
+                sum += Math.abs(candidate[f]);
+            if(sum > 0)
+                for(double[] candidate : features)
+                    candidate[f] /= sum;
+        }
+    }
+}
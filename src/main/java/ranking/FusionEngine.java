@@ -0,0 +1,247 @@
+package main.java.ranking;
+
+import main.java.Tokenizers.Vocabulary;
+import main.java.Util.IntFloatMap;
+import main.java.Util.RankLibUtil;
+import main.java.Util.TopKHeap;
+import main.java.argument_parsers.FusionArgs;
+import main.java.query_generation.QueryGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fuses the rankings of several rankers (e.g. different generators and similarities over the paragraph, section and
+ * entity indexes) into a single ranking per query. The rankers of a query are run concurrently. Each ranking's scores
+ * are normalized, and the results are combined by document id. Each query's document ids are interned to ints so
+ * scores accumulate in primitive maps, and the fused top k is selected with a bounded heap.
+ */
+public class FusionEngine {
+
+    public enum Normalization {
+        //Scores as produced by the ranker
+        NONE,
+        //(score - min) / (max - min) of the ranking
+        MIN_MAX,
+        //(score - mean) / standard deviation of the ranking
+        Z_SCORE
+    }
+
+    public enum Combination {
+        //Sum of the normalized scores
+        COMB_SUM,
+        //Sum of the normalized scores times the number of rankers that retrieved the document
+        COMB_MNZ,
+        //Sum of 1 / (k + rank), which ignores the scores
+        RRF,
+        //Weighted sum of the normalized scores
+        LINEAR
+    }
+
+    /**
+     * A ranker and the generator it ranks with.
+     */
+    public static class Source {
+        public final QueryRanker ranker;
+        public final QueryGenerator generator;
+
+        public Source(QueryRanker r, QueryGenerator g) {
+            ranker = r;
+            generator = g;
+        }
+    }
+
+    /* Executor the sources of a query are ranked on. Fusing from one of its threads could deadlock. */
+    private static final ExecutorService fusion_executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "fusion");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final List<Source> sources;
+    private final float[] weights;
+    private final Normalization normalization;
+    private final Combination combination;
+    private final int depth;
+    private final int rrf_k;
+
+    /**
+     * @param fusionSources Rankers to fuse, each of which must be thread safe
+     * @param args Normalization, combination and depth. Linear weights come from args.model, equal if there is none.
+     */
+    public FusionEngine(List<Source> fusionSources, FusionArgs args) {
+        this(fusionSources, loadWeights(args.model, fusionSources.size()), args.normalization, args.combination,
+                args.depth, args.rrf_k);
+    }
+
+    /**
+     * @param fusionSources Rankers to fuse, each of which must be thread safe
+     * @param sourceWeights Weight of each source in a linear combination
+     * @param norm How each ranking's scores are normalized
+     * @param comb How the normalized scores are combined
+     * @param fusionDepth Number of results retrieved from each source
+     * @param rrfK Rank offset of reciprocal rank fusion
+     */
+    public FusionEngine(List<Source> fusionSources, float[] sourceWeights, Normalization norm, Combination comb,
+                        int fusionDepth, int rrfK) {
+        if(sourceWeights.length != fusionSources.size())
+            throw new IllegalArgumentException("Expected a weight for each of the " + fusionSources.size() +
+                    " sources: " + sourceWeights.length);
+        sources = new ArrayList<>(fusionSources);
+        weights = sourceWeights.clone();
+        normalization = norm;
+        combination = comb;
+        depth = fusionDepth;
+        rrf_k = rrfK;
+    }
+
+    /**
+     * @param modelLoc RankLib model with feature i + 1 weighting source i, or empty for equal weights
+     * @param nSources Number of sources
+     * @return The weight of each source.
+     */
+    private static float[] loadWeights(String modelLoc, int nSources) {
+        float[] sourceWeights = new float[nSources];
+        if(modelLoc.isEmpty()) {
+            Arrays.fill(sourceWeights, 1f);
+            return sourceWeights;
+        }
+        RankLibUtil.TrainedModel model = new RankLibUtil.TrainedModel(modelLoc);
+        if(model.getNumberOfFeatures() != nSources)
+            throw new IllegalArgumentException("Model " + modelLoc + " has " + model.getNumberOfFeatures() +
+                    " features, expected one per source: " + nSources);
+        for(int i = 0; i < nSources; i++)
+            sourceWeights[i] = (float) model.getWeight(i + 1);
+        return sourceWeights;
+    }
+
+    /**
+     * Ranks the query with every source concurrently and fuses the rankings.
+     * @param nResults Number of fused results
+     * @param timing Receives the time spent ranking and fusing, may be null if it isn't needed
+     * @return The fused ranking. Results have no Lucene document or data, since they may come from different indexes.
+     */
+    public List<RankResult> fuse(int nResults, String queryId, String queryText, QueryTiming timing) {
+        if(timing == null)
+            timing = QueryTiming.NONE;
+
+        List<Future<List<RankResult>>> pending = new ArrayList<>(sources.size());
+        for(Source source : sources)
+            pending.add(fusion_executor.submit(() -> source.ranker.rank(depth, source.generator, queryId, queryText)));
+        List<List<RankResult>> rankings = new ArrayList<>(sources.size());
+        try {
+            for(Future<List<RankResult>> ranking : pending)
+                rankings.add(ranking.get());
+        } catch(InterruptedException ie) {
+            pending.forEach(r -> r.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while ranking sources.");
+        } catch(ExecutionException ee) {
+            pending.forEach(r -> r.cancel(true));
+            throw new IllegalStateException("Unable to rank source: " + ee.getCause().getMessage());
+        }
+        timing.lap("rank_sources");
+
+        int totalResults = 0;
+        for(List<RankResult> ranking : rankings)
+            totalResults += ranking.size();
+        //Dense ids of the documents of this query only, so memory doesn't grow with the number of queries fused.
+        Vocabulary docIds = new Vocabulary(totalResults);
+        char[] buffer = new char[64];
+        IntFloatMap fused = new IntFloatMap(totalResults);
+        IntFloatMap hits = (combination == Combination.COMB_MNZ) ? new IntFloatMap(totalResults) : null;
+        for(int s = 0; s < rankings.size(); s++) {
+            List<RankResult> ranking = rankings.get(s);
+            float[] scores = normalize(ranking);
+            for(int rank = 0; rank < ranking.size(); rank++) {
+                String docId = ranking.get(rank).doc_id;
+                if(docId.length() > buffer.length)
+                    buffer = new char[Math.max(docId.length(), buffer.length * 2)];
+                docId.getChars(0, docId.length(), buffer, 0);
+                int doc = docIds.getOrAdd(buffer, 0, docId.length());
+                fused.add(doc, contribution(s, rank, scores[rank]));
+                if(hits != null)
+                    hits.add(doc, 1f);
+            }
+        }
+
+        TopKHeap top = new TopKHeap(Math.min(nResults, fused.size()));
+        if(hits != null)
+            fused.forEach((doc, score) -> top.offer(doc, score * hits.get(doc)));
+        else
+            fused.forEach(top::offer);
+        float[] fusedScores = new float[top.size()];
+        int[] docs = top.drain(fusedScores);
+
+        List<RankResult> results = new ArrayList<>(docs.length);
+        for(int rank = 0; rank < docs.length; rank++)
+            results.add(new RankResult(queryId, queryText, docIds.getToken(docs[rank]), null, rank,
+                    fusedScores[rank]));
+        timing.lap("fuse");
+        return results;
+    }
+
+    /**
+     * Fuses each query in turn, ranking the sources of each query concurrently.
+     * @return The fused ranking of each query, in the order of queries.
+     */
+    public List<List<RankResult>> fuseAll(int nResults, List<QueryRanker.RankQuery> queries) {
+        List<List<RankResult>> results = new ArrayList<>(queries.size());
+        for(QueryRanker.RankQuery query : queries)
+            results.add(fuse(nResults, query.query_id, query.query_text, null));
+        return results;
+    }
+
+    private float contribution(int source, int rank, float score) {
+        switch(combination) {
+            case RRF:
+                return weights[source] / (rrf_k + rank + 1);
+            case LINEAR:
+                return weights[source] * score;
+            default:
+                return score;
+        }
+    }
+
+    /**
+     * @return The normalized scores of the ranking, aligned with it.
+     */
+    private float[] normalize(List<RankResult> ranking) {
+        float[] scores = new float[ranking.size()];
+        if(scores.length == 0)
+            return scores;
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0;
+        for(int i = 0; i < scores.length; i++) {
+            double score = ranking.get(i).score;
+            scores[i] = (float) score;
+            min = Math.min(min, score);
+            max = Math.max(max, score);
+            sum += score;
+        }
+
+        switch(normalization) {
+            case MIN_MAX:
+                for(int i = 0; i < scores.length; i++)
+                    scores[i] = (max > min) ? (float) ((scores[i] - min) / (max - min)) : 1f;
+                break;
+            case Z_SCORE:
+                double mean = sum / scores.length;
+                double variance = 0;
+                for(float score : scores)
+                    variance += (score - mean) * (score - mean);
+                double deviation = Math.sqrt(variance / scores.length);
+                for(int i = 0; i < scores.length; i++)
+                    scores[i] = (deviation > 0) ? (float) ((scores[i] - mean) / deviation) : 0f;
+                break;
+            default:
+                break;
+        }
+        return scores;
+    }
+}
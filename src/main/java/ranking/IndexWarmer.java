@@ -0,0 +1,171 @@
+package main.java.ranking;
+
+import main.java.argument_parsers.WarmupArgs;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Brings an index into memory before it is searched so the first queries of a run are not dominated by disk reads.
+ */
+public class IndexWarmer {
+    private static final Logger logger = LoggerFactory.getLogger(IndexWarmer.class);
+
+    private final WarmupArgs warmup_args;
+
+    public IndexWarmer(WarmupArgs args) {
+        warmup_args = args;
+    }
+
+    /**
+     * Opens an index directory. With mmap_preload every file is memory mapped and loaded into memory when opened.
+     * Lucene 7 can only preload all files of a directory, so the selection by file type is done by
+     * {@link #warm(List, IndexSearcher, Consumer)} instead.
+     * @param path Location of the index directory
+     * @return The opened directory.
+     */
+    public Directory openDirectory(Path path) throws IOException {
+        if(!warmup_args.mmap_preload)
+            return FSDirectory.open(path);
+
+        MMapDirectory directory = new MMapDirectory(path);
+        directory.setPreload(true);
+        return directory;
+    }
+
+    /**
+     * Runs the configured warm-up steps and logs how long they took and how the resident set grew.
+     * @param directories Directories of the index (one per shard)
+     * @param searcher Searcher over the whole index
+     * @param queryRunner Runs a sample query against the index
+     */
+    public void warm(List<Directory> directories, IndexSearcher searcher, Consumer<String> queryRunner) {
+        long rssBefore = residentSetBytes();
+        long start = System.currentTimeMillis();
+
+        try {
+            long preloaded = 0;
+            for(Directory directory : directories)
+                preloaded += preloadFiles(directory);
+            logger.info("Warm-up read " + (preloaded >> 20) + " MB of index files.");
+
+            long terms = touchFields(searcher.getIndexReader());
+            logger.info("Warm-up touched " + terms + " terms of fields " + warmup_args.fields + ".");
+        } catch(IOException io) {
+            logger.error("Failed to warm up index: " + io.getMessage());
+        }
+
+        int replayed = replayQueries(queryRunner);
+        if(replayed > 0)
+            logger.info("Warm-up replayed " + replayed + " sample queries.");
+
+        long rssAfter = residentSetBytes();
+        logger.info("Warm-up took " + (System.currentTimeMillis() - start) + " ms. Resident set: " +
+                ((rssAfter < 0) ? "unknown" : (rssAfter >> 20) + " MB (" + (rssBefore >> 20) + " MB before)."));
+    }
+
+    /**
+     * Reads through every file of the directory with one of the configured extensions.
+     * @return The number of bytes read.
+     */
+    private long preloadFiles(Directory directory) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        long bytesRead = 0;
+        for(String file : directory.listAll()) {
+            String extension = IndexFileNames.getExtension(file);
+            if(extension == null || !warmup_args.preload_extensions.contains(extension))
+                continue;
+
+            try(IndexInput input = directory.openInput(file, IOContext.READ)) {
+                long remaining = input.length();
+                while(remaining > 0) {
+                    int chunk = (int) Math.min(buffer.length, remaining);
+                    input.readBytes(buffer, 0, chunk);
+                    remaining -= chunk;
+                }
+                bytesRead += input.length();
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Walks the terms dictionary and norms of each configured field in every segment.
+     * @return The number of terms visited.
+     */
+    private long touchFields(IndexReader reader) throws IOException {
+        long termCount = 0;
+        for(LeafReaderContext leaf : reader.leaves()) {
+            for(String field : warmup_args.fields) {
+                Terms terms = leaf.reader().terms(field);
+                if(terms != null) {
+                    TermsEnum termsEnum = terms.iterator();
+                    while(termsEnum.next() != null)
+                        termCount++;
+                }
+
+                NumericDocValues norms = leaf.reader().getNormValues(field);
+                if(norms != null) {
+                    while(norms.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                        norms.longValue();
+                }
+            }
+        }
+        return termCount;
+    }
+
+    /**
+     * Replays the first sample_size queries of the sample query file.
+     * @return The number of queries replayed.
+     */
+    private int replayQueries(Consumer<String> queryRunner) {
+        if(warmup_args.sample_queries.isEmpty())
+            return 0;
+
+        try(Stream<String> lines = Files.lines(Paths.get(warmup_args.sample_queries))) {
+            List<String> queries = lines.filter(q -> !q.trim().isEmpty())
+                    .limit(warmup_args.sample_size)
+                    .collect(Collectors.toList());
+            queries.forEach(queryRunner);
+            return queries.size();
+        } catch(IOException io) {
+            logger.error("Failed to read warm-up queries: " + io.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return The resident set size of this process in bytes, or -1 if it isn't available on this platform.
+     */
+    public static long residentSetBytes() {
+        try(Stream<String> status = Files.lines(Paths.get("/proc/self/status"))) {
+            return status.filter(line -> line.startsWith("VmRSS:"))
+                    .mapToLong(line -> Long.parseLong(line.replaceAll("\\D", "")) * 1024)
+                    .findFirst()
+                    .orElse(-1);
+        } catch(IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package main.java.ranking;
+
+import main.java.Util.LatencyHistogram;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide latency histograms of each stage of the query path (generate, search, fetch, rerank, ...) per content
+ * type and query generator. Enabled with -Dlatency.stats=true. ENABLED is a static final constant, so when it is false
+ * the JIT removes the guarded recording calls entirely.
+ */
+public class LatencyStats {
+    private static final Logger logger = LoggerFactory.getLogger(LatencyStats.class);
+
+    public static final boolean ENABLED = Boolean.getBoolean("latency.stats");
+
+    //Histograms keyed by content type, then generator, then stage.
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String,
+            LatencyHistogram>>> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Records the time of each stage of a ranked query, and the total. Guard calls with ENABLED.
+     * @param contentType Content type of the ranker
+     * @param generator Cache key of the query generator, which tells apart configurations of the same class
+     * @param timing Stage times of the query
+     */
+    public static void record(QueryRanker.ContentType contentType, String generator, QueryTiming timing) {
+        ConcurrentHashMap<String, LatencyHistogram> stages = histograms
+                .computeIfAbsent(contentType.name(), c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(generator, g -> new ConcurrentHashMap<>());
+        long total = 0;
+        for(Map.Entry<String, Long> stage : timing.getStages().entrySet()) {
+            stages.computeIfAbsent(stage.getKey(), s -> new LatencyHistogram()).record(stage.getValue());
+            total += stage.getValue();
+        }
+        stages.computeIfAbsent("total", s -> new LatencyHistogram()).record(total);
+    }
+
+    /**
+     * @return Percentiles of every histogram, nested by content type, generator and stage.
+     */
+    public static JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        new TreeMap<>(histograms).forEach((contentType, generators) -> {
+            JSONObject generatorJson = new JSONObject();
+            new TreeMap<>(generators).forEach((generator, stages) -> {
+                JSONObject stageJson = new JSONObject();
+                stages.forEach((stage, histogram) -> stageJson.put(stage, histogram.toJson()));
+                generatorJson.put(generator, stageJson);
+            });
+            json.put(contentType, generatorJson);
+        });
+        return json;
+    }
+
+    /**
+     * Writes the histograms to the file given by -Dlatency.stats.file (latency_stats.json by default), if enabled.
+     */
+    public static void dump() {
+        if(!ENABLED)
+            return;
+        Path file = Paths.get(System.getProperty("latency.stats.file", "latency_stats.json"));
+        try {
+            Files.write(file, toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+            logger.info("Wrote latency statistics to " + file);
+        } catch(IOException io) {
+            logger.error("Unable to write latency statistics: " + io.getMessage());
+        }
+    }
+}
@@ -1,17 +1,48 @@
 package main.java.ranking;
 
+import main.java.Util.IntFloatMap;
+import main.java.Util.TopKHeap;
+import main.java.argument_parsers.EntityRankArgs;
+import main.java.argument_parsers.WarmupArgs;
+import main.java.indexer.ParaEntityIndexr.ParaEntityIndexer;
+import main.java.indexer.ParaEntityIndexr.configs.TrecCarRepr;
+import main.java.query_generation.BasicBooleanQueryGenerator;
+import main.java.query_generation.HierarchicalQueryBuilder;
+import main.java.query_generation.QueryExpander;
 import main.java.query_generation.QueryGenerator;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.StringHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -19,6 +50,7 @@ import java.util.stream.IntStream;
  * Generic method for producing a ranking for a query. This class can rank all questions, or individual query strings.
  */
 public class QueryRanker {
+    private static final Logger logger = LoggerFactory.getLogger(QueryRanker.class);
 
     /* Index to search in. Note that it's a good idea to have the index formed before using this class.*/
     protected final String para_file;
@@ -35,6 +67,57 @@ public class QueryRanker {
 
     protected IndexSearcher index_searcher;
 
+    /* Searchers over each shard of a sharded index, null if the index is not sharded. */
+    protected IndexSearcher[] shard_searchers;
+
+    /* Offset of each shard's document ids within index_searcher. */
+    protected int[] shard_doc_bases;
+
+    /* Executor used to search the shards in parallel. */
+    protected ExecutorService shard_executor;
+
+    /* Resolves ids and entity links of ranked documents without loading stored fields. */
+    protected DocValuesLookup doc_values;
+
+    /* Warms the index up after it is opened, null if the index is searched cold. */
+    protected final IndexWarmer index_warmer;
+
+    /* Number of threads a single query's segments are searched with, serial if 1 or less. */
+    protected final int segment_threads;
+
+    /* How entities are ranked from the paragraphs linking to them, null if the entity index is searched directly. */
+    protected final EntityRankArgs entity_args;
+
+    /* Entities linked by each paragraph, null unless entities are ranked from paragraphs. */
+    protected EntityLinkIndex entity_links;
+
+    /* Directories the index was opened from (one per shard). */
+    protected final List<Directory> index_directories = new ArrayList<>();
+
+    /* Readers the index was opened with (one per shard), which identify the index commit. */
+    protected final List<DirectoryReader> index_readers = new ArrayList<>();
+
+    /* Cache of first stage hits shared across runs, null if every query is searched. */
+    protected CandidateCache candidate_cache;
+
+    /* Describes the similarity in candidate cache keys, null to describe it by its class and toString. */
+    protected String similarity_key;
+
+    /* Thread of batch_executor, so batch methods called from a batch task can tell not to wait on the pool. */
+    private static class BatchThread extends Thread {
+        BatchThread(Runnable r) {
+            super(r, "query-batch");
+            setDaemon(true);
+        }
+    }
+
+    /* Executor used to rank batches of queries in parallel. */
+    protected static final ExecutorService batch_executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), BatchThread::new);
+
+    /* Generator used to replay sample queries during warm-up. */
+    private static final QueryGenerator warmup_generator = new BasicBooleanQueryGenerator();
+
     public enum ContentType {
         PASSAGE,
         ENTITY,
@@ -43,19 +126,145 @@ public class QueryRanker {
     public final ContentType content_type;
     
     public QueryRanker(String para_loc, String sec_loc , String entity_loc,String idFieldName, String dataFieldName, ContentType cType) {
+        this(para_loc, sec_loc, entity_loc, idFieldName, dataFieldName, cType, null);
+    }
+
+    /**
+     * @param warmupArgs Warm-up to run when warm() is called, or null to search the index cold.
+     */
+    public QueryRanker(String para_loc, String sec_loc , String entity_loc,String idFieldName, String dataFieldName,
+                       ContentType cType, WarmupArgs warmupArgs) {
+        this(para_loc, sec_loc, entity_loc, idFieldName, dataFieldName, cType, warmupArgs, 0);
+    }
+
+    /**
+     * @param warmupArgs Warm-up to run when warm() is called, or null to search the index cold.
+     * @param segmentThreads Number of threads to search the segments of a single query with, 0 or 1 to search them
+     *                       serially. Only applies to unsharded indexes, shards are already searched in parallel.
+     */
+    public QueryRanker(String para_loc, String sec_loc , String entity_loc,String idFieldName, String dataFieldName,
+                       ContentType cType, WarmupArgs warmupArgs, int segmentThreads) {
+        this(para_loc, sec_loc, entity_loc, idFieldName, dataFieldName, cType, warmupArgs, segmentThreads, null);
+    }
+
+    /**
+     * @param warmupArgs Warm-up to run when warm() is called, or null to search the index cold.
+     * @param segmentThreads Number of threads to search the segments of a single query with, 0 or 1 to search them
+     *                       serially. Only applies to unsharded indexes, shards are already searched in parallel.
+     * @param entityArgs For ENTITY rankers, how to rank entities from the paragraphs linking to them. Null to search
+     *                   the entity index directly.
+     */
+    public QueryRanker(String para_loc, String sec_loc , String entity_loc,String idFieldName, String dataFieldName,
+                       ContentType cType, WarmupArgs warmupArgs, int segmentThreads, EntityRankArgs entityArgs) {
+        segment_threads = segmentThreads;
         para_file = para_loc;
         section_file = sec_loc;
         entity_file = entity_loc;
         data_field_name = dataFieldName;
         id_field_name = idFieldName;
         content_type = cType;
+        entity_args = (cType == ContentType.ENTITY && entityArgs != null && entityArgs.from_paragraphs)
+                ? entityArgs : null;
+        index_warmer = (warmupArgs != null && warmupArgs.enabled) ? new IndexWarmer(warmupArgs) : null;
         try {
-            index_searcher = cType == ContentType.SECTION ? new IndexSearcher(DirectoryReader.open(FSDirectory.open(Paths.get(section_file))))
-            : cType == ContentType.PASSAGE ? new IndexSearcher(DirectoryReader.open(FSDirectory.open(Paths.get(para_file))))
-            : new IndexSearcher(DirectoryReader.open(FSDirectory.open(Paths.get(entity_file))));
+            index_searcher = cType == ContentType.SECTION ? openIndex(section_file)
+            : (cType == ContentType.PASSAGE || entity_args != null) ? openIndex(para_file)
+            : openIndex(entity_file);
+            if(entity_args != null)
+                entity_links = new EntityLinkIndex(index_searcher.getIndexReader(),
+                        TrecCarRepr.TrecCarSearchField.OutlinkIds.name());
         } catch (IOException io) {
             throw new IllegalStateException("Couldn't open index: " + io.getMessage());
         }
+        doc_values = new DocValuesLookup(index_searcher.getIndexReader());
+    }
+
+    /**
+     * Ranks with the already opened (and warmed) index of base instead of opening it again. The searchers, including
+     * their similarity, and the candidate cache are shared with base.
+     * @param base Ranker whose index to search
+     */
+    protected QueryRanker(QueryRanker base) {
+        para_file = base.para_file;
+        section_file = base.section_file;
+        entity_file = base.entity_file;
+        data_field_name = base.data_field_name;
+        id_field_name = base.id_field_name;
+        content_type = base.content_type;
+        segment_threads = base.segment_threads;
+        entity_args = base.entity_args;
+        entity_links = base.entity_links;
+        index_warmer = null;
+        index_searcher = base.index_searcher;
+        shard_searchers = base.shard_searchers;
+        shard_doc_bases = base.shard_doc_bases;
+        shard_executor = base.shard_executor;
+        doc_values = base.doc_values;
+        index_directories.addAll(base.index_directories);
+        index_readers.addAll(base.index_readers);
+        candidate_cache = base.candidate_cache;
+        similarity_key = base.similarity_key;
+    }
+
+    /**
+     * Runs the warm-up the ranker was constructed with, if any. Call it once the ranker is fully constructed: the
+     * sample queries go through rank, which subclasses may override.
+     */
+    public void warm() {
+        if(index_warmer != null)
+            index_warmer.warm(index_directories, index_searcher,
+                    q -> rank(100, warmup_generator, "warmup", q));
+    }
+
+    /**
+     * @param path Location of an index directory
+     * @return The opened directory, memory mapped and preloaded if the warm-up asks for it.
+     */
+    protected Directory openDirectory(Path path) throws IOException {
+        Directory directory = (index_warmer != null) ? index_warmer.openDirectory(path) : FSDirectory.open(path);
+        index_directories.add(directory);
+        return directory;
+    }
+
+    /**
+     * Opens the index at the given location. If the index was built as shards, as recorded by its root commit, a
+     * searcher is opened per shard and the returned searcher spans all of them.
+     * @param indexLoc Location of the index
+     * @return Searcher over the whole index.
+     */
+    protected IndexSearcher openIndex(String indexLoc) throws IOException {
+        List<Path> shardPaths = ParaEntityIndexer.getShardPaths(indexLoc);
+        if(shardPaths.isEmpty()) {
+            DirectoryReader reader = DirectoryReader.open(openDirectory(Paths.get(indexLoc)));
+            index_readers.add(reader);
+            return (segment_threads > 1)
+                    ? new SegmentParallelSearcher(reader, SegmentParallelSearcher.getSharedExecutor(segment_threads))
+                    : new IndexSearcher(reader);
+        }
+
+        IndexReader[] shardReaders = new IndexReader[shardPaths.size()];
+        for(int shard = 0; shard < shardReaders.length; shard++) {
+            DirectoryReader shardReader = DirectoryReader.open(openDirectory(shardPaths.get(shard)));
+            index_readers.add(shardReader);
+            shardReaders[shard] = shardReader;
+        }
+
+        IndexSearcher globalSearcher = new IndexSearcher(new MultiReader(shardReaders));
+        shard_searchers = new IndexSearcher[shardReaders.length];
+        shard_doc_bases = new int[shardReaders.length];
+        int docBase = 0;
+        for(int shard = 0; shard < shardReaders.length; shard++) {
+            shard_searchers[shard] = new ShardSearcher(shardReaders[shard], globalSearcher);
+            shard_doc_bases[shard] = docBase;
+            docBase += shardReaders[shard].maxDoc();
+        }
+
+        shard_executor = Executors.newFixedThreadPool(shardReaders.length, r -> {
+            Thread t = new Thread(r, "shard-search");
+            t.setDaemon(true);
+            return t;
+        });
+        return globalSearcher;
     }
 
     /**
@@ -64,7 +273,91 @@ public class QueryRanker {
      * @param sim New similarity
      */
     public void setSimilarity(Similarity sim) {
+        setSimilarity(sim, null);
+    }
+
+    /**
+     * Sets the similarity ranking function, with a descriptor of its class and parameters for the candidate cache keys
+     * of a similarity whose toString doesn't show its parameters.
+     *
+     * @param sim New similarity
+     * @param descriptor Stable descriptor of the similarity, or null to describe it by its class and toString
+     */
+    public void setSimilarity(Similarity sim, String descriptor) {
+        similarity_key = descriptor;
         index_searcher.setSimilarity(sim);
+        if(shard_searchers != null)
+            for(IndexSearcher shardSearcher : shard_searchers)
+                shardSearcher.setSimilarity(sim);
+    }
+
+    /**
+     * @return The unique id and deletion generation of every segment of each index shard being searched. Changes
+     * whenever the index is rebuilt or updated, which changes the meaning of document numbers.
+     */
+    public String getIndexVersion() {
+        StringBuilder version = new StringBuilder();
+        try {
+            for(DirectoryReader reader : index_readers) {
+                if(version.length() > 0)
+                    version.append(',');
+                IndexCommit commit = reader.getIndexCommit();
+                SegmentInfos segments = SegmentInfos.readCommit(commit.getDirectory(), commit.getSegmentsFileName());
+                for(SegmentCommitInfo segment : segments)
+                    version.append(StringHelper.idToString(segment.info.getId())).append(':')
+                            .append(segment.getDelGen()).append(';');
+            }
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to read index commit: " + io.getMessage());
+        }
+        return version.toString();
+    }
+
+    /**
+     * Caches the hits of queries ranked without an expander on disk, and ranks repeated queries from the cache. Each
+     * content type is cached in its own directory, which is cleared if the index has changed.
+     * @param cacheRoot Directory to keep the caches of all rankers in
+     * @param maxBytes Size limit of this ranker's cache
+     */
+    public void enableCandidateCache(Path cacheRoot, long maxBytes) {
+        try {
+            candidate_cache = new CandidateCache(cacheRoot.resolve(content_type.name().toLowerCase()), maxBytes,
+                    getIndexVersion());
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to open candidate cache: " + io.getMessage());
+        }
+    }
+
+    /**
+     * Searches the index for the top results of the query. A sharded index is searched one shard per thread and the
+     * per-shard results are merged. Document ids of the results always refer to index_searcher.
+     * @param query Query to search with
+     * @param nResults Number of results to retrieve
+     * @return Top results of the query.
+     */
+    protected TopDocs search(Query query, int nResults) throws IOException {
+        if(shard_searchers == null)
+            return index_searcher.search(query, nResults);
+
+        List<Future<TopDocs>> shardSearches = new ArrayList<>(shard_searchers.length);
+        for(IndexSearcher shardSearcher : shard_searchers)
+            shardSearches.add(shard_executor.submit(() -> shardSearcher.search(query, nResults)));
+
+        TopDocs[] shardHits = new TopDocs[shard_searchers.length];
+        try {
+            for(int shard = 0; shard < shardHits.length; shard++)
+                shardHits[shard] = shardSearches.get(shard).get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while searching shards.");
+        } catch(ExecutionException ee) {
+            throw new IOException("Failed to search shard: " + ee.getCause().getMessage());
+        }
+
+        TopDocs merged = TopDocs.merge(nResults, shardHits);
+        for(ScoreDoc scoreDoc : merged.scoreDocs)
+            scoreDoc.doc += shard_doc_bases[scoreDoc.shardIndex];
+        return merged;
     }
 
     /**
@@ -77,11 +370,75 @@ public class QueryRanker {
         return ranking;
     }
 
+    /**
+     * Re-ranks the given list of rankings, with the time spent so far on the query. Calls rerank(qid, ranking) by
+     * default. Override this method if re-ranking depends on the latency of the earlier stages.
+     * @param ranking Results produced by the similarity function.
+     * @param timing Time spent in each stage of the query so far, stages added here are reported with the query.
+     * @return A re-ordered list of rankings.
+     */
+    public List<RankResult> rerank(String qid, List<RankResult> ranking, QueryTiming timing) {
+        return rerank(qid, ranking);
+    }
+
 
     protected Object parseDataFromDocument(Document rankedDoc) {
         return rankedDoc.get(data_field_name);
     }
 
+    /**
+     * Loads only the data field of a ranked document. Used to fill RankResult data when it is first accessed.
+     * @param doc Lucene document number
+     * @return The parsed document data.
+     */
+    protected Object loadData(int doc) {
+        try {
+            return parseDataFromDocument(index_searcher.doc(doc, Collections.singleton(data_field_name)));
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to load document data: " + io.getMessage());
+        }
+    }
+
+    /**
+     * @param rankings Results produced by this ranker
+     * @return The ids of the entities linked by each result, aligned with rankings.
+     */
+    public String[][] getEntityLinks(List<RankResult> rankings) {
+        int[] docs = rankings.stream().mapToInt(r -> r.lucene_doc).toArray();
+        try {
+            return doc_values.getMultiValues(docs, TrecCarRepr.TrecCarSearchField.OutlinkIds.name());
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to retrieve entity links: " + io.getMessage());
+        }
+    }
+
+    /**
+     * @param rankings Results produced by this ranker
+     * @return The index-time statistics of each result, aligned with rankings.
+     */
+    public DocStatistics getDocStatistics(List<RankResult> rankings) {
+        int[] docs = rankings.stream().mapToInt(r -> r.lucene_doc).toArray();
+        try {
+            return DocStatistics.read(doc_values, docs);
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to retrieve document statistics: " + io.getMessage());
+        }
+    }
+
+    /**
+     * @return The searcher over the whole index. It is thread safe and shared by every ranking call.
+     */
+    public IndexSearcher getIndexSearcher() {
+        return index_searcher;
+    }
+
+    /**
+     * @return The name of the field queries are generated against.
+     */
+    public String getDataFieldName() {
+        return data_field_name;
+    }
+
     /**
      * Produce a ranking for a given string.
      *
@@ -91,48 +448,407 @@ public class QueryRanker {
      * @return A ranking of the top n results.
      */
     public List<RankResult> rank(int nResults, QueryGenerator generator, String queryId, String queryText) {
+        return rank(nResults, generator, null, queryId, queryText, null);
+    }
+
+    /**
+     * Produce a ranking for a given string, expanding the query with the results of a first pass if an expander is
+     * given. The first pass only retrieves as many results as the expander needs.
+     *
+     * @param nResults      Number of rankings to generate
+     * @param generator     Method of generating queries
+     * @param expander      Expands the query for a second pass, or null to rank with a single pass
+     * @param queryText     Text to produce a ranking for
+     * @param timing        Receives the time spent in each stage, may be null
+     * @return A ranking of the top n results.
+     */
+    public List<RankResult> rank(int nResults, QueryGenerator generator, QueryExpander expander, String queryId,
+                                 String queryText, QueryTiming timing) {
+        if(timing == null)
+            timing = newTiming();
+
+        List<RankResult> rankings = (expander == null && candidate_cache != null)
+                ? rankCached(nResults, generator.getCacheKey(), () -> generator.generate(queryText, data_field_name),
+                        queryId, queryText, timing)
+                : rankGenerated(nResults, generator, expander, queryId, queryText, timing);
+        if(LatencyStats.ENABLED)
+            LatencyStats.record(content_type, generator.getCacheKey(), timing);
+        return rankings;
+    }
 
+    /**
+     * Generates the query, expands it if an expander is given, and ranks it.
+     */
+    protected List<RankResult> rankGenerated(int nResults, QueryGenerator generator, QueryExpander expander,
+                                             String queryId, String queryText, QueryTiming timing) {
         Query generatedQuery= generator.generate(queryText, data_field_name);
+        timing.lap("generate");
+        if(expander != null)
+            generatedQuery = expand(generatedQuery, expander, queryText, timing);
+        return rank(nResults, generatedQuery, queryId, queryText, timing);
+    }
+
+    /**
+     * Searches for the expander's feedback results and expands the query with them.
+     */
+    protected Query expand(Query query, QueryExpander expander, String queryText, QueryTiming timing) {
         try {
-            ScoreDoc[] topDocs = index_searcher.search(generatedQuery, nResults).scoreDocs;
-            List<RankResult> rankings = IntStream.range(0, topDocs.length).mapToObj(rank -> {
-                try {
-                    Document doc = index_searcher.doc(topDocs[rank].doc);
-                    String docId = doc.get(id_field_name);
+            ScoreDoc[] feedback = search(query, expander.getFeedbackDepth()).scoreDocs;
+            timing.lap("feedback_search");
+            Query expanded = expander.expand(queryText, query, data_field_name, index_searcher, feedback);
+            timing.lap("expand");
+            return expanded;
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to produce feedback ranking: " + io.getMessage());
+        }
+    }
 
-                    Object data = parseDataFromDocument(doc);
-                    float score = topDocs[rank].score;
+    /**
+     * @return The class of the similarity, with its toString if the class overrides it (e.g. BM25(k1=1.2,b=0.75)).
+     * Object's toString is an identity hash, which would give every run its own cache keys.
+     */
+    private static String describe(Similarity sim) {
+        try {
+            if(sim.getClass().getMethod("toString").getDeclaringClass() != Object.class)
+                return sim.getClass().getName() + ":" + sim;
+        } catch(NoSuchMethodException e) {
+            //Every class has toString.
+        }
+        return sim.getClass().getName();
+    }
 
-                    return new RankResult(queryId, queryText, docId, data, rank, score);
-                } catch (IOException io) {
-                    throw new IllegalStateException("Unable to produce ranking: " + io.getMessage());
+    /**
+     * Ranks a query from the candidate cache, searching and caching the hits on a miss. Cached hits are re-ranked like
+     * searched ones, so only the query generation and the search are skipped.
+     * @param generatorKey Identifies how the query is built from its text
+     * @param query Builds the query, only called on a miss
+     */
+    protected List<RankResult> rankCached(int nResults, String generatorKey, Supplier<Query> query, String queryId,
+                                          String queryText, QueryTiming timing) {
+        int depth = searchDepth(nResults);
+        String key = candidate_cache.key(queryId, queryText, generatorKey + "@" + data_field_name,
+                (similarity_key != null) ? similarity_key : describe(index_searcher.getSimilarity(true)), depth);
+        try {
+            CandidateCache.Entry hits = candidate_cache.get(key);
+            timing.lap("cache");
+            if(hits == null) {
+                Query generatedQuery = query.get();
+                timing.lap("generate");
+                ScoreDoc[] topDocs = search(generatedQuery, depth).scoreDocs;
+                timing.lap("search");
+                hits = new CandidateCache.Entry(new int[topDocs.length], new float[topDocs.length]);
+                for(int i = 0; i < topDocs.length; i++) {
+                    hits.docs[i] = topDocs[i].doc;
+                    hits.scores[i] = topDocs[i].score;
                 }
-            }).collect(Collectors.toList());
-
-            /*if(content_type == ContentType.ENTITY) {
-                var outlinks = CorpusDB.getInstance().getParagraphOutlinks(rankings.stream().map(r->r.doc_id).collect(Collectors.toList()));
-                Map<String, Double> entityRanks = new HashMap<>();
-
-                //Map the entity ids to the score of the paragraph they were linked to
-                //If there are any collisions sum the scores
-                rankings.forEach(ranking ->
-                    outlinks.get(ranking.doc_id).forEach(link -> entityRanks.merge(link.to, ranking.score, Double::sum))
-                );
-
-                //Collect the map into RankResult form
-                AtomicInteger rank = new AtomicInteger(0);
-                Comparator<Map.Entry<String, Double>> maxComp = ((e1,e2)->Double.compare(e2.getValue(), e1.getValue()));
-                rankings = entityRanks.entrySet().stream()
-                        .sorted(maxComp)
-                        .map(e->
-                            new RankResult(queryId, queryText, e.getKey(), "", rank.incrementAndGet(), e.getValue())
-                        ).collect(Collectors.toList());
-            }*/
-
-            return rankings;
+                candidate_cache.put(key, hits.docs, hits.scores);
+                timing.lap("cache_write");
+            }
+            return rankHits(nResults, hits.docs, hits.scores, queryId, queryText, timing);
         } catch (IOException io) {
             throw new IllegalStateException("Unable to produce ranking: " + io.getMessage());
         }
     }
 
+    /**
+     * A query to rank with rankAll.
+     */
+    public static class RankQuery {
+        public final String query_id;
+        public final String query_text;
+
+        public RankQuery(String queryId, String queryText) {
+            query_id = queryId;
+            query_text = queryText;
+        }
+    }
+
+    /**
+     * Receives progress of rankAll. Called from the ranking threads, so implementations must be thread safe.
+     */
+    public interface ProgressListener {
+        void onQueryRanked(String queryId, int completed, int total);
+    }
+
+    /**
+     * Ranks every query on the shared batch executor, with at most two queries per thread in flight.
+     * @see #rankAll(int, QueryGenerator, List, ExecutorService, int, ProgressListener)
+     */
+    public List<List<RankResult>> rankAll(int nResults, QueryGenerator generator, List<RankQuery> queries) {
+        return rankAll(nResults, generator, queries, batch_executor, 2 * Runtime.getRuntime().availableProcessors(),
+                null);
+    }
+
+    /**
+     * Ranks every query in parallel. The index searcher is thread safe and shared by all of the queries. At most
+     * maxInFlight queries are submitted to the executor at a time, so a long list of queries doesn't queue up all at
+     * once. If a query fails, no further queries are submitted and the rest are cancelled.
+     *
+     * @param nResults      Number of rankings to generate for each query
+     * @param generator     Method of generating queries, which must be thread safe
+     * @param queries       Queries to rank
+     * @param executor      Executor to rank the queries on
+     * @param maxInFlight   Maximum number of queries submitted but not yet ranked
+     * @param progress      Notified after each query is ranked, may be null
+     * @return The ranking of each query, in the order of queries regardless of the order they finish in.
+     */
+    public List<List<RankResult>> rankAll(int nResults, QueryGenerator generator, List<RankQuery> queries,
+                                          ExecutorService executor, int maxInFlight, ProgressListener progress) {
+        List<List<RankResult>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        rankEach(nResults, generator, queries, executor, maxInFlight, progress, results::set);
+        return results;
+    }
+
+    /**
+     * Ranks every query in parallel and streams the rankings to a run file instead of returning them, so the results
+     * of a long list of queries aren't held until the end. The sink writes them in the order of queries.
+     *
+     * @param nResults      Number of rankings to generate for each query
+     * @param generator     Method of generating queries, which must be thread safe
+     * @param queries       Queries to rank
+     * @param sink          Run file to write the rankings to. It is not closed.
+     */
+    public void rankAll(int nResults, QueryGenerator generator, List<RankQuery> queries, RunFileSink sink) {
+        rankEach(nResults, generator, queries, batch_executor, 2 * Runtime.getRuntime().availableProcessors(), null,
+                sink::submit);
+    }
+
+    /**
+     * Receives the ranking of each query of rankEach, on the thread that ranked it.
+     */
+    private interface RankingConsumer {
+        void accept(int index, List<RankResult> ranking) throws InterruptedException;
+    }
+
+    /**
+     * Ranks every query in parallel, as described by rankAll, and hands each ranking to the consumer with the index of
+     * its query. Returns once every query has been ranked and consumed.
+     */
+    private void rankEach(int nResults, QueryGenerator generator, List<RankQuery> queries, ExecutorService executor,
+                          int maxInFlight, ProgressListener progress, RankingConsumer consumer) {
+        if(maxInFlight < 1)
+            throw new IllegalArgumentException("At least one query must be allowed in flight: " + maxInFlight);
+
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicInteger completed = new AtomicInteger(0);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<?>> rankings = new ArrayList<>(queries.size());
+        try {
+            for(int i = 0; i < queries.size(); i++) {
+                inFlight.acquire();
+                if(failed.get()) {
+                    inFlight.release();
+                    break;
+                }
+                int index = i;
+                RankQuery query = queries.get(i);
+                try {
+                    rankings.add(executor.submit(() -> {
+                        try {
+                            consumer.accept(index, rank(nResults, generator, query.query_id, query.query_text));
+                            if(progress != null)
+                                progress.onQueryRanked(query.query_id, completed.incrementAndGet(), queries.size());
+                            return null;
+                        } catch(RuntimeException | InterruptedException e) {
+                            failed.set(true);
+                            throw e;
+                        } finally {
+                            inFlight.release();
+                        }
+                    }));
+                } catch(RejectedExecutionException ree) {
+                    inFlight.release();
+                    throw ree;
+                }
+            }
+
+            for(Future<?> ranking : rankings)
+                ranking.get();
+        } catch(InterruptedException ie) {
+            rankings.forEach(r -> r.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while ranking queries.");
+        } catch(ExecutionException ee) {
+            rankings.forEach(r -> r.cancel(true));
+            throw new IllegalStateException("Unable to produce ranking: " + ee.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Ranks the queries built for the sections of a page together. All of them are submitted at once, so the page's
+     * sections are searched in parallel. When called from a task already running on the batch executor, the queries
+     * are ranked on the calling thread instead, as waiting on the pool from inside it could leave every pool thread
+     * waiting on work queued behind it.
+     *
+     * @param nResults      Number of rankings to generate for each query
+     * @param queries       Queries built by a HierarchicalQueryBuilder
+     * @return The ranking of each query, in the order of queries.
+     */
+    public List<List<RankResult>> rankQueries(int nResults, List<HierarchicalQueryBuilder.SectionQuery> queries) {
+        return rankQueries(nResults, queries, null);
+    }
+
+    /**
+     * Ranks the queries built for the sections of a page together, expanding each with its own feedback results if an
+     * expander is given.
+     * @see #rankQueries(int, List)
+     *
+     * @param nResults      Number of rankings to generate for each query
+     * @param queries       Queries built by a HierarchicalQueryBuilder
+     * @param expander      Expands each query for a second pass, or null to rank with a single pass
+     * @return The ranking of each query, in the order of queries.
+     */
+    public List<List<RankResult>> rankQueries(int nResults, List<HierarchicalQueryBuilder.SectionQuery> queries,
+                                              QueryExpander expander) {
+        List<List<RankResult>> results = new ArrayList<>(queries.size());
+        if(Thread.currentThread() instanceof BatchThread) {
+            for(HierarchicalQueryBuilder.SectionQuery query : queries)
+                results.add(rankSection(nResults, query, expander));
+            return results;
+        }
+
+        List<Future<List<RankResult>>> rankings = new ArrayList<>(queries.size());
+        try {
+            for(HierarchicalQueryBuilder.SectionQuery query : queries)
+                rankings.add(batch_executor.submit(() -> rankSection(nResults, query, expander)));
+            for(Future<List<RankResult>> ranking : rankings)
+                results.add(ranking.get());
+        } catch(InterruptedException ie) {
+            rankings.forEach(r -> r.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while ranking queries.");
+        } catch(ExecutionException ee) {
+            rankings.forEach(r -> r.cancel(true));
+            throw new IllegalStateException("Unable to produce ranking: " + ee.getCause().getMessage());
+        }
+        return results;
+    }
+
+    private List<RankResult> rankSection(int nResults, HierarchicalQueryBuilder.SectionQuery query,
+                                         QueryExpander expander) {
+        QueryTiming timing = newTiming();
+        List<RankResult> ranking;
+        if(expander == null && candidate_cache != null) {
+            //Section queries are built from the whole outline rather than by a generator, so the query is its own key.
+            ranking = rankCached(nResults, HierarchicalQueryBuilder.class.getSimpleName() + ":" + query.query,
+                    () -> query.query, query.query_id, query.query_text, timing);
+        } else {
+            Query sectionQuery = (expander == null) ? query.query
+                    : expand(query.query, expander, query.query_text, timing);
+            ranking = rank(nResults, sectionQuery, query.query_id, query.query_text, timing);
+        }
+        if(LatencyStats.ENABLED)
+            LatencyStats.record(content_type, HierarchicalQueryBuilder.class.getSimpleName(), timing);
+        return ranking;
+    }
+
+    /**
+     * Produce a ranking for an already built query.
+     *
+     * @param nResults      Number of rankings to generate
+     * @param query         Query to search with
+     * @param queryText     Text the query was built from
+     * @param timing        Receives the time spent in each stage, may be null
+     * @return A ranking of the top n results.
+     */
+    public List<RankResult> rank(int nResults, Query query, String queryId, String queryText, QueryTiming timing) {
+        if(timing == null)
+            timing = newTiming();
+
+        try {
+            ScoreDoc[] topDocs = search(query, searchDepth(nResults)).scoreDocs;
+            timing.lap("search");
+            int[] docs = new int[topDocs.length];
+            float[] scores = new float[topDocs.length];
+            for(int i = 0; i < topDocs.length; i++) {
+                docs[i] = topDocs[i].doc;
+                scores[i] = topDocs[i].score;
+            }
+            return rankHits(nResults, docs, scores, queryId, queryText, timing);
+        } catch (IOException io) {
+            throw new IllegalStateException("Unable to produce ranking: " + io.getMessage());
+        }
+    }
+
+    /**
+     * @return Timing for a query whose caller didn't pass one: recorded if latency stats are enabled or the ranker
+     * reads its stage times, otherwise QueryTiming.NONE, so untimed queries don't read the clock at every stage.
+     */
+    protected QueryTiming newTiming() {
+        return (LatencyStats.ENABLED || readsTiming()) ? new QueryTiming() : QueryTiming.NONE;
+    }
+
+    /**
+     * @return Whether or not rerank reads the stage times recorded before it.
+     */
+    protected boolean readsTiming() {
+        return false;
+    }
+
+    /**
+     * @param nResults Number of rankings to generate
+     * @return Number of results the index is searched for. Entities are ranked from more paragraphs than requested.
+     */
+    protected int searchDepth(int nResults) {
+        return (entity_args == null) ? nResults : Math.max(nResults, entity_args.paragraph_depth);
+    }
+
+    /**
+     * Turns the hits of a search into the top n rankings and re-ranks them.
+     * @param docs Lucene document numbers of the hits, best first
+     * @param scores Scores of the hits, aligned with docs
+     */
+    protected List<RankResult> rankHits(int nResults, int[] docs, float[] scores, String queryId, String queryText,
+                                        QueryTiming timing) throws IOException {
+        List<RankResult> rankings;
+        if(entity_args != null) {
+            rankings = rankEntities(nResults, docs, scores, queryId, queryText, timing);
+        } else {
+            String[] docIds = doc_values.getValues(docs, id_field_name);
+            rankings = IntStream.range(0, docs.length).mapToObj(rank ->
+                    new RankResult(queryId, queryText, docIds[rank], docs[rank], () -> loadData(docs[rank]),
+                            rank, scores[rank])
+            ).collect(Collectors.toList());
+            timing.lap("fetch");
+        }
+
+        rankings = rerank(queryId, rankings, timing);
+        timing.lap("rerank");
+        if(rankings.size() > nResults)
+            rankings = new ArrayList<>(rankings.subList(0, nResults));
+        if(logger.isDebugEnabled())
+            logger.debug("Ranked " + queryId + ": " + timing);
+        return rankings;
+    }
+
+    /**
+     * Ranks entities by aggregating the scores of the paragraphs linking to them. Links are resolved to entity ids
+     * from DocValues, scores are accumulated in a primitive map and the top entities are selected with a bounded heap.
+     * Entity results have no Lucene document or data.
+     * @param docs Lucene document numbers of the paragraphs, best first
+     * @param scores Scores of the paragraphs, aligned with docs
+     */
+    protected List<RankResult> rankEntities(int nResults, int[] docs, float[] scores, String queryId, String queryText,
+                                            QueryTiming timing) throws IOException {
+        int[][] links = entity_links.getLinks(docs);
+        timing.lap("links");
+
+        IntFloatMap entityScores = new IntFloatMap(docs.length * 4);
+        for(int rank = 0; rank < docs.length; rank++)
+            for(int entity : links[rank])
+                entity_args.aggregation.accumulate(entityScores, entity, scores[rank], rank, entity_args.rrf_k);
+
+        TopKHeap topEntities = new TopKHeap(Math.min(nResults, entityScores.size()));
+        entityScores.forEach(topEntities::offer);
+        float[] entityScoresOut = new float[topEntities.size()];
+        int[] entities = topEntities.drain(entityScoresOut);
+        timing.lap("aggregate");
+
+        List<RankResult> rankings = new ArrayList<>(entities.length);
+        for(int rank = 0; rank < entities.length; rank++)
+            rankings.add(new RankResult(queryId, queryText, entity_links.getEntityId(entities[rank]), null, rank,
+                    entityScoresOut[rank]));
+        return rankings;
+    }
+
 }
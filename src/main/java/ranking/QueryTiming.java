@@ -0,0 +1,74 @@
+package main.java.ranking;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wall clock time spent in each stage of ranking a single query. Stages are kept in the order they were first
+ * recorded, and time recorded twice for the same stage is summed.
+ */
+public class QueryTiming {
+    /* Timing that records nothing, for queries nobody reads the stage times of. Shared, so it isn't synchronized. */
+    public static final QueryTiming NONE = new QueryTiming() {
+        @Override
+        public void lap(String stage) {
+        }
+
+        @Override
+        public void record(String stage, long nanos) {
+        }
+    };
+
+    private final Map<String, Long> stage_nanos = new LinkedHashMap<>();
+    private long mark = System.nanoTime();
+
+    /**
+     * Records the time since the previous call (or since creation) as spent in the given stage.
+     * @param stage Name of the stage that just finished
+     */
+    public synchronized void lap(String stage) {
+        long now = System.nanoTime();
+        record(stage, now - mark);
+        mark = now;
+    }
+
+    /**
+     * @param stage Name of the stage
+     * @param nanos Time spent in the stage
+     */
+    public synchronized void record(String stage, long nanos) {
+        stage_nanos.merge(stage, nanos, Long::sum);
+    }
+
+    /**
+     * @return Nanoseconds spent in the stage, 0 if it wasn't recorded.
+     */
+    public synchronized long getNanos(String stage) {
+        return stage_nanos.getOrDefault(stage, 0L);
+    }
+
+    /**
+     * @return Nanoseconds spent in all of the stages.
+     */
+    public synchronized long getTotalNanos() {
+        long total = 0;
+        for(long nanos : stage_nanos.values())
+            total += nanos;
+        return total;
+    }
+
+    /**
+     * @return Copy of the time spent in each stage.
+     */
+    public synchronized Map<String, Long> getStages() {
+        return new LinkedHashMap<>(stage_nanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        stage_nanos.forEach((stage, nanos) ->
+                builder.append(stage).append('=').append(String.format("%.2f", nanos / 1e6)).append("ms "));
+        return builder.append("total=").append(String.format("%.2f", getTotalNanos() / 1e6)).append("ms").toString();
+    }
+}
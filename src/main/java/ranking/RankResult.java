@@ -1,5 +1,7 @@
 package main.java.ranking;
 
+import java.util.function.Supplier;
+
 /**
  * Result of the rank file generation.
  */
@@ -7,10 +9,16 @@ public class RankResult {
     public final String query;
     public final String query_id;
     public final String doc_id;
-    public final Object data;
     public final int rank;
     public final double score;
 
+    //Lucene document number of the result, or -1 if the result was not produced by a search.
+    public final int lucene_doc;
+
+    //Document data, loaded on first access when a supplier is given.
+    private volatile Object data;
+    private Supplier<Object> data_supplier;
+
     /**
      * @param qid Id of the query
      * @param q Query text used in search
@@ -25,5 +33,49 @@ public class RankResult {
         data = dat;
         rank = r;
         score = s;
+        lucene_doc = -1;
+    }
+
+    /**
+     * @param qid Id of the query
+     * @param q Query text used in search
+     * @param did ID of the ranked document
+     * @param luceneDoc Lucene document number of the ranked document
+     * @param lazyData Loads the document data the first time it is requested
+     * @param r Rank of the result
+     * @param s Ranking score
+     */
+    public RankResult(String qid, String q, String did, int luceneDoc, Supplier<Object> lazyData, int r, double s) {
+        query = q;
+        query_id = qid;
+        doc_id = did;
+        data_supplier = lazyData;
+        rank = r;
+        score = s;
+        lucene_doc = luceneDoc;
+    }
+
+    /**
+     * @return The data of the ranked document. Loaded from the index on the first call if it was not given up front.
+     */
+    public Object getData() {
+        if(data == null && data_supplier != null) {
+            synchronized (this) {
+                if(data_supplier != null) {
+                    data = data_supplier.get();
+                    data_supplier = null;
+                }
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @param r New rank of the result
+     * @param s New score of the result
+     * @return A copy of this result with a new rank and score, sharing (and lazily loading) the same data.
+     */
+    public RankResult withRank(int r, double s) {
+        return new RankResult(query_id, query, doc_id, lucene_doc, this::getData, r, s);
     }
 }
@@ -0,0 +1,13 @@
+package main.java.ranking;
+
+/**
+ * Model that scores a candidate from its features, e.g. RankLibUtil.TrainedModel::linearCombination.
+ */
+public interface RerankModel {
+
+    /**
+     * @param features Features of the candidate, feature 1 at index 0
+     * @return Score of the candidate, higher is better.
+     */
+    double score(double[] features);
+}
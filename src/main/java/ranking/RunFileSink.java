@@ -0,0 +1,199 @@
+package main.java.ranking;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes rankings to a TREC run file ("qid Q0 docid rank score run" lines) on a background thread. Ranking threads
+ * submit the results of each query with the query's sequence number, and batches are written in sequence order no
+ * matter which thread finishes first, so the file is the same for every run. Lines are formatted into reused buffers
+ * and written as soon as every earlier query is written, so results don't have to be kept until the end.
+ *
+ * Sequence numbers must be 0, 1, 2, ... with none missing. A submit blocks while its query is max_pending or more
+ * queries ahead of the next one to write, which bounds memory when the writer falls behind without ever blocking the
+ * query the writer is waiting for.
+ */
+public class RunFileSink implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RunFileSink.class);
+
+    private final String run_name;
+    private final int max_pending;
+    private final Writer writer;
+    private final Thread writer_thread;
+
+    //Submitted batches that aren't written yet, at sequence % max_pending.
+    private final List<RankResult>[] pending;
+    private long next_sequence = 0;
+    private boolean closed = false;
+    private volatile Throwable failure;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batch_ready = lock.newCondition();
+    private final Condition batch_written = lock.newCondition();
+
+    //Formatting buffers, only used by the writer thread.
+    private final StringBuilder line = new StringBuilder(128);
+    private char[] chars = new char[128];
+
+    /**
+     * @param file Run file to write, replaced if it exists
+     * @param runName Name of the run, written at the end of every line
+     * @param gzip Whether or not to gzip the file
+     * @param maxPending Number of queries that may be submitted ahead of the writer
+     */
+    @SuppressWarnings("unchecked")
+    public RunFileSink(Path file, String runName, boolean gzip, int maxPending) throws IOException {
+        if(maxPending < 1)
+            throw new IllegalArgumentException("At least one query must be allowed to be pending: " + maxPending);
+        run_name = runName;
+        max_pending = maxPending;
+        pending = new List[maxPending];
+
+        if(file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+        if(gzip)
+            out = new GZIPOutputStream(out, 1 << 16);
+        writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+        writer_thread = new Thread(this::writeBatches, "run-file-writer");
+        writer_thread.setDaemon(true);
+        writer_thread.start();
+    }
+
+    /**
+     * Submits the results of a query, blocking while the writer is too far behind.
+     * @param sequence Position of the query in the run, from 0
+     * @param results Ranking of the query, which must not be modified afterwards
+     */
+    public void submit(long sequence, List<RankResult> results) throws InterruptedException {
+        lock.lock();
+        try {
+            if(closed)
+                throw new IllegalStateException("Run file is closed.");
+            if(sequence < next_sequence || pending[(int) (sequence % max_pending)] != null &&
+                    sequence < next_sequence + max_pending)
+                throw new IllegalArgumentException("Query " + sequence + " was already submitted.");
+            while(sequence >= next_sequence + max_pending && failure == null)
+                batch_written.await();
+            checkFailure();
+            pending[(int) (sequence % max_pending)] = results;
+            batch_ready.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for every submitted query to be written and closes the file.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            batch_ready.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            writer_thread.join();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while closing run file.");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writer thread: writes batches in sequence order until the sink is closed and the next batch isn't pending.
+     */
+    private void writeBatches() {
+        try {
+            while(true) {
+                List<RankResult> batch;
+                lock.lock();
+                try {
+                    int slot = (int) (next_sequence % max_pending);
+                    while(pending[slot] == null && !closed)
+                        batch_ready.await();
+                    batch = pending[slot];
+                    if(batch == null)
+                        break;
+                } finally {
+                    lock.unlock();
+                }
+
+                write(batch);
+
+                lock.lock();
+                try {
+                    pending[(int) (next_sequence % max_pending)] = null;
+                    next_sequence++;
+                    batch_written.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if(hasPending())
+                logger.warn("Run file closed before every query was submitted, stopped after query " + next_sequence);
+            writer.close();
+        } catch(Throwable t) {
+            failure = t;
+            lock.lock();
+            try {
+                batch_written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writer.close();
+            } catch(IOException ignored) {
+            }
+        }
+    }
+
+    private void write(List<RankResult> batch) throws IOException {
+        for(RankResult result : batch) {
+            line.setLength(0);
+            line.append(result.query_id).append(" Q0 ").append(result.doc_id).append(' ')
+                    .append(result.rank + 1).append(' ').append(result.score).append(' ')
+                    .append(run_name).append('\n');
+            if(chars.length < line.length())
+                chars = new char[line.length() * 2];
+            line.getChars(0, line.length(), chars, 0);
+            writer.write(chars, 0, line.length());
+        }
+    }
+
+    private boolean hasPending() {
+        lock.lock();
+        try {
+            for(List<RankResult> batch : pending)
+                if(batch != null)
+                    return true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        if(failure != null)
+            throw new IllegalStateException("Unable to write run file: " + failure.getMessage());
+    }
+}
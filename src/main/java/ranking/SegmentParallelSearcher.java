@@ -0,0 +1,73 @@
+package main.java.ranking;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Searcher that searches groups of segments of a single query in parallel. Segments are sorted by size and packed into
+ * slices of bounded size, so small segments don't each pay for a task while large segments still get their own
+ * thread. Meant for lowering the latency of single expensive queries; when many queries are ranked at once (rankAll)
+ * the serial searcher already keeps every core busy.
+ */
+public class SegmentParallelSearcher extends IndexSearcher {
+    //Slices are closed once they hold this many documents or segments.
+    private static final int MAX_DOCS_PER_SLICE = 250_000;
+    private static final int MAX_SEGMENTS_PER_SLICE = 5;
+
+    //Shared executors, keyed by number of threads.
+    private static final Map<Integer, ExecutorService> shared_executors = new HashMap<>();
+
+    /**
+     * @param reader Reader to search
+     * @param executor Executor the slices are searched on
+     */
+    public SegmentParallelSearcher(IndexReader reader, ExecutorService executor) {
+        super(reader, executor);
+    }
+
+    /**
+     * Segment searches get their own pool, separate from the pools that run whole queries, so a query waiting on its
+     * slices can never hold the threads the slices need.
+     * @param threads Number of threads
+     * @return The executor with that many threads shared by every segment parallel searcher of the process.
+     */
+    public static synchronized ExecutorService getSharedExecutor(int threads) {
+        if(threads < 1)
+            throw new IllegalArgumentException("Segment searches need at least one thread: " + threads);
+        return shared_executors.computeIfAbsent(threads, n -> Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "segment-search-" + n);
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    @Override
+    protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+        List<LeafReaderContext> sorted = new ArrayList<>(leaves);
+        sorted.sort((a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+
+        List<LeafSlice> slices = new ArrayList<>();
+        List<LeafReaderContext> group = new ArrayList<>();
+        long groupDocs = 0;
+        for(LeafReaderContext leaf : sorted) {
+            group.add(leaf);
+            groupDocs += leaf.reader().maxDoc();
+            if(groupDocs >= MAX_DOCS_PER_SLICE || group.size() >= MAX_SEGMENTS_PER_SLICE) {
+                slices.add(new LeafSlice(group.toArray(new LeafReaderContext[group.size()])));
+                group.clear();
+                groupDocs = 0;
+            }
+        }
+        if(!group.isEmpty())
+            slices.add(new LeafSlice(group.toArray(new LeafReaderContext[group.size()])));
+        return slices.toArray(new LeafSlice[slices.size()]);
+    }
+}
@@ -0,0 +1,37 @@
+package main.java.ranking;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermStatistics;
+
+import java.io.IOException;
+
+/**
+ * Searcher over a single shard of a partitioned index. Term and collection statistics are taken from a searcher over
+ * all shards, so scores computed on one shard are comparable with (and identical to) scores on the unsharded index.
+ */
+public class ShardSearcher extends IndexSearcher {
+    private final IndexSearcher global_searcher;
+
+    /**
+     * @param shardReader Reader of this shard
+     * @param globalSearcher Searcher over every shard of the index, used for scoring statistics.
+     */
+    public ShardSearcher(IndexReader shardReader, IndexSearcher globalSearcher) {
+        super(shardReader);
+        global_searcher = globalSearcher;
+    }
+
+    @Override
+    public TermStatistics termStatistics(Term term, TermContext context) throws IOException {
+        return global_searcher.termStatistics(term, TermContext.build(global_searcher.getTopReaderContext(), term));
+    }
+
+    @Override
+    public CollectionStatistics collectionStatistics(String field) throws IOException {
+        return global_searcher.collectionStatistics(field);
+    }
+}
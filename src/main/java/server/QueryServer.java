@@ -0,0 +1,287 @@
+package main.java.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import main.java.PrototypeMain;
+import main.java.argument_parsers.CascadeArgs;
+import main.java.argument_parsers.EntityRankArgs;
+import main.java.argument_parsers.ExpansionArgs;
+import main.java.argument_parsers.FusionArgs;
+import main.java.argument_parsers.ServerArgs;
+import main.java.argument_parsers.TrecCarArgs;
+import main.java.database.CorpusDB;
+import main.java.indexer.ParaEntityIndexr.configs.TrecCarRepr;
+import main.java.query_generation.QueryExpander;
+import main.java.query_generation.QueryGenerator;
+import main.java.ranking.CascadeRanker;
+import main.java.ranking.FeatureExtractor;
+import main.java.ranking.FusionEngine;
+import main.java.ranking.LatencyStats;
+import main.java.ranking.QueryRanker;
+import main.java.ranking.QueryTiming;
+import main.java.ranking.RankResult;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long running ranking server. The configuration is parsed, and the indexes opened and warmed, once. Queries are then
+ * answered over HTTP on localhost with JSON, so scoring a handful of queries takes milliseconds instead of a full
+ * start up.
+ *
+ * POST /rank  {"query": text, "query_id": id, "content_type": "passage", "generator": "basic", "n": 100,
+ *              "expander": "none", "rerank": false, "fusion": false}
+ *          -> {"query_id": id, "results": [{"doc_id": id, "rank": 1, "score": s}, ...], "timing": {stage: ms}}
+ * "expander" is "none", "rm3" or "entity", and defaults to the method of the "expansion" method configuration.
+ * "fusion" ranks with every source of the "fusion" method configuration and fuses their rankings instead.
+ * GET /health -> {"status": "ok"}
+ * GET /stats  -> stage latency percentiles, if started with -Dlatency.stats=true
+ *
+ * Requests are ranked by a bounded pool of workers. When every worker is busy and the queue is full, the thread
+ * accepting connections ranks the request itself, which stops it accepting more until it is done.
+ */
+public class QueryServer {
+    private static final Logger logger = LoggerFactory.getLogger(QueryServer.class);
+
+    private static final String ID_FIELD = TrecCarRepr.TrecCarSearchField.Id.name();
+    private static final String DATA_FIELD = TrecCarRepr.TrecCarSearchField.Text.name();
+
+    private final ServerArgs server_args;
+    private final HttpServer http_server;
+    private final ThreadPoolExecutor workers;
+
+    private final Map<QueryRanker.ContentType, QueryRanker> rankers = new EnumMap<>(QueryRanker.ContentType.class);
+    private final Map<String, QueryGenerator> generators = new HashMap<>();
+    private final Map<String, QueryExpander> expanders = new HashMap<>();
+    private final String default_expander;
+    private final CascadeRanker cascade_ranker;
+    private final FusionEngine fusion_engine;
+
+    /**
+     * Opens every index and starts listening.
+     * @param protoArgs Parsed configuration
+     */
+    public QueryServer(PrototypeMain.PrototypeArgs protoArgs) throws IOException {
+        server_args = protoArgs.server_args;
+        TrecCarArgs.IndexArgs indexArgs = protoArgs.trec_car_args.index_args;
+        JSONObject methodsConf = protoArgs.getMethodSpecificArgs();
+
+        EntityRankArgs entityArgs = new EntityRankArgs(methodsConf);
+        for(QueryRanker.ContentType contentType : QueryRanker.ContentType.values()) {
+            logger.info("Opening " + contentType + " index.");
+            QueryRanker ranker;
+            try {
+                ranker = new QueryRanker(indexArgs.paragraph_index, indexArgs.section_index, indexArgs.entity_index,
+                        ID_FIELD, DATA_FIELD, contentType, indexArgs.warmup_args, indexArgs.segment_search_threads,
+                        entityArgs);
+            } catch(IllegalStateException ise) {
+                //The server is still useful with the indexes that do exist.
+                logger.warn("Not serving " + contentType + " rankings: " + ise.getMessage());
+                continue;
+            }
+            if(!indexArgs.candidate_cache_dir.isEmpty())
+                ranker.enableCandidateCache(Paths.get(indexArgs.candidate_cache_dir),
+                        indexArgs.candidate_cache_mb << 20);
+            ranker.warm();
+            rankers.put(contentType, ranker);
+        }
+
+        QueryRanker passageRanker = rankers.get(QueryRanker.ContentType.PASSAGE);
+        if(passageRanker == null)
+            throw new IllegalStateException("Unable to open the paragraph index " + indexArgs.paragraph_index);
+        for(String generatorName : PrototypeMain.GENERATORS)
+            generators.put(generatorName, PrototypeMain.createGenerator(generatorName, methodsConf,
+                    passageRanker.getIndexSearcher().getIndexReader()));
+
+        ExpansionArgs expansionArgs = new ExpansionArgs(methodsConf);
+        CorpusDB corpusDB = null;
+        if(expansionArgs.anchor_terms > 0) {
+            //Anchor text is the only thing read from the database, so without it entities are expanded on their own.
+            try {
+                corpusDB = CorpusDB.getInstance();
+                corpusDB.connect(protoArgs.sqlite_args.db_loc);
+            } catch(IOException ioe) {
+                logger.warn("Expanding without anchor text: " + ioe.getMessage());
+                corpusDB = null;
+            }
+        }
+        expanders.put("none", null);
+        expanders.put("rm3", expansionArgs.createExpander("rm3", corpusDB));
+        expanders.put("entity", expansionArgs.createExpander("entity", corpusDB));
+        default_expander = expansionArgs.method;
+        if(!expanders.containsKey(default_expander))
+            throw new IllegalArgumentException("Unknown expander " + default_expander + ", expected one of " +
+                    expanders.keySet());
+
+        //Reranks the candidates of the already opened and warmed passage index.
+        cascade_ranker = server_args.enable_cascade
+                ? new CascadeRanker(passageRanker, new CascadeArgs(methodsConf),
+                        new FeatureExtractor(Collections.emptyList()))
+                : null;
+        fusion_engine = methodsConf.has("fusion") ? createFusionEngine(new FusionArgs(methodsConf)) : null;
+
+        AtomicInteger workerCount = new AtomicInteger(0);
+        workers = new ThreadPoolExecutor(server_args.worker_threads, server_args.worker_threads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(server_args.queue_size), r -> {
+                    Thread t = new Thread(r, "query-server-" + workerCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        http_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), server_args.port), 0);
+        http_server.setExecutor(workers);
+        http_server.createContext("/rank", exchange -> handle(exchange, "POST", this::rank));
+        http_server.createContext("/health", exchange -> handle(exchange, "GET", request ->
+                new JSONObject().put("status", "ok")));
+        http_server.createContext("/stats", exchange -> handle(exchange, "GET", request -> LatencyStats.toJson()));
+        http_server.start();
+        logger.info("Query server listening on " + http_server.getAddress());
+    }
+
+    /**
+     * @return Fusion of the served rankers and generators named by args.sources.
+     */
+    private FusionEngine createFusionEngine(FusionArgs args) {
+        List<FusionEngine.Source> sources = new ArrayList<>(args.sources.size());
+        for(String source : args.sources) {
+            String[] parts = source.split(":", 2);
+            if(parts.length != 2)
+                throw new IllegalArgumentException("Expected a fusion source as <content type>:<generator>: " + source);
+            QueryRanker ranker = rankers.get(QueryRanker.ContentType.valueOf(parts[0].toUpperCase()));
+            QueryGenerator generator = generators.get(parts[1]);
+            if(ranker == null || generator == null)
+                throw new IllegalArgumentException("Fusion source " + source + " isn't being served.");
+            sources.add(new FusionEngine.Source(ranker, generator));
+        }
+        return new FusionEngine(sources, args);
+    }
+
+    private interface RequestHandler {
+        JSONObject handle(JSONObject request);
+    }
+
+    /**
+     * Ranks one query.
+     */
+    private JSONObject rank(JSONObject request) {
+        String queryText = request.getString("query");
+        String queryId = request.optString("query_id", queryText);
+        QueryRanker.ContentType contentType = QueryRanker.ContentType.valueOf(
+                request.optString("content_type", "passage").toUpperCase());
+        String generatorName = request.optString("generator", "basic");
+        QueryGenerator generator = generators.get(generatorName);
+        if(generator == null)
+            throw new IllegalArgumentException("Unknown generator " + generatorName + ", expected one of " +
+                    generators.keySet());
+        String expanderName = request.optString("expander", default_expander).toLowerCase();
+        if(!expanders.containsKey(expanderName))
+            throw new IllegalArgumentException("Unknown expander " + expanderName + ", expected one of " +
+                    expanders.keySet());
+        QueryExpander expander = expanders.get(expanderName);
+        int nResults = Math.max(1, Math.min(request.optInt("n", server_args.default_results),
+                server_args.max_results));
+
+        QueryRanker ranker = rankers.get(contentType);
+        if(ranker == null)
+            throw new IllegalArgumentException("No " + contentType + " index is being served.");
+        if(request.optBoolean("rerank", false)) {
+            if(cascade_ranker == null || contentType != QueryRanker.ContentType.PASSAGE)
+                throw new IllegalArgumentException("Reranking is only available for passages with enable_cascade.");
+            ranker = cascade_ranker;
+        }
+
+        QueryTiming timing = new QueryTiming();
+        List<RankResult> rankings;
+        if(request.optBoolean("fusion", false)) {
+            if(fusion_engine == null)
+                throw new IllegalArgumentException("Fusion is only available with a fusion method configuration.");
+            rankings = fusion_engine.fuse(nResults, queryId, queryText, timing);
+        } else {
+            rankings = ranker.rank(nResults, generator, expander, queryId, queryText, timing);
+        }
+
+        JSONArray results = new JSONArray();
+        for(RankResult result : rankings)
+            results.put(new JSONObject()
+                    .put("doc_id", result.doc_id)
+                    .put("rank", result.rank + 1)
+                    .put("score", result.score));
+        JSONObject stages = new JSONObject();
+        timing.getStages().forEach((stage, nanos) -> stages.put(stage, nanos / 1e6));
+        return new JSONObject()
+                .put("query_id", queryId)
+                .put("results", results)
+                .put("timing", stages);
+    }
+
+    private void handle(HttpExchange exchange, String method, RequestHandler handler) throws IOException {
+        int status = 200;
+        JSONObject response;
+        try {
+            if(!exchange.getRequestMethod().equalsIgnoreCase(method)) {
+                status = 405;
+                response = new JSONObject().put("error", "Expected " + method);
+            } else {
+                String body = readBody(exchange.getRequestBody());
+                response = handler.handle(body.isEmpty() ? new JSONObject() : new JSONObject(body));
+            }
+        } catch(JSONException | IllegalArgumentException e) {
+            status = 400;
+            response = new JSONObject().put("error", e.getMessage());
+        } catch(RuntimeException re) {
+            logger.error("Failed to answer " + exchange.getRequestURI() + ": " + re.getMessage());
+            status = 500;
+            response = new JSONObject().put("error", re.getMessage());
+        }
+
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for(int read = in.read(buffer); read != -1; read = in.read(buffer))
+            body.write(buffer, 0, read);
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stops accepting requests and waits up to the given time for the requests being ranked.
+     */
+    public void stop(int graceSeconds) {
+        http_server.stop(graceSeconds);
+        workers.shutdown();
+        try {
+            workers.awaitTermination(graceSeconds, TimeUnit.SECONDS);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        LatencyStats.dump();
+    }
+}